@@ -29,8 +29,36 @@ public class SqlSourceCounter extends MonitoredCounterGroup implements SqlSource
 	private static final String CURRENT_THROUGHPUT = "current_throughput";
 	private static final String MAX_THROUGHPUT = "max_throughput";
 	private static final String EVENT_COUNT = "events_count";
+	private static final String PROBE_QUERY_COUNT = "probe_queries_count";
+	private static final String PROBE_HIT_COUNT = "probe_hits_count";
+	private static final String SKIPPED_QUERY_COUNT = "skipped_queries_count";
+	private static final String QUERY_ERROR_COUNT = "query_errors_count";
+	private static final String QUERY_RETRY_COUNT = "query_retries_count";
+	private static final String CONNECTION_RESET_COUNT = "connection_resets_count";
+	private static final String CIRCUIT_BREAKER_OPEN = "circuit_breaker_open";
+	private static final String SNAPSHOT_PENDING_CHUNKS = "snapshot_pending_chunks";
+	private static final String THROTTLE_COUNT = "throttle_count";
+	private static final String THROTTLE_TIME = "throttle_time_ms";
+	private static final String GOVERNOR_DELAY = "governor_delay_ms";
+	private static final String SUPPRESSED_ROW_COUNT = "suppressed_rows_count";
+	private static final String FILTERED_ROW_COUNT = "filtered_rows_count";
+	private static final String LOB_TRUNCATED_COUNT = "lob_truncated_count";
+	private static final String LOB_REFERENCED_COUNT = "lob_referenced_count";
+	private static final String SPILLED_EVENT_COUNT = "spilled_events_count";
+	private static final String SPILL_OVERFLOW_COUNT = "spill_overflow_count";
+	private static final String SCHEMA_CHANGE_COUNT = "schema_changes_count";
+	private static final String FETCHED_BYTES_COUNT = "fetched_bytes_count";
+	private static final String FETCH_SIZE = "fetch_size";
+	private static final String QUERY_PLAN_COST = "query_plan_cost";
+	private static final String QUERY_PLAN_WARNING_COUNT = "query_plan_warnings_count";
     
-    private static final String[] ATTRIBUTES = {AVERAGE_THROUGHPUT, CURRENT_THROUGHPUT, MAX_THROUGHPUT, EVENT_COUNT};
+    private static final String[] ATTRIBUTES = {AVERAGE_THROUGHPUT, CURRENT_THROUGHPUT, MAX_THROUGHPUT, EVENT_COUNT,
+    	PROBE_QUERY_COUNT, PROBE_HIT_COUNT, SKIPPED_QUERY_COUNT, QUERY_ERROR_COUNT, QUERY_RETRY_COUNT,
+    	CONNECTION_RESET_COUNT, CIRCUIT_BREAKER_OPEN, SNAPSHOT_PENDING_CHUNKS,
+    	THROTTLE_COUNT, THROTTLE_TIME, GOVERNOR_DELAY, SUPPRESSED_ROW_COUNT,
+    	FILTERED_ROW_COUNT, LOB_TRUNCATED_COUNT, LOB_REFERENCED_COUNT, SPILLED_EVENT_COUNT,
+    	SPILL_OVERFLOW_COUNT, SCHEMA_CHANGE_COUNT, FETCHED_BYTES_COUNT, FETCH_SIZE,
+    	QUERY_PLAN_COST, QUERY_PLAN_WARNING_COUNT};
     
     public SqlSourceCounter(String name) {
         super(MonitoredCounterGroup.Type.SOURCE, name, ATTRIBUTES);
@@ -61,6 +89,208 @@ public class SqlSourceCounter extends MonitoredCounterGroup implements SqlSource
         return get(MAX_THROUGHPUT);
     }
     
+    @Override
+    public long getProbeQueryCount() {
+        return get(PROBE_QUERY_COUNT);
+    }
+
+    @Override
+    public long getProbeHitCount() {
+        return get(PROBE_HIT_COUNT);
+    }
+
+    @Override
+    public long getSkippedQueryCount() {
+        return get(SKIPPED_QUERY_COUNT);
+    }
+
+    @Override
+    public long getQueryErrorCount() {
+        return get(QUERY_ERROR_COUNT);
+    }
+
+    @Override
+    public long getQueryRetryCount() {
+        return get(QUERY_RETRY_COUNT);
+    }
+
+    @Override
+    public long getConnectionResetCount() {
+        return get(CONNECTION_RESET_COUNT);
+    }
+
+    @Override
+    public long getCircuitBreakerOpen() {
+        return get(CIRCUIT_BREAKER_OPEN);
+    }
+
+    @Override
+    public long getSnapshotPendingChunks() {
+        return get(SNAPSHOT_PENDING_CHUNKS);
+    }
+
+    @Override
+    public long getThrottleCount() {
+        return get(THROTTLE_COUNT);
+    }
+
+    @Override
+    public long getThrottleTime() {
+        return get(THROTTLE_TIME);
+    }
+
+    @Override
+    public long getGovernorDelay() {
+        return get(GOVERNOR_DELAY);
+    }
+
+    /**
+     * Count a wait imposed by the load governor
+     * @param ms time waited
+     */
+    public void addThrottleTime(long ms){
+    	increment(THROTTLE_COUNT);
+    	addAndGet(THROTTLE_TIME, ms);
+    }
+
+    public void setGovernorDelay(long ms){
+    	set(GOVERNOR_DELAY, ms);
+    }
+
+    @Override
+    public long getSuppressedRowCount() {
+        return get(SUPPRESSED_ROW_COUNT);
+    }
+
+    @Override
+    public long getFilteredRowCount() {
+        return get(FILTERED_ROW_COUNT);
+    }
+
+    @Override
+    public long getLobTruncatedCount() {
+        return get(LOB_TRUNCATED_COUNT);
+    }
+
+    @Override
+    public long getLobReferencedCount() {
+        return get(LOB_REFERENCED_COUNT);
+    }
+
+    @Override
+    public long getSpilledEventCount() {
+        return get(SPILLED_EVENT_COUNT);
+    }
+
+    @Override
+    public long getSpillOverflowCount() {
+        return get(SPILL_OVERFLOW_COUNT);
+    }
+
+    @Override
+    public long getSchemaChangeCount() {
+        return get(SCHEMA_CHANGE_COUNT);
+    }
+
+    @Override
+    public long getFetchedBytesCount() {
+        return get(FETCHED_BYTES_COUNT);
+    }
+
+    @Override
+    public long getFetchSize() {
+        return get(FETCH_SIZE);
+    }
+
+    @Override
+    public long getQueryPlanCost() {
+        return get(QUERY_PLAN_COST);
+    }
+
+    @Override
+    public long getQueryPlanWarningCount() {
+        return get(QUERY_PLAN_WARNING_COUNT);
+    }
+
+    public void setQueryPlanCost(long cost){
+    	set(QUERY_PLAN_COST, cost);
+    }
+
+    public void incrementQueryPlanWarningCount(){
+    	increment(QUERY_PLAN_WARNING_COUNT);
+    }
+
+    public void incrementFetchedBytesCount(long bytes){
+    	addAndGet(FETCHED_BYTES_COUNT, bytes);
+    }
+
+    public void setFetchSize(long rows){
+    	set(FETCH_SIZE, rows);
+    }
+
+    public void incrementSchemaChangeCount(){
+    	increment(SCHEMA_CHANGE_COUNT);
+    }
+
+    public void setSpilledEventCount(long events){
+    	set(SPILLED_EVENT_COUNT, events);
+    }
+
+    public void incrementSpillOverflowCount(){
+    	increment(SPILL_OVERFLOW_COUNT);
+    }
+
+    public void incrementLobTruncatedCount(){
+    	increment(LOB_TRUNCATED_COUNT);
+    }
+
+    public void incrementLobReferencedCount(){
+    	increment(LOB_REFERENCED_COUNT);
+    }
+
+    public void incrementFilteredRowCount(int rows){
+    	addAndGet(FILTERED_ROW_COUNT, rows);
+    }
+
+    public void incrementSuppressedRowCount(int rows){
+    	addAndGet(SUPPRESSED_ROW_COUNT, rows);
+    }
+
+    public void setSnapshotPendingChunks(long chunks){
+    	set(SNAPSHOT_PENDING_CHUNKS, chunks);
+    }
+
+    public void decrementSnapshotPendingChunks(){
+    	addAndGet(SNAPSHOT_PENDING_CHUNKS, -1);
+    }
+
+    public void incrementQueryErrorCount(){
+    	increment(QUERY_ERROR_COUNT);
+    }
+
+    public void incrementQueryRetryCount(){
+    	increment(QUERY_RETRY_COUNT);
+    }
+
+    public void incrementConnectionResetCount(){
+    	increment(CONNECTION_RESET_COUNT);
+    }
+
+    public void setCircuitBreakerOpen(boolean open){
+    	set(CIRCUIT_BREAKER_OPEN, open ? 1 : 0);
+    }
+
+    /**
+     * Count a probe query execution
+     * @param newData true if the probe detected new data and the full query will be executed
+     */
+    public void incrementProbeQueryCount(boolean newData){
+    	increment(PROBE_QUERY_COUNT);
+    	if (newData)
+    		increment(PROBE_HIT_COUNT);
+    	else
+    		increment(SKIPPED_QUERY_COUNT);
+    }
     
     public void startProcess(){
     	startProcessTime = System.currentTimeMillis();
@@ -31,4 +31,26 @@ public interface SqlSourceCounterMBean {
     public long getAverageThroughput();
     public long getCurrentThroughput();
     public long getMaxThroughput();
+    public long getProbeQueryCount();
+    public long getProbeHitCount();
+    public long getSkippedQueryCount();
+    public long getQueryErrorCount();
+    public long getQueryRetryCount();
+    public long getConnectionResetCount();
+    public long getCircuitBreakerOpen();
+    public long getSnapshotPendingChunks();
+    public long getThrottleCount();
+    public long getThrottleTime();
+    public long getGovernorDelay();
+    public long getSuppressedRowCount();
+    public long getFilteredRowCount();
+    public long getLobTruncatedCount();
+    public long getLobReferencedCount();
+    public long getSpilledEventCount();
+    public long getSpillOverflowCount();
+    public long getSchemaChangeCount();
+    public long getFetchedBytesCount();
+    public long getFetchSize();
+    public long getQueryPlanCost();
+    public long getQueryPlanWarningCount();
 }
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+/**
+ * Circuit breaker to stop polling a database that keeps failing. <p>
+ * After a number of consecutive failures the circuit opens and requests are refused until
+ * the reset timeout expires. Then the circuit becomes half open, and the next request acts as a
+ * health probe: a success closes the circuit, a failure opens it again.
+ */
+public class CircuitBreaker {
+
+	/**
+	 * Circuit breaker states
+	 */
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long resetTimeout;
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+
+	/**
+	 * @param failureThreshold Consecutive failures needed to open the circuit, 0 disables the breaker
+	 * @param resetTimeout ms to wait in open state before allowing a health probe
+	 */
+	public CircuitBreaker(int failureThreshold, long resetTimeout) {
+		this.failureThreshold = failureThreshold;
+		this.resetTimeout = resetTimeout;
+	}
+
+	/**
+	 * @return true if a request can be performed, moving from open to half open state
+	 * when the reset timeout has expired
+	 */
+	public synchronized boolean allowRequest() {
+
+		if (state == State.OPEN && System.currentTimeMillis() - openedAt >= resetTimeout) {
+			state = State.HALF_OPEN;
+		}
+		return state != State.OPEN;
+	}
+
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+	}
+
+	public synchronized void recordFailure() {
+
+		consecutiveFailures++;
+		if (failureThreshold > 0 && (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold)) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+}
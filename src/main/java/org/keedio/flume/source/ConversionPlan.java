@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Conversion of the result set rows to lists of cells, compiled once per result columns layout. <p>
+ * Each column gets the reader matching its SQL type when the plan is built, so rows are read without any
+ * lookup or metadata access. The plan is identified by the schema version, a fingerprint of the column
+ * labels, types, precisions and scales, which changes when the queried table is altered.
+ */
+public class ConversionPlan {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Reads a cell of the current row
+	 */
+	interface ColumnReader {
+		Object read(ResultSet resultSet, int column) throws SQLException;
+	}
+
+	private static final ColumnReader OBJECT = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getObject(column);
+		}
+	};
+
+	private static final ColumnReader STRING = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getString(column);
+		}
+	};
+
+	private static final ColumnReader DECIMAL = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getBigDecimal(column);
+		}
+	};
+
+	private static final ColumnReader DATE = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getDate(column);
+		}
+	};
+
+	private static final ColumnReader TIME = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getTime(column);
+		}
+	};
+
+	private static final ColumnReader TIMESTAMP = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getTimestamp(column);
+		}
+	};
+
+	private static final ColumnReader BYTES = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getBytes(column);
+		}
+	};
+
+	private static final ColumnReader BLOB = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getBlob(column);
+		}
+	};
+
+	private static final ColumnReader CLOB = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getClob(column);
+		}
+	};
+
+	/* LONG and LONG RAW columns of some drivers have no LOB locator, they are read while the row is current */
+	private static final ColumnReader CHARACTER_STREAM = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getCharacterStream(column);
+		}
+	};
+
+	private static final ColumnReader NCHARACTER_STREAM = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getNCharacterStream(column);
+		}
+	};
+
+	private static final ColumnReader BINARY_STREAM = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getBinaryStream(column);
+		}
+	};
+
+	private static final ColumnReader NCLOB = new ColumnReader() {
+		@Override
+		public Object read(ResultSet resultSet, int column) throws SQLException {
+			return resultSet.getNClob(column);
+		}
+	};
+
+	private final ColumnReader[] readers;
+	private final int[] types;
+	private final String[] labels;
+	private final String version;
+	private final String description;
+
+	private ConversionPlan(ColumnReader[] readers, int[] types, String[] labels, String version, String description) {
+		this.readers = readers;
+		this.types = types;
+		this.labels = labels;
+		this.version = version;
+		this.description = description;
+	}
+
+	/**
+	 * Read the current row of the result set
+	 * @param resultSet Result set positioned on a row
+	 * @return Row cells, using the types of the column readers
+	 * @throws SQLException if a cell can't be read
+	 */
+	public List<Object> read(ResultSet resultSet) throws SQLException {
+
+		Object[] cells = new Object[readers.length];
+		for (int i = 0; i < readers.length; i++){
+			cells[i] = readers[i].read(resultSet, i + 1);
+		}
+		return Arrays.asList(cells);
+	}
+
+	/**
+	 * @return Fingerprint of the result columns
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return Result columns, as comma separated <tt>label TYPE(precision,scale)</tt>
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * @return Number of result columns
+	 */
+	public int getColumnCount() {
+		return readers.length;
+	}
+
+	/**
+	 * @param column Index of the column, 0 based
+	 * @return true if the SQL type of the column is numeric, whatever the type of its cells
+	 */
+	public boolean isNumeric(int column) {
+
+		switch (types[column]){
+		case Types.TINYINT:
+		case Types.SMALLINT:
+		case Types.INTEGER:
+		case Types.BIGINT:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param label Column label, case insensitive
+	 * @return Index of the column in the rows, 0 based, -1 if there is no such column
+	 */
+	public int getColumnIndex(String label) {
+
+		for (int i = 0; i < labels.length; i++){
+			if (labels[i].equalsIgnoreCase(label)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static ColumnReader reader(int sqlType) {
+
+		switch (sqlType){
+		case Types.CHAR:
+		case Types.VARCHAR:
+		case Types.NCHAR:
+		case Types.NVARCHAR:
+			return STRING;
+		case Types.DECIMAL:
+		case Types.NUMERIC:
+			return DECIMAL;
+		case Types.DATE:
+			return DATE;
+		case Types.TIME:
+			return TIME;
+		case Types.TIMESTAMP:
+			return TIMESTAMP;
+		case Types.BINARY:
+		case Types.VARBINARY:
+			return BYTES;
+		case Types.BLOB:
+			return BLOB;
+		case Types.LONGVARBINARY:
+			return BINARY_STREAM;
+		case Types.CLOB:
+			return CLOB;
+		case Types.LONGVARCHAR:
+			return CHARACTER_STREAM;
+		case Types.NCLOB:
+			return NCLOB;
+		case Types.LONGNVARCHAR:
+			return NCHARACTER_STREAM;
+		default:
+			return OBJECT;
+		}
+	}
+
+	/**
+	 * Conversion plans by schema version. The metadata of the result columns is hashed once per query
+	 * to get the version, and a plan and its description are built only for versions not seen before. Shared by the snapshot chunks
+	 * read in parallel.
+	 */
+	static class Cache {
+
+		private static final int MAX_PLANS = 16;
+
+		private final Set<Integer> stringTypes;
+
+		private final Map<Long, ConversionPlan> plans = new LinkedHashMap<Long, ConversionPlan>(MAX_PLANS, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, ConversionPlan> eldest) {
+				return size() > MAX_PLANS;
+			}
+		};
+
+		Cache() {
+			this(Collections.<Integer>emptySet());
+		}
+
+		/**
+		 * @param stringTypes SQL types read as strings whatever their default reader, i.e. the types a
+		 * custom hibernate dialect maps to strings
+		 */
+		Cache(Set<Integer> stringTypes) {
+			this.stringTypes = stringTypes;
+		}
+
+		/**
+		 * @param metaData Metadata of the query result
+		 * @return Conversion plan of the result columns
+		 * @throws SQLException if the metadata can't be read
+		 */
+		synchronized ConversionPlan get(ResultSetMetaData metaData) throws SQLException {
+
+			int columns = metaData.getColumnCount();
+			long hash = FNV_OFFSET;
+
+			for (int i = 1; i <= columns; i++){
+				hash = hash(hash, metaData.getColumnType(i));
+				hash = hash(hash, metaData.getColumnLabel(i));
+				hash = hash(hash, metaData.getColumnTypeName(i));
+				hash = hash(hash, metaData.getPrecision(i));
+				hash = hash(hash, metaData.getScale(i));
+			}
+			ConversionPlan plan = plans.get(hash);
+			if (plan == null){
+				plan = build(metaData, String.format("%016x", hash));
+				plans.put(hash, plan);
+			}
+			return plan;
+		}
+
+		/* The description and labels are only read for layouts not seen before */
+		private ConversionPlan build(ResultSetMetaData metaData, String version) throws SQLException {
+
+			int columns = metaData.getColumnCount();
+			ColumnReader[] readers = new ColumnReader[columns];
+			int[] types = new int[columns];
+			String[] labels = new String[columns];
+			StringBuilder description = new StringBuilder();
+
+			for (int i = 0; i < columns; i++){
+				types[i] = metaData.getColumnType(i + 1);
+				readers[i] = stringTypes.contains(types[i]) ? STRING : reader(types[i]);
+				labels[i] = metaData.getColumnLabel(i + 1);
+				if (i > 0){
+					description.append(',');
+				}
+				description.append(labels[i]).append(' ').append(metaData.getColumnTypeName(i + 1))
+						.append('(').append(metaData.getPrecision(i + 1)).append(',').append(metaData.getScale(i + 1))
+						.append(')');
+			}
+			return new ConversionPlan(readers, types, labels, version, description.toString());
+		}
+
+		private static long hash(long hash, int value) {
+			for (int shift = 0; shift < 32; shift += 8){
+				hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+			}
+			return hash;
+		}
+
+		private static long hash(long hash, String value) {
+			if (value != null){
+				for (int i = 0; i < value.length(); i++){
+					hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+				}
+			}
+			/* separator, so adjacent values can't be confused */
+			return (hash ^ 0xffff) * FNV_PRIME;
+		}
+	}
+}
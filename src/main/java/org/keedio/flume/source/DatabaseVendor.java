@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.util.Locale;
+
+/**
+ * Database engine queried by the source, detected from the hibernate dialect or the connection url,
+ * to write the SQL fragments that are not portable
+ */
+public enum DatabaseVendor {
+
+	MYSQL("mysql", "mariadb"),
+	POSTGRESQL("postgres"),
+	SQLSERVER("sqlserver", "jtds"),
+	ORACLE("oracle"),
+	DB2("db2"),
+	H2("h2"),
+	OTHER();
+
+	private final String[] names;
+
+	private DatabaseVendor(String... names) {
+		this.names = names;
+	}
+
+	/**
+	 * @param dialect Hibernate dialect class name, may be null
+	 * @param url JDBC connection url
+	 * @return The vendor named in the dialect, or else in the url, OTHER if unknown
+	 */
+	public static DatabaseVendor detect(String dialect, String url) {
+
+		if (dialect != null){
+			String dialectName = dialect.substring(dialect.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+			for (DatabaseVendor vendor : values()){
+				for (String name : vendor.names){
+					if (dialectName.startsWith(name)){
+						return vendor;
+					}
+				}
+			}
+		}
+
+		String lowerUrl = url == null ? "" : url.toLowerCase(Locale.ENGLISH);
+		for (DatabaseVendor vendor : values()){
+			for (String name : vendor.names){
+				if (lowerUrl.startsWith("jdbc:" + name)){
+					return vendor;
+				}
+			}
+		}
+		return OTHER;
+	}
+
+	/**
+	 * Statements explaining a query: the last one returns the plan
+	 * @param sql Query explained
+	 * @return Explain statements, null if the plan of the vendor can't be checked
+	 */
+	public String[] explain(String sql) {
+
+		switch (this){
+		case MYSQL:
+		case POSTGRESQL:
+		case H2:
+			return new String[] {"EXPLAIN " + sql};
+		case ORACLE:
+			return new String[] {"EXPLAIN PLAN FOR " + sql,
+					"SELECT PLAN_TABLE_OUTPUT FROM TABLE(DBMS_XPLAN.DISPLAY())"};
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Predicate selecting the rows of a shard: rows whose key modulo (or hash modulo) the shard count is the
+	 * shard index
+	 * @param key Key column or expression
+	 * @param hash true to hash the key, for non numeric or clustered keys
+	 * @param count Number of shards
+	 * @param index Shard selected, 0 based
+	 * @return SQL predicate, null if the vendor has no hash function
+	 */
+	public String shardPredicate(String key, boolean hash, int count, int index) {
+
+		if (!hash){
+			if (this == SQLSERVER){
+				return "ABS(" + key + ") % " + count + " = " + index;
+			}
+			return "MOD(ABS(" + key + "), " + count + ") = " + index;
+		}
+
+		switch (this){
+		case MYSQL:
+			return "MOD(CRC32(" + key + "), " + count + ") = " + index;
+		case POSTGRESQL:
+			return "MOD(ABS(CAST(HASHTEXT(CAST(" + key + " AS TEXT)) AS BIGINT)), " + count + ") = " + index;
+		case SQLSERVER:
+			return "ABS(CAST(CHECKSUM(" + key + ") AS BIGINT)) % " + count + " = " + index;
+		case ORACLE:
+			return "ORA_HASH(" + key + ", " + (count - 1) + ") = " + index;
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the database endpoint (primary or read replica) used by the source. <p>
+ * Endpoints are ordered by the routing policy: with <tt>primary</tt> the primary is used and replicas are
+ * only used when it fails; with <tt>prefer.replica</tt> replicas are used and the primary is only used when
+ * all of them fail. Failed endpoints are skipped until the failure timeout expires, and a failed replica
+ * rotates the replicas order.
+ */
+public class EndpointRouter {
+
+	/**
+	 * Endpoint routing policies
+	 */
+	public enum RoutingPolicy {
+		PRIMARY, PREFER_REPLICA;
+
+		/**
+		 * @param value Policy as written in flume configuration file: primary or prefer.replica
+		 */
+		public static RoutingPolicy fromString(String value) {
+			return valueOf(value.trim().toUpperCase().replace('.', '_'));
+		}
+	}
+
+	private final String primary;
+	private final List<String> replicas;
+	private final RoutingPolicy routingPolicy;
+	private final long failureTimeout;
+	private final Map<String, Long> failures = new HashMap<String, Long>();
+	private int rotation;
+
+	/**
+	 * @param primary Primary database url
+	 * @param replicas Read replica urls
+	 * @param routingPolicy Endpoint preference
+	 * @param failureTimeout ms to skip an endpoint after a failure
+	 */
+	public EndpointRouter(String primary, List<String> replicas, RoutingPolicy routingPolicy, long failureTimeout) {
+		this.primary = primary;
+		this.replicas = replicas;
+		this.routingPolicy = routingPolicy;
+		this.failureTimeout = failureTimeout;
+	}
+
+	/**
+	 * @return Endpoints in preference order, excluding the ones failed recently.
+	 * If every endpoint failed recently only the primary is returned.
+	 */
+	public synchronized List<String> getCandidates() {
+
+		List<String> ordered = new ArrayList<String>(replicas.size() + 1);
+		if (routingPolicy == RoutingPolicy.PRIMARY) {
+			ordered.add(primary);
+		}
+		for (int i = 0; i < replicas.size(); i++) {
+			ordered.add(replicas.get((rotation + i) % replicas.size()));
+		}
+		if (routingPolicy == RoutingPolicy.PREFER_REPLICA) {
+			ordered.add(primary);
+		}
+
+		long now = System.currentTimeMillis();
+		List<String> candidates = new ArrayList<String>(ordered.size());
+		for (String url : ordered) {
+			Long failedAt = failures.get(url);
+			if (failedAt == null || now - failedAt >= failureTimeout) {
+				candidates.add(url);
+			}
+		}
+
+		if (candidates.isEmpty()) {
+			candidates.add(primary);
+		}
+		return candidates;
+	}
+
+	public synchronized void markFailed(String url) {
+
+		failures.put(url, System.currentTimeMillis());
+		if (replicas.contains(url)) {
+			rotation = (rotation + 1) % replicas.size();
+		}
+	}
+
+	public synchronized void markSucceeded(String url) {
+		failures.remove(url);
+	}
+
+	public boolean isReplica(String url) {
+		return replicas.contains(url);
+	}
+
+	public boolean hasReplicas() {
+		return !replicas.isEmpty();
+	}
+
+	public String getPrimary() {
+		return primary;
+	}
+}
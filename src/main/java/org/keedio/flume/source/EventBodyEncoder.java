@@ -0,0 +1,543 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.keedio.flume.metrics.SqlSourceCounter;
+
+/**
+ * Encodes query result rows as CSV lines (the event bodies), writing the cells straight into a reusable
+ * byte buffer in the configured charset. <p>
+ * Output is the same as {@link com.opencsv.CSVWriter} with default quote and escape characters. LOB cells
+ * (Clob, Blob, or the Reader and InputStream of LONGVARCHAR and LONGVARBINARY columns) are encoded by
+ * {@link #encodeLob(Object)} while the result set is still on their row, as the locators and streams are
+ * not readable once the statement is closed. They are read in chunks through their character or
+ * binary streams into an array sized from their length, so their content is never held as a String:
+ * Clobs are always enclosed by quotes and Blobs are written as hexadecimal. LOBs longer than
+ * <tt>lob.max.size</tt> are truncated, or written to a file under <tt>lob.reference.path</tt> whose path is
+ * sent instead of the value. The encoded LOB is moved into the event body, which is the only copy kept.
+ */
+public class EventBodyEncoder {
+
+	/**
+	 * What to do with LOBs longer than the max size
+	 */
+	public enum LobOverflowPolicy {
+		TRUNCATE, REFERENCE
+	}
+
+	private static final char QUOTE = '"';
+	private static final int CHUNK_SIZE = 8192;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	static final String LOB_REFERENCE_PREFIX = "lob-ref:";
+	private static final int ESTIMATED_SCALAR_SIZE = 24;
+
+	private final char separator;
+	private final boolean encloseByQuotes;
+	private final Charset charset;
+	private final long lobMaxSize;
+	private final LobOverflowPolicy lobOverflowPolicy;
+	private final File lobReferenceDirectory;
+	private final SqlSourceCounter sqlSourceCounter;
+
+	private final ExactOutputStream buffer = new ExactOutputStream(1024);
+	private final Writer writer;
+	private EncodedLob[] lobs = new EncodedLob[4];
+	private int[] lobPositions = new int[4];
+	private final char[] chunk = new char[CHUNK_SIZE];
+	private final byte[] binaryChunk = new byte[CHUNK_SIZE / 2];
+
+	/**
+	 * @param sqlSourceHelper Contains the delimiter, quotes, charset and LOB configuration parameters
+	 * @param sqlSourceCounter Metric counters of the source, to count truncated and referenced LOBs
+	 */
+	public EventBodyEncoder(SQLSourceHelper sqlSourceHelper, SqlSourceCounter sqlSourceCounter) {
+		this.separator = sqlSourceHelper.getDelimiterEntry().charAt(0);
+		this.encloseByQuotes = sqlSourceHelper.encloseByQuotes();
+		this.charset = Charset.forName(sqlSourceHelper.getDefaultCharsetResultSet());
+		this.lobMaxSize = sqlSourceHelper.getLobMaxSize();
+		this.lobOverflowPolicy = sqlSourceHelper.getLobOverflowPolicy();
+		this.lobReferenceDirectory = sqlSourceHelper.getLobReferenceDirectory();
+		this.sqlSourceCounter = sqlSourceCounter;
+		this.writer = new OutputStreamWriter(buffer, charset);
+	}
+
+	/**
+	 * Encode a row as CSV line, without line end
+	 * @param row Row from a query result
+	 * @return Event body
+	 * @throws IOException if a LOB can't be read
+	 */
+	public byte[] encode(List<Object> row) throws IOException {
+
+		buffer.reset();
+		int lobCount = 0;
+		long lobBytes = 0;
+
+		for (int i = 0; i < row.size(); i++){
+			if (i > 0){
+				writer.write(separator);
+			}
+			Object value = row.get(i);
+			if (isLob(value)){
+				value = encodeLob(value);
+			}
+			if (value instanceof EncodedLob){
+				/* Only the position is recorded, the LOB is copied once into the body */
+				writer.flush();
+				if (lobCount == lobs.length){
+					lobs = Arrays.copyOf(lobs, lobCount * 2);
+					lobPositions = Arrays.copyOf(lobPositions, lobCount * 2);
+				}
+				lobs[lobCount] = (EncodedLob) value;
+				lobPositions[lobCount++] = buffer.size();
+				lobBytes += ((EncodedLob) value).length();
+			}
+			else {
+				writeCell(value);
+			}
+		}
+		writer.flush();
+
+		if (lobCount == 0){
+			return buffer.toByteArray();
+		}
+		if (buffer.size() + lobBytes > Integer.MAX_VALUE - 8){
+			throw new IOException("Event body of " + (buffer.size() + lobBytes) + " bytes is too large, set lob.max.size");
+		}
+
+		byte[] body = new byte[(int) (buffer.size() + lobBytes)];
+		int from = 0, to = 0;
+		for (int i = 0; i < lobCount; i++){
+			System.arraycopy(buffer.array(), from, body, to, lobPositions[i] - from);
+			to += lobPositions[i] - from;
+			from = lobPositions[i];
+			to = lobs[i].moveTo(body, to);
+			lobs[i] = null;
+		}
+		System.arraycopy(buffer.array(), from, body, to, buffer.size() - from);
+		return body;
+	}
+
+	/**
+	 * @param value Cell of a query result
+	 * @return true if the cell is a LOB locator or stream, to be read while its row is current
+	 */
+	public static boolean isLob(Object value) {
+		return value instanceof Clob || value instanceof Blob || value instanceof Reader || value instanceof InputStream;
+	}
+
+	/**
+	 * Encode a LOB cell, reading it through its locator or stream, and free the locator
+	 * @param lob Clob, Blob, Reader or InputStream
+	 * @return Encoded cell, to be written in the event body
+	 * @throws IOException if the LOB can't be read
+	 */
+	public EncodedLob encodeLob(Object lob) throws IOException {
+
+		try {
+			if (lob instanceof Clob){
+				return encodeClob((Clob) lob);
+			}
+			if (lob instanceof Blob){
+				return encodeBlob((Blob) lob);
+			}
+			return lob instanceof Reader ? encodeCharacterStream((Reader) lob) : encodeBinaryStream((InputStream) lob);
+		} catch (SQLException e) {
+			throw new IOException("Error reading LOB value", e);
+		} finally {
+			free(lob);
+		}
+	}
+
+	/**
+	 * Estimate the size of the encoded row without encoding it. LOB cells are counted once encoded.
+	 * @param row Row from a query result
+	 * @return Approximate bytes of the event body
+	 */
+	public static long estimateSize(List<Object> row) {
+
+		long size = row.size();
+		for (Object value : row){
+			if (value instanceof String){
+				size += ((String) value).length() + 2;
+			}
+			else if (value instanceof byte[]){
+				size += ((byte[]) value).length * 2;
+			}
+			else if (value instanceof EncodedLob){
+				size += ((EncodedLob) value).length();
+			}
+			else if (value != null){
+				/* Numbers, dates and timestamps */
+				size += ESTIMATED_SCALAR_SIZE;
+			}
+		}
+		return size;
+	}
+
+	private void writeCell(Object value) throws IOException {
+
+		if (value instanceof byte[]){
+			byte[] bytes = (byte[]) value;
+			writeQuoteIfEnclosed(writer);
+			for (int i = 0; i < bytes.length; i++){
+				writer.write(HEX[(bytes[i] >> 4) & 0xF]);
+				writer.write(HEX[bytes[i] & 0xF]);
+			}
+			writeQuoteIfEnclosed(writer);
+		}
+		else {
+			writeText(writer, value == null ? "" : value.toString());
+		}
+	}
+
+	private void writeText(Writer out, String value) throws IOException {
+
+		boolean special = value.indexOf(QUOTE) != -1 || value.indexOf(separator) != -1
+				|| value.indexOf('\n') != -1 || value.indexOf('\r') != -1;
+
+		if (encloseByQuotes || special){
+			out.write(QUOTE);
+		}
+		if (special){
+			writeEscaped(out, value.toCharArray(), value.length());
+		}
+		else {
+			out.write(value);
+		}
+		if (encloseByQuotes || special){
+			out.write(QUOTE);
+		}
+	}
+
+	/* Write the chars doubling the quote chars */
+	private static void writeEscaped(Writer out, char[] chars, int length) throws IOException {
+
+		int start = 0;
+		for (int i = 0; i < length; i++){
+			if (chars[i] == QUOTE){
+				out.write(chars, start, i - start + 1);
+				start = i;
+			}
+		}
+		out.write(chars, start, length - start);
+	}
+
+	private EncodedLob encodeClob(Clob clob) throws IOException, SQLException {
+
+		long length = clob.length();
+		if (lobMaxSize > 0 && length > lobMaxSize && lobOverflowPolicy == LobOverflowPolicy.REFERENCE){
+			return encodeReference(writeReference(null, 0, clob.getCharacterStream()));
+		}
+		return encodeCharacters(clob.getCharacterStream(), length);
+	}
+
+	/*
+	 * A stream has no length: up to lob.max.size + 1 chars are buffered to tell whether it overflows, and the
+	 * buffered chars are written first to the reference file
+	 */
+	private EncodedLob encodeCharacterStream(Reader reader) throws IOException {
+
+		CharBuffer buffered = new CharBuffer();
+		long limit = lobMaxSize > 0 ? lobMaxSize + 1 : Long.MAX_VALUE;
+		try {
+			int read;
+			while (buffered.size() < limit
+					&& (read = reader.read(chunk, 0, (int) Math.min(chunk.length, limit - buffered.size()))) != -1){
+				buffered.write(chunk, 0, read);
+			}
+			if (lobMaxSize > 0 && buffered.size() > lobMaxSize && lobOverflowPolicy == LobOverflowPolicy.REFERENCE){
+				return encodeReference(writeReference(buffered.array(), buffered.size(), reader));
+			}
+		} finally {
+			reader.close();
+		}
+		return encodeCharacters(buffered.reader(), buffered.size());
+	}
+
+	private EncodedLob encodeCharacters(Reader reader, long length) throws IOException {
+
+		long remaining = lobMaxSize > 0 ? Math.min(length, lobMaxSize) : length;
+		if (remaining < length){
+			sqlSourceCounter.incrementLobTruncatedCount();
+		}
+
+		/* Exact size for single byte chars without quotes */
+		ExactOutputStream output = new ExactOutputStream(capacity(remaining + 2));
+		Writer out = new OutputStreamWriter(output, charset);
+		try {
+			out.write(QUOTE);
+			int read;
+			while (remaining > 0 && (read = reader.read(chunk, 0, (int) Math.min(chunk.length, remaining))) != -1){
+				writeEscaped(out, chunk, read);
+				remaining -= read;
+			}
+			out.write(QUOTE);
+			out.flush();
+		} finally {
+			reader.close();
+		}
+		return new EncodedLob(output.toExactArray());
+	}
+
+	private EncodedLob encodeBlob(Blob blob) throws IOException, SQLException {
+
+		long length = blob.length();
+		if (lobMaxSize > 0 && length > lobMaxSize && lobOverflowPolicy == LobOverflowPolicy.REFERENCE){
+			return encodeReference(writeReference(null, 0, blob.getBinaryStream()));
+		}
+		return encodeBytes(blob.getBinaryStream(), length);
+	}
+
+	/* Buffered as the character streams */
+	private EncodedLob encodeBinaryStream(InputStream input) throws IOException {
+
+		ExactOutputStream buffered = new ExactOutputStream(binaryChunk.length);
+		long limit = lobMaxSize > 0 ? lobMaxSize + 1 : Long.MAX_VALUE;
+		try {
+			int read;
+			while (buffered.size() < limit
+					&& (read = input.read(binaryChunk, 0, (int) Math.min(binaryChunk.length, limit - buffered.size()))) != -1){
+				buffered.write(binaryChunk, 0, read);
+			}
+			if (lobMaxSize > 0 && buffered.size() > lobMaxSize && lobOverflowPolicy == LobOverflowPolicy.REFERENCE){
+				return encodeReference(writeReference(buffered.array(), buffered.size(), input));
+			}
+		} finally {
+			input.close();
+		}
+		return encodeBytes(new ByteArrayInputStream(buffered.array(), 0, buffered.size()), buffered.size());
+	}
+
+	private EncodedLob encodeBytes(InputStream input, long length) throws IOException {
+
+		long remaining = lobMaxSize > 0 ? Math.min(length, lobMaxSize) : length;
+		if (remaining < length){
+			sqlSourceCounter.incrementLobTruncatedCount();
+		}
+
+		ExactOutputStream output = new ExactOutputStream(capacity(remaining * 2 + (encloseByQuotes ? 2 : 0)));
+		Writer out = new OutputStreamWriter(output, charset);
+		try {
+			writeQuoteIfEnclosed(out);
+			int read;
+			while (remaining > 0
+					&& (read = input.read(binaryChunk, 0, (int) Math.min(binaryChunk.length, remaining))) != -1){
+				for (int i = 0; i < read; i++){
+					chunk[i * 2] = HEX[(binaryChunk[i] >> 4) & 0xF];
+					chunk[i * 2 + 1] = HEX[binaryChunk[i] & 0xF];
+				}
+				out.write(chunk, 0, read * 2);
+				remaining -= read;
+			}
+			writeQuoteIfEnclosed(out);
+			out.flush();
+		} finally {
+			input.close();
+		}
+		return new EncodedLob(output.toExactArray());
+	}
+
+	private EncodedLob encodeReference(File reference) throws IOException {
+
+		ExactOutputStream output = new ExactOutputStream(64);
+		Writer out = new OutputStreamWriter(output, charset);
+		writeText(out, LOB_REFERENCE_PREFIX + reference.getAbsolutePath());
+		out.flush();
+		return new EncodedLob(output.toExactArray());
+	}
+
+	private static int capacity(long size) throws IOException {
+		if (size > Integer.MAX_VALUE - 8){
+			throw new IOException("LOB of " + size + " bytes is too large, set lob.max.size");
+		}
+		return (int) size;
+	}
+
+	private void writeQuoteIfEnclosed(Writer out) throws IOException {
+		if (encloseByQuotes){
+			out.write(QUOTE);
+		}
+	}
+
+	/* Release the resources of the locator, not supported by some drivers */
+	private static void free(Object lob) {
+		try {
+			if (lob instanceof Clob){
+				((Clob) lob).free();
+			}
+			else if (lob instanceof Blob){
+				((Blob) lob).free();
+			}
+		} catch (SQLException | AbstractMethodError e) {
+			/* nothing to release */
+		}
+	}
+
+	/* Stream a LOB to a new file in the reference directory, after the chars already read from it, if any */
+	private File writeReference(char[] head, int headLength, Reader reader) throws IOException {
+
+		File reference = newReferenceFile();
+		Writer fileWriter = new OutputStreamWriter(new FileOutputStream(reference), charset);
+		try {
+			if (head != null){
+				fileWriter.write(head, 0, headLength);
+			}
+			int read;
+			while ((read = reader.read(chunk)) != -1){
+				fileWriter.write(chunk, 0, read);
+			}
+		} finally {
+			fileWriter.close();
+			reader.close();
+		}
+		return reference;
+	}
+
+	private File writeReference(byte[] head, int headLength, InputStream input) throws IOException {
+
+		File reference = newReferenceFile();
+		OutputStream output = new FileOutputStream(reference);
+		try {
+			if (head != null){
+				output.write(head, 0, headLength);
+			}
+			int read;
+			while ((read = input.read(binaryChunk)) != -1){
+				output.write(binaryChunk, 0, read);
+			}
+		} finally {
+			output.close();
+			input.close();
+		}
+		return reference;
+	}
+
+	private File newReferenceFile() throws IOException {
+
+		if (!lobReferenceDirectory.isDirectory() && !lobReferenceDirectory.mkdirs()){
+			throw new IOException("Can't create LOB reference directory " + lobReferenceDirectory);
+		}
+		sqlSourceCounter.incrementLobReferencedCount();
+		return new File(lobReferenceDirectory, UUID.randomUUID().toString() + ".lob");
+	}
+
+	/**
+	 * LOB cell already encoded, in an array moved into the event body when the row is encoded. It is
+	 * identified by a hash of its content, kept once the content is moved.
+	 */
+	public static final class EncodedLob {
+
+		private byte[] bytes;
+		private final int length;
+		private final long hash;
+
+		EncodedLob(byte[] bytes) {
+			this.bytes = bytes;
+			this.length = bytes.length;
+			long h = 0xcbf29ce484222325L;
+			for (byte b : bytes){
+				h = (h ^ (b & 0xff)) * 0x100000001b3L;
+			}
+			this.hash = h;
+		}
+
+		/**
+		 * @return Encoded length in bytes
+		 */
+		public int length() {
+			return length;
+		}
+
+		/* Copy the content into the body and drop it, returning the position after it */
+		int moveTo(byte[] body, int position) {
+			if (bytes == null){
+				throw new IllegalStateException("LOB cell already written to an event body");
+			}
+			System.arraycopy(bytes, 0, body, position, length);
+			bytes = null;
+			return position + length;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ (hash >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof EncodedLob && ((EncodedLob) other).hash == hash && ((EncodedLob) other).length == length;
+		}
+
+		@Override
+		public String toString() {
+			return "lob:" + length + ":" + String.format("%016x", hash);
+		}
+	}
+
+	/**
+	 * Byte array stream giving access to its array, returned without copy when its initial size was exact
+	 */
+	private static class ExactOutputStream extends ByteArrayOutputStream {
+
+		ExactOutputStream(int size) {
+			super(size);
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		byte[] toExactArray() {
+			return count == buf.length ? buf : toByteArray();
+		}
+	}
+
+	/* Chars buffered from a stream, read back without copying them */
+	private static class CharBuffer extends CharArrayWriter {
+
+		char[] array() {
+			return buf;
+		}
+
+		Reader reader() {
+			return new CharArrayReader(buf, 0, count);
+		}
+	}
+}
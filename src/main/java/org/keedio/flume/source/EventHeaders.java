@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Small header map of the events, backed by two arrays sized for the headers set by the source. <p>
+ * Events carry a handful of headers, so a linear scan is faster than hashing and there is no entry
+ * object per header. Keys and batch wide values (table name, batch timestamp) are shared among events.
+ * The map grows if an interceptor adds headers downstream.
+ */
+public class EventHeaders extends AbstractMap<String, String> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String[] keys;
+	private String[] values;
+	private int size;
+
+	/**
+	 * @param capacity Headers expected
+	 */
+	public EventHeaders(int capacity) {
+		keys = new String[capacity];
+		values = new String[capacity];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public String get(Object key) {
+		int index = indexOf(key);
+		return index < 0 ? null : values[index];
+	}
+
+	@Override
+	public String put(String key, String value) {
+
+		int index = indexOf(key);
+		if (index >= 0){
+			String previous = values[index];
+			values[index] = value;
+			return previous;
+		}
+		if (size == keys.length){
+			keys = Arrays.copyOf(keys, size * 2 + 1);
+			values = Arrays.copyOf(values, size * 2 + 1);
+		}
+		keys[size] = key;
+		values[size++] = value;
+		return null;
+	}
+
+	@Override
+	public String remove(Object key) {
+
+		int index = indexOf(key);
+		if (index < 0){
+			return null;
+		}
+		String previous = values[index];
+		removeAt(index);
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(keys, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+	}
+
+	@Override
+	public Set<Entry<String, String>> entrySet() {
+		return new AbstractSet<Entry<String, String>>() {
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new Iterator<Entry<String, String>>() {
+
+					private int next, last = -1;
+
+					@Override
+					public boolean hasNext() {
+						return next < size;
+					}
+
+					@Override
+					public Entry<String, String> next() {
+						if (next >= size){
+							throw new NoSuchElementException();
+						}
+						last = next++;
+						return new SimpleEntry<String, String>(keys[last], values[last]) {
+							private static final long serialVersionUID = 1L;
+							private final int index = last;
+
+							@Override
+							public String setValue(String value) {
+								values[index] = value;
+								return super.setValue(value);
+							}
+						};
+					}
+
+					@Override
+					public void remove() {
+						if (last < 0){
+							throw new IllegalStateException();
+						}
+						removeAt(last);
+						next = last;
+						last = -1;
+					}
+				};
+			}
+		};
+	}
+
+	private int indexOf(Object key) {
+
+		for (int i = 0; i < size; i++){
+			if (keys[i] == key || keys[i].equals(key)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void removeAt(int index) {
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(values, index + 1, values, index, size - index - 1);
+		keys[--size] = null;
+		values[size] = null;
+	}
+}
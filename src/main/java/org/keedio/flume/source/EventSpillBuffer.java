@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.SimpleEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of events rejected by the channel, backed by a memory-mapped file. <p>
+ * Events are serialized into the mapped region and drained in order, their bodies copied back to arrays
+ * as Flume events need them. The queue content is only meaningful while the source runs: the file is
+ * truncated when the buffer is created, since the events spilled before a restart are queried again from
+ * the last committed index. The region is unmapped when the buffer is closed.
+ */
+public class EventSpillBuffer {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EventSpillBuffer.class);
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final int capacity;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private int readPosition, writePosition, size;
+	private boolean closed;
+	/* Not a monitor: a virtual thread blocked on the buffer releases its carrier */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * @param file File mapped by the buffer, truncated if it exists
+	 * @param capacity Max bytes of spilled events
+	 * @throws IOException if the file can't be mapped
+	 */
+	public EventSpillBuffer(File file, int capacity) throws IOException {
+		this.capacity = capacity;
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	/**
+	 * Append a batch of events, all or none
+	 * @param events Events rejected by the channel
+	 * @return false if the batch doesn't fit in the buffer
+	 */
+	public boolean append(List<Event> events) {
+		lock.lock();
+		try {
+			if (closed){
+				return false;
+			}
+
+			List<byte[]> encodedHeaders = new ArrayList<byte[]>(events.size() * 2);
+			int bytes = 0;
+			for (Event event : events){
+				bytes += 8 + event.getBody().length;
+				for (Map.Entry<String, String> header : event.getHeaders().entrySet()){
+					byte[] key = header.getKey().getBytes(UTF_8);
+					byte[] value = header.getValue().getBytes(UTF_8);
+					encodedHeaders.add(key);
+					encodedHeaders.add(value);
+					bytes += 8 + key.length + value.length;
+				}
+			}
+
+			if (writePosition + bytes > capacity){
+				compact();
+				if (writePosition + bytes > capacity){
+					return false;
+				}
+			}
+
+			buffer.position(writePosition);
+			int header = 0;
+			for (Event event : events){
+				buffer.putInt(event.getHeaders().size());
+				for (int i = 0; i < event.getHeaders().size(); i++){
+					byte[] key = encodedHeaders.get(header++);
+					byte[] value = encodedHeaders.get(header++);
+					buffer.putInt(key.length).put(key).putInt(value.length).put(value);
+				}
+				buffer.putInt(event.getBody().length).put(event.getBody());
+			}
+			writePosition = buffer.position();
+			size += events.size();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read the oldest events, without removing them
+	 * @param maxEvents Max number of events read
+	 * @return Oldest events, empty if the buffer is empty
+	 */
+	public List<Event> peek(int maxEvents) {
+		lock.lock();
+		try {
+			List<Event> events = new ArrayList<Event>(Math.min(maxEvents, size));
+			if (closed){
+				return events;
+			}
+			buffer.position(readPosition);
+			while (events.size() < maxEvents && buffer.position() < writePosition){
+				int headerCount = buffer.getInt();
+				Map<String, String> headers = new HashMap<String, String>(headerCount * 2);
+				for (int i = 0; i < headerCount; i++){
+					headers.put(readString(), readString());
+				}
+				byte[] body = new byte[buffer.getInt()];
+				buffer.get(body);
+
+				Event event = new SimpleEvent();
+				event.setHeaders(headers);
+				event.setBody(body);
+				events.add(event);
+			}
+			return events;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the oldest events, once they are delivered
+	 * @param count Number of events removed
+	 */
+	public void remove(int count) {
+		lock.lock();
+		try {
+			if (closed){
+				return;
+			}
+			buffer.position(readPosition);
+			for (int i = 0; i < count && buffer.position() < writePosition; i++){
+				int headerCount = buffer.getInt();
+				for (int j = 0; j < headerCount * 2; j++){
+					skip(buffer.getInt());
+				}
+				skip(buffer.getInt());
+				size--;
+			}
+			readPosition = buffer.position();
+
+			if (readPosition == writePosition){
+				clear();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discard all the events
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			readPosition = 0;
+			writePosition = 0;
+			size = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		lock.lock();
+		try {
+			return size == 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Fraction of the capacity used by the spilled events
+	 */
+	public double getUsage() {
+		lock.lock();
+		try {
+			return (double) (writePosition - readPosition) / capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close the file and unmap the region, the buffer is not usable any more
+	 * @throws IOException if the file can't be closed
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed){
+				return;
+			}
+			clear();
+			closed = true;
+			file.close();
+			unmap(buffer);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Release the mapping now instead of when the buffer is garbage collected, so the file can be deleted
+	 * and mapped again by a reconfigured source. Uses Unsafe.invokeCleaner on Java 9 or later, the buffer
+	 * cleaner on older versions, and leaves the mapping to the garbage collector if neither is available.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (Exception e) {
+			/* Java 8 or older */
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (Exception e) {
+			LOG.debug("Spill buffer can't be unmapped, it will be when garbage collected", e);
+		}
+	}
+
+	/* Move the pending events to the start of the buffer */
+	private void compact() {
+
+		buffer.limit(writePosition).position(readPosition);
+		buffer.compact();
+		writePosition = buffer.position();
+		readPosition = 0;
+		buffer.clear();
+	}
+
+	private String readString() {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private void skip(int bytes) {
+		buffer.position(buffer.position() + bytes);
+	}
+}
@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java Flight Recorder events of the poll cycle, defined at runtime through <tt>jdk.jfr.EventFactory</tt>. <p>
+ * The JFR API is used by reflection, since the source is built for Java 7: on JVMs without it (or without
+ * <tt>EventFactory</tt>, added in Java 12) every event is a no-op. Events are only filled and committed while
+ * a recording enables them, so they can stay on in production and be read in JDK Mission Control along with
+ * the GC and lock events.
+ */
+public class FlightRecorderEvents {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FlightRecorderEvents.class);
+
+	private static final String PACKAGE = "org.keedio.flume.source.";
+	private static final String[] CATEGORY = {"Flume", "SQL Source"};
+	private static final String NANOSECONDS = "NANOSECONDS";
+	private static final String BYTES = "BYTES";
+
+	/**
+	 * Poll cycle of <tt>SQLSource.process()</tt>
+	 */
+	public static final EventType POLL = new EventType("Poll", "SQL Source Poll",
+			new Field("source", String.class, "Source", null),
+			new Field("watermarkBefore", String.class, "Watermark Before", null),
+			new Field("watermarkAfter", String.class, "Watermark After", null),
+			new Field("rows", int.class, "Rows", null),
+			new Field("events", int.class, "Events", null),
+			new Field("bytes", long.class, "Bytes", BYTES),
+			new Field("queryTime", long.class, "Query Time", NANOSECONDS),
+			new Field("conversionTime", long.class, "Conversion Time", NANOSECONDS),
+			new Field("channelTime", long.class, "Channel Put Time", NANOSECONDS),
+			new Field("reconnects", int.class, "Reconnects", null),
+			new Field("rolledBack", boolean.class, "Rolled Back", null));
+
+	/**
+	 * Selection query of <tt>HibernateHelper.executeQuery()</tt>, retries included
+	 */
+	public static final EventType QUERY = new EventType("Query", "SQL Source Query",
+			new Field("source", String.class, "Source", null),
+			new Field("endpoint", String.class, "Endpoint", null),
+			new Field("rows", int.class, "Rows", null),
+			new Field("bytes", long.class, "Bytes", BYTES),
+			new Field("fetchSize", int.class, "Fetch Size", null),
+			new Field("attempts", int.class, "Attempts", null),
+			new Field("reconnects", int.class, "Reconnects", null),
+			new Field("failed", boolean.class, "Failed", null));
+
+	/**
+	 * Write of the status file, lease checkpoint and deduplication state
+	 */
+	public static final EventType CHECKPOINT = new EventType("Checkpoint", "SQL Source Checkpoint",
+			new Field("source", String.class, "Source", null),
+			new Field("watermark", String.class, "Watermark", null),
+			new Field("lease", boolean.class, "Lease Checkpoint", null));
+
+	private static final Method NEW_EVENT, IS_ENABLED, BEGIN, SET, COMMIT;
+
+	static {
+		Method newEvent = null, isEnabled = null, begin = null, set = null, commit = null;
+		try {
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			newEvent = eventFactory.getMethod("newEvent");
+			isEnabled = event.getMethod("isEnabled");
+			begin = event.getMethod("begin");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+
+			for (EventType type : Arrays.asList(POLL, QUERY, CHECKPOINT)){
+				type.factory = createFactory(eventFactory, type);
+			}
+		} catch (Throwable e) {
+			LOG.debug("Flight Recorder events not available", e);
+			newEvent = null;
+		}
+		NEW_EVENT = newEvent;
+		IS_ENABLED = isEnabled;
+		BEGIN = begin;
+		SET = set;
+		COMMIT = commit;
+	}
+
+	private FlightRecorderEvents() {
+	}
+
+	/**
+	 * @return true if the JVM supports the events
+	 */
+	public static boolean isAvailable() {
+		return NEW_EVENT != null;
+	}
+
+	/**
+	 * Start an event, its duration ends when it is committed
+	 * @param type Event type
+	 * @return The event started, a no-op event if JFR is not available or no recording enables the type
+	 */
+	public static TracedEvent begin(EventType type) {
+
+		if (NEW_EVENT == null){
+			return new TracedEvent(type, null);
+		}
+		try {
+			Object event = NEW_EVENT.invoke(type.factory);
+			if (!(Boolean) IS_ENABLED.invoke(event)){
+				return new TracedEvent(type, null);
+			}
+			BEGIN.invoke(event);
+			return new TracedEvent(type, event);
+		} catch (Exception e) {
+			LOG.debug("Error starting Flight Recorder event", e);
+			return new TracedEvent(type, null);
+		}
+	}
+
+	/* Define the event class of the type, with its name, label, category and fields */
+	private static Object createFactory(Class<?> eventFactory, EventType type) throws Exception {
+
+		Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+		Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+		Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+		Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+		List<Object> annotations = new ArrayList<Object>();
+		annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), PACKAGE + type.name));
+		annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), type.label));
+		annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Category"), CATEGORY));
+
+		List<Object> fields = new ArrayList<Object>();
+		for (Field field : type.fields){
+			List<Object> fieldAnnotations = new ArrayList<Object>();
+			fieldAnnotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), field.label));
+			if (NANOSECONDS.equals(field.unit)){
+				fieldAnnotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Timespan"), NANOSECONDS));
+			}
+			else if (BYTES.equals(field.unit)){
+				fieldAnnotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.DataAmount"), BYTES));
+			}
+			fields.add(newField.newInstance(field.type, field.name, fieldAnnotations));
+		}
+
+		return eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+	}
+
+	/**
+	 * Event field definition
+	 */
+	static class Field {
+
+		private final String name, label, unit;
+		private final Class<?> type;
+
+		Field(String name, Class<?> type, String label, String unit) {
+			this.name = name;
+			this.type = type;
+			this.label = label;
+			this.unit = unit;
+		}
+	}
+
+	/**
+	 * Event type, named <tt>org.keedio.flume.source.&lt;name&gt;</tt> in the recordings
+	 */
+	public static class EventType {
+
+		private final String name, label;
+		private final List<Field> fields;
+		private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		private Object factory;
+
+		EventType(String name, String label, Field... fields) {
+			this.name = name;
+			this.label = label;
+			this.fields = Collections.unmodifiableList(Arrays.asList(fields));
+			for (int i = 0; i < fields.length; i++){
+				indexes.put(fields[i].name, i);
+			}
+		}
+
+		public String getName() {
+			return PACKAGE + name;
+		}
+	}
+
+	/**
+	 * Event being recorded. Fields are set by name and the event is written to the recording on commit.
+	 * Every method does nothing when the event is not recorded.
+	 */
+	public static class TracedEvent {
+
+		private final EventType type;
+		private final Object event;
+
+		TracedEvent(EventType type, Object event) {
+			this.type = type;
+			this.event = event;
+		}
+
+		/**
+		 * @return true if the event is recorded, to skip computing its fields otherwise
+		 */
+		public boolean isRecorded() {
+			return event != null;
+		}
+
+		/**
+		 * @param field Field name
+		 * @param value Field value, of the field type
+		 * @return This event
+		 */
+		public TracedEvent set(String field, Object value) {
+
+			if (event == null){
+				return this;
+			}
+			Integer index = type.indexes.get(field);
+			if (index == null){
+				throw new IllegalArgumentException("Unknown field " + field + " of event " + type.getName());
+			}
+			try {
+				SET.invoke(event, index, value);
+			} catch (Exception e) {
+				LOG.debug("Error setting Flight Recorder event field " + field, e);
+			}
+			return this;
+		}
+
+		public void commit() {
+
+			if (event == null){
+				return;
+			}
+			try {
+				COMMIT.invoke(event);
+			} catch (Exception e) {
+				LOG.debug("Error committing Flight Recorder event", e);
+			}
+		}
+	}
+}
@@ -1,21 +1,44 @@
 package org.keedio.flume.source;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.hibernate.CacheMode;
-import org.hibernate.Query;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
-import org.hibernate.service.ServiceRegistry;
-import org.hibernate.transform.Transformers;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.pagination.LimitHandler;
+import org.hibernate.engine.spi.RowSelection;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jdbc.ReturningWork;
+import org.hibernate.type.StandardBasicTypes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.flume.Context;
+import org.keedio.flume.metrics.SqlSourceCounter;
+import org.keedio.flume.source.FlightRecorderEvents.TracedEvent;
+import org.keedio.flume.source.SQLErrorClassifier.ErrorType;
 
 /**
  * Helper class to manage hibernate sessions and perform queries
@@ -27,20 +50,40 @@ public class HibernateHelper {
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(HibernateHelper.class);
+	/* Rows between fetch size adjustments when the driver default fetch size is used */
+	private static final int ADAPT_INTERVAL = 1000;
 
-	private static SessionFactory factory;
+	private SessionFactory factory;
+	private Map<String, SessionFactory> factories = new HashMap<String, SessionFactory>();
+	private String currentUrl;
+	private boolean lastQueryFailed;
+	private ConversionPlan.Cache conversionPlans;
+	private ConversionPlan conversionPlan;
+	private boolean byteBudgetReached;
+	private long averageRowSize;
+	private long lastQueryBytes;
+	private int lastQueryReconnects, lastFetchSize;
 	private Session session;
-	private ServiceRegistry serviceRegistry;
 	private Configuration config;
+	private String connectionIdentity;
 	private SQLSourceHelper sqlSourceHelper;
+	private SqlSourceCounter sqlSourceCounter;
+	private CircuitBreaker circuitBreaker;
+	private EndpointRouter endpointRouter;
 
 	/**
 	 * Constructor to initialize hibernate configuration parameters
 	 * @param sqlSourceHelper Contains the configuration parameters from flume config file
+	 * @param sqlSourceCounter Metric counters of the source
 	 */
-	public HibernateHelper(SQLSourceHelper sqlSourceHelper) {
+	public HibernateHelper(SQLSourceHelper sqlSourceHelper, SqlSourceCounter sqlSourceCounter) {
 
 		this.sqlSourceHelper = sqlSourceHelper;
+		this.sqlSourceCounter = sqlSourceCounter;
+		this.circuitBreaker = new CircuitBreaker(sqlSourceHelper.getCircuitBreakerFailures(),
+				sqlSourceHelper.getCircuitBreakerResetTimeout());
+		this.endpointRouter = new EndpointRouter(sqlSourceHelper.getConnectionURL(), sqlSourceHelper.getReplicaURLs(),
+				sqlSourceHelper.getRoutingPolicy(), sqlSourceHelper.getRoutingFailureTimeout());
 		Context context = sqlSourceHelper.getContext();
 
 		/* check for mandatory propertis */
@@ -56,19 +99,92 @@ public class HibernateHelper {
 			e = it.next();
 			config.setProperty("hibernate." + e.getKey(), e.getValue());
 		}
+		
+		/* Sources reconfigured with the same connection properties share the session factory */
+		connectionIdentity = sqlSourceHelper.getSourceName() + new TreeMap<String, String>(hibernateProperties);
 
 	}
 
 	/**
-	 * Connect to database using hibernate
+	 * Connect to database using hibernate, to the current endpoint or to the primary if none was chosen yet
 	 */
 	public void establishSession() {
+		connect(currentUrl == null ? endpointRouter.getPrimary() : currentUrl);
+	}
+
+	/*
+	 * Open a session to the endpoint, acquiring its session factory if it does not exist yet
+	 */
+	private void connect(String url) {
+
+		LOG.info("Opening hibernate session to " + url);
+
+		factory = factories.get(url);
+		if (factory == null || factory.isClosed()){
+			config.setProperty("hibernate.connection.url", url);
+			factory = SessionFactoryRegistry.acquire(connectionIdentity + url, config);
+			factories.put(url, factory);
+		}
+		currentUrl = url;
+		openSession();
+	}
+
+	private void switchTo(String url) {
+
+		if (url.equals(currentUrl)){
+			return;
+		}
+		try {
+			session.close();
+		} catch (Exception e) {
+			LOG.debug("Error closing session to " + currentUrl, e);
+		}
+		connect(url);
+	}
+
+	/**
+	 * Choose the endpoint to query following the routing policy, skipping failed endpoints
+	 * and replicas lagging more than the configured max lag
+	 */
+	public void route() {
 
-		LOG.info("Opening hibernate session");
+		if (!endpointRouter.hasReplicas()){
+			return;
+		}
+
+		for (String url : endpointRouter.getCandidates()){
+			try {
+				switchTo(url);
+				if (!endpointRouter.isReplica(url) || isReplicaLagAcceptable()){
+					return;
+				}
+				LOG.info("Replica " + url + " lag over " + sqlSourceHelper.getReplicaMaxLag() + " seconds, skipping it");
+			} catch (Exception e) {
+				LOG.warn("Error connecting to " + url + ", skipping it", e);
+				endpointRouter.markFailed(url);
+			}
+		}
+		switchTo(endpointRouter.getPrimary());
+	}
+
+	private boolean isReplicaLagAcceptable() {
+
+		if (sqlSourceHelper.getReplicaLagQuery() == null || sqlSourceHelper.getReplicaMaxLag() <= 0){
+			return true;
+		}
+		String lag = executeScalarQuery(sqlSourceHelper.getReplicaLagQuery());
+		return lag != null && Double.parseDouble(lag) <= sqlSourceHelper.getReplicaMaxLag();
+	}
+
+	/**
+	 * @return Url of the endpoint currently queried
+	 */
+	public String getCurrentURL() {
+		return currentUrl;
+	}
+
+	private void openSession() {
 
-		serviceRegistry = new StandardServiceRegistryBuilder()
-				.applySettings(config.getProperties()).build();
-		factory = config.buildSessionFactory(serviceRegistry);
 		session = factory.openSession();
 		session.setCacheMode(CacheMode.IGNORE);
 		
@@ -83,53 +199,56 @@ public class HibernateHelper {
 		LOG.info("Closing hibernate session");
 
 		session.close();
-		factory.close();
+		for (SessionFactory endpointFactory : factories.values()){
+			SessionFactoryRegistry.release(endpointFactory);
+		}
+		factories.clear();
 	}
 
 	/**
-	 * Execute the selection query in the database
+	 * Execute the selection query in the database. <p>
+	 * Transient errors are retried with jittered exponential backoff, connection errors validate
+	 * the connection before retrying, and SQL errors are not retried.
 	 * @return The query result. Each Object is a cell content. <p>
 	 * The cell contents use database types (date,int,string...), 
 	 * keep in mind in case of future conversions/castings.
 	 * @throws InterruptedException 
 	 */
-	@SuppressWarnings("unchecked")
 	public List<List<Object>> executeQuery() throws InterruptedException {
 		
 		List<List<Object>> rowsList = new ArrayList<List<Object>>() ;
-		Query query;
+		byteBudgetReached = false;
+		lastQueryBytes = 0;
+		lastQueryReconnects = 0;
 		
-		if (!session.isConnected()){
-			resetConnection();
-		}
-				
-		if (sqlSourceHelper.isCustomQuerySet()){
-			
-			query = session.createSQLQuery(sqlSourceHelper.buildQuery());
-			
-			if (sqlSourceHelper.getMaxRows() != 0){
-				query = query.setMaxResults(sqlSourceHelper.getMaxRows());
-			}			
-		}
-		else
-		{
-			query = session
-					.createSQLQuery(sqlSourceHelper.getQuery())
-					.setFirstResult(Integer.parseInt(sqlSourceHelper.getCurrentIndex()));
+		TracedEvent queryEvent = FlightRecorderEvents.begin(FlightRecorderEvents.QUERY);
+		int attempt = 0;
+		try {
+			if (!session.isConnected()){
+				resetConnection();
+			}
 			
-			if (sqlSourceHelper.getMaxRows() != 0){
-				query = query.setMaxResults(sqlSourceHelper.getMaxRows());
+			for (; ; attempt++){
+				try {
+					rowsList = runQuery();
+					circuitBreaker.recordSuccess();
+					endpointRouter.markSucceeded(currentUrl);
+					lastQueryFailed = false;
+					break;
+				}catch (Exception e){
+					if (!retry(e, attempt)){
+						return rowsList;
+					}
+				}
 			}
+		} finally {
+			queryEvent.set("source", sqlSourceHelper.getSourceName()).set("endpoint", currentUrl)
+					.set("rows", rowsList.size()).set("bytes", lastQueryBytes).set("fetchSize", lastFetchSize)
+					.set("attempts", attempt + 1).set("reconnects", lastQueryReconnects)
+					.set("failed", lastQueryFailed).commit();
 		}
 		
-		try {
-			rowsList = query.setFetchSize(sqlSourceHelper.getMaxRows()).setResultTransformer(Transformers.TO_LIST).list();
-		}catch (Exception e){
-			LOG.error("Exception thrown, resetting connection.",e);
-			resetConnection();
-		}
-		
-		if (!rowsList.isEmpty()){
+		if (!rowsList.isEmpty() && sqlSourceHelper.getTimeWindow() == null){
 			if (sqlSourceHelper.isCustomQuerySet()){
 					sqlSourceHelper.setCurrentIndex(rowsList.get(rowsList.size()-1).get(0).toString());
 			}
@@ -142,10 +261,542 @@ public class HibernateHelper {
 		
 		return rowsList;
 	}
+	
+	/*
+	 * Handle a failed attempt of the selection query: wait for the next attempt, recovering the connection
+	 * or rotating the endpoint if needed
+	 * @return false if the query must not be retried
+	 */
+	private boolean retry(Exception e, int attempt) throws InterruptedException {
+		
+		ErrorType errorType = SQLErrorClassifier.classify(e);
+		sqlSourceCounter.incrementQueryErrorCount();
+		lastQueryFailed = true;
+		
+		if (errorType == ErrorType.SQL){
+			LOG.error("SQL error executing query, it will not be retried", e);
+			return false;
+		}
+		if (attempt >= sqlSourceHelper.getQueryRetries()){
+			LOG.error("Error executing query, " + attempt + " retries exhausted", e);
+			circuitBreaker.recordFailure();
+			return false;
+		}
+		
+		LOG.warn(errorType + " error executing query, retry " + (attempt + 1) + " of "
+				+ sqlSourceHelper.getQueryRetries(), e);
+		if (errorType == ErrorType.CONNECTION && !recoverConnection() && endpointRouter.hasReplicas()){
+			LOG.warn("Endpoint " + currentUrl + " failed, rotating to next endpoint");
+			endpointRouter.markFailed(currentUrl);
+			route();
+		}
+		sqlSourceCounter.incrementQueryRetryCount();
+		Thread.sleep(backoff(attempt));
+		return true;
+	}
 
-	private void resetConnection() throws InterruptedException{
-		session.close();
-		factory.close();
+	/**
+	 * @return true if the last selection query failed, its empty result doesn't mean there are no rows
+	 */
+	public boolean isLastQueryFailed() {
+		return lastQueryFailed;
+	}
+
+	/*
+	 * Run the selection query through JDBC, applying the first and max rows with the dialect limit handler
+	 * as Hibernate does, and read the rows with the conversion plan of the result columns
+	 */
+	private List<List<Object>> runQuery() {
+		
+		final RowSelection selection = new RowSelection();
+		final int firstRow = sqlSourceHelper.isCustomQuerySet() ? 0 : Integer.parseInt(sqlSourceHelper.getCurrentIndex());
+		/* A first row of 0 counts as a limit for Hibernate, and the limit handlers fail without max rows */
+		if (firstRow > 0){
+			selection.setFirstRow(firstRow);
+		}
+		
+		/* In time window mode the whole window is read, the index can't advance to the middle of it */
+		if (sqlSourceHelper.getMaxRows() != 0 && sqlSourceHelper.getTimeWindow() == null){
+			selection.setMaxRows(sqlSourceHelper.getMaxRows());
+		}
+		
+		final String sql = sqlSourceHelper.isCustomQuerySet() ? sqlSourceHelper.buildQuery() : sqlSourceHelper.getQuery();
+		final LimitHandler limitHandler = ((SessionFactoryImplementor) factory).getDialect().buildLimitHandler(sql, selection);
+		final boolean useLimit = limitHandler.supportsLimit() && selection.definesLimits();
+		
+		return session.doReturningWork(new ReturningWork<List<List<Object>>>() {
+			@Override
+			public List<List<Object>> execute(Connection connection) throws SQLException {
+				
+				PreparedStatement statement = connection.prepareStatement(useLimit ? limitHandler.getProcessedSql() : sql);
+				try {
+					int index = 1;
+					if (useLimit){
+						index += limitHandler.bindLimitParametersAtStartOfQuery(statement, index);
+					}
+					
+					TimeWindow timeWindow = sqlSourceHelper.getTimeWindow();
+					if (timeWindow != null){
+						for (boolean windowStart : sqlSourceHelper.getWindowParameters()){
+							statement.setTimestamp(index++,
+									new Timestamp(windowStart ? timeWindow.getStart() : timeWindow.getEnd()));
+						}
+					}
+					
+					if (useLimit){
+						limitHandler.bindLimitParametersAtEndOfQuery(statement, index);
+						limitHandler.setMaxRows(statement);
+					}
+					else if (selection.getMaxRows() != null){
+						statement.setMaxRows(firstRow + selection.getMaxRows());
+					}
+					int fetchSize = fetchSize();
+					statement.setFetchSize(fetchSize);
+					
+					List<List<Object>> rows = new ArrayList<List<Object>>();
+					ResultSet resultSet = statement.executeQuery();
+					try {
+						conversionPlan = conversionPlans().get(resultSet.getMetaData());
+						
+						int skip = useLimit && limitHandler.supportsLimitOffset() ? 0 : firstRow;
+						for (int i = 0; i < skip; i++){
+							if (!resultSet.next()){
+								return rows;
+							}
+						}
+						readRows(resultSet, rows, fetchSize);
+					} finally {
+						resultSet.close();
+					}
+					return rows;
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
+	/*
+	 * SQL types the dialect maps to the string hibernate type, such as every non LOB type with
+	 * SQLServerCustomDialect. They are read as strings, as the hibernate native queries did.
+	 */
+	private static Set<Integer> stringTypes(Dialect dialect) {
+		
+		Set<Integer> stringTypes = new HashSet<Integer>();
+		for (Field field : Types.class.getFields()){
+			try {
+				int type = field.getInt(null);
+				if (StandardBasicTypes.STRING.getName().equals(dialect.getHibernateTypeName(type))){
+					stringTypes.add(type);
+				}
+			} catch (HibernateException | IllegalAccessException e) {
+				/* type not mapped by the dialect */
+			}
+		}
+		return stringTypes;
+	}
+
+	/*
+	 * Read the rows until the end of the result or the byte budget of the query. The stop row becomes the
+	 * watermark, as with max.rows. The fetch size follows the average row size observed. LOB cells are
+	 * encoded while their row is current, their locators are not valid once the statement is closed.
+	 */
+	private void readRows(ResultSet resultSet, List<List<Object>> rows, int fetchSize) throws SQLException {
+		
+		/* A time window is read whole */
+		long maxBytes = sqlSourceHelper.getTimeWindow() == null ? sqlSourceHelper.getMaxBytes() : 0;
+		/* Rows are sized only if a budget needs it */
+		boolean estimate = maxBytes > 0 || sqlSourceHelper.getFetchMaxBytes() > 0;
+		EventBodyEncoder lobEncoder = null;
+		long bytes = 0;
+		
+		while (resultSet.next()){
+			List<Object> row = conversionPlan.read(resultSet);
+			for (int i = 0; i < row.size(); i++){
+				Object cell = row.get(i);
+				if (EventBodyEncoder.isLob(cell)){
+					if (lobEncoder == null){
+						lobEncoder = new EventBodyEncoder(sqlSourceHelper, sqlSourceCounter);
+					}
+					try {
+						row.set(i, lobEncoder.encodeLob(cell));
+					} catch (IOException e) {
+						throw new SQLException("Error encoding LOB of column " + (i + 1), e);
+					}
+				}
+			}
+			rows.add(row);
+			if (!estimate){
+				continue;
+			}
+			bytes += EventBodyEncoder.estimateSize(row);
+			
+			if (maxBytes > 0 && bytes >= maxBytes){
+				byteBudgetReached = true;
+				break;
+			}
+			if (sqlSourceHelper.getFetchMaxBytes() > 0 && rows.size() % (fetchSize > 0 ? fetchSize : ADAPT_INTERVAL) == 0){
+				averageRowSize = Math.max(1, bytes / rows.size());
+				fetchSize = fetchSize();
+				resultSet.setFetchSize(fetchSize);
+			}
+		}
+		
+		if (estimate && !rows.isEmpty()){
+			averageRowSize = Math.max(1, bytes / rows.size());
+		}
+		lastQueryBytes += bytes;
+		sqlSourceCounter.incrementFetchedBytesCount(bytes);
+	}
+	
+	/*
+	 * Rows fetched per round trip: max.rows (0 for the driver default), or as many average rows as fit
+	 * in fetch.max.bytes
+	 */
+	private int fetchSize() {
+		
+		int fetchSize = sqlSourceHelper.getMaxRows();
+		if (sqlSourceHelper.getFetchMaxBytes() > 0 && averageRowSize > 0){
+			long budgetRows = Math.max(1, sqlSourceHelper.getFetchMaxBytes() / averageRowSize);
+			fetchSize = (int) (fetchSize > 0 ? Math.min(fetchSize, budgetRows) : Math.min(Integer.MAX_VALUE, budgetRows));
+		}
+		sqlSourceCounter.setFetchSize(fetchSize);
+		lastFetchSize = fetchSize;
+		return fetchSize;
+	}
+
+	/**
+	 * @return true if the last selection query stopped at the byte budget, there are more rows pending
+	 */
+	public boolean isByteBudgetReached() {
+		return byteBudgetReached;
+	}
+
+	/**
+	 * @return Estimated bytes of the rows read by the last selection query, 0 if no byte budget is configured
+	 */
+	public long getLastQueryBytes() {
+		return lastQueryBytes;
+	}
+
+	/**
+	 * @return Connections reset while running the last selection query, retries included
+	 */
+	public int getLastQueryReconnects() {
+		return lastQueryReconnects;
+	}
+
+	/**
+	 * @return Conversion plan of the last selection query result, null before the first query
+	 */
+	public ConversionPlan getConversionPlan() {
+		return conversionPlan;
+	}
+
+	/**
+	 * Check the circuit breaker before polling the database. When the circuit is half open
+	 * the connection is validated as health probe, rebuilding the pool if it is dead.
+	 * @return true if the database can be queried
+	 */
+	public boolean isAvailable() {
+
+		if (!circuitBreaker.allowRequest()){
+			return false;
+		}
+
+		if (circuitBreaker.getState() == CircuitBreaker.State.HALF_OPEN){
+			if (!recoverConnection() && endpointRouter.hasReplicas()){
+				endpointRouter.markFailed(currentUrl);
+				route();
+			}
+			if (isConnectionValid()){
+				LOG.info("Health probe passed, closing circuit breaker");
+				circuitBreaker.recordSuccess();
+			}
+			else {
+				LOG.warn("Health probe failed, circuit breaker remains open");
+				circuitBreaker.recordFailure();
+			}
+		}
+		sqlSourceCounter.setCircuitBreakerOpen(circuitBreaker.getState() == CircuitBreaker.State.OPEN);
+		return circuitBreaker.getState() != CircuitBreaker.State.OPEN;
+	}
+
+	/**
+	 * Validate the session connection using the configured test query or, if not set, 
+	 * {@link Connection#isValid(int)}
+	 * @return true if the connection is usable
+	 */
+	public boolean isConnectionValid() {
+
+		try {
+			return session.doReturningWork(new ReturningWork<Boolean>() {
+				@Override
+				public Boolean execute(Connection connection) throws SQLException {
+
+					int timeout = sqlSourceHelper.getConnectionValidationTimeout();
+					String testQuery = sqlSourceHelper.getConnectionTestQuery();
+
+					if (testQuery == null){
+						return connection.isValid(timeout);
+					}
+
+					Statement statement = connection.createStatement();
+					try {
+						statement.setQueryTimeout(timeout);
+						statement.execute(testQuery);
+						return true;
+					} finally {
+						statement.close();
+					}
+				}
+			});
+		} catch (Exception e) {
+			LOG.debug("Connection validation failed", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Reopen the session to get a new connection from the pool if the current one is not valid,
+	 * and rebuild the session factory only if the new connection is not valid either
+	 * @return true if the connection is valid after the recovery
+	 */
+	private boolean recoverConnection() {
+
+		if (isConnectionValid()){
+			return true;
+		}
+
+		LOG.warn("Connection is not valid, reopening hibernate session");
+		try {
+			try {
+				session.close();
+			} catch (Exception e) {
+				LOG.debug("Error closing invalid session", e);
+			}
+			openSession();
+
+			if (!isConnectionValid()){
+				LOG.warn("Connection pool is dead, rebuilding session factory");
+				resetConnection();
+				return isConnectionValid();
+			}
+			return true;
+		} catch (Exception e) {
+			LOG.error("Error recovering database connection", e);
+			return false;
+		}
+	}
+
+	private long backoff(int attempt) {
+
+		long maxBackoff = sqlSourceHelper.getQueryRetryMaxBackoff();
+		long backoff = Math.min(maxBackoff, sqlSourceHelper.getQueryRetryBackoff() << Math.min(attempt, 30));
+		if (backoff <= 0){
+			return 0;
+		}
+		/* equal jitter: half of the backoff plus a random amount up to the other half */
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	/**
+	 * Explain the custom query with the current index, or the current window start in time window mode
+	 * @return Plan of the query, null if the plans of the database can't be checked
+	 */
+	public QueryPlan explainQuery() {
+
+		final DatabaseVendor vendor = sqlSourceHelper.getDatabaseVendor();
+		final String[] statements = vendor.explain(sqlSourceHelper.buildQuery());
+		if (statements == null){
+			return null;
+		}
+
+		return session.doReturningWork(new ReturningWork<QueryPlan>() {
+			@Override
+			public QueryPlan execute(Connection connection) throws SQLException {
+
+				List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+				for (int i = 0; i < statements.length; i++){
+					PreparedStatement statement = connection.prepareStatement(statements[i]);
+					try {
+						if (i == 0 && sqlSourceHelper.getTimeWindow() != null){
+							Timestamp windowStart = new Timestamp(Long.parseLong(sqlSourceHelper.getCurrentIndex()));
+							for (int parameter = 1; parameter <= sqlSourceHelper.getWindowParameters().length; parameter++){
+								statement.setTimestamp(parameter, windowStart);
+							}
+						}
+						if (i < statements.length - 1){
+							statement.execute();
+							continue;
+						}
+
+						ResultSet resultSet = statement.executeQuery();
+						ResultSetMetaData metaData = resultSet.getMetaData();
+						while (resultSet.next()){
+							Map<String, Object> row = new LinkedHashMap<String, Object>();
+							for (int column = 1; column <= metaData.getColumnCount(); column++){
+								row.put(metaData.getColumnLabel(column).toLowerCase(Locale.ENGLISH), resultSet.getObject(column));
+							}
+							rows.add(row);
+						}
+					} finally {
+						statement.close();
+					}
+				}
+				return QueryPlan.parse(vendor, rows);
+			}
+		});
+	}
+
+	/**
+	 * Execute the change probe query in the database
+	 * @return First cell of the probe query result as String, null if the probe returned no value
+	 */
+	public String executeProbeQuery() {
+		return executeScalarQuery(sqlSourceHelper.buildProbeQuery());
+	}
+
+	/**
+	 * Execute the governor load probe query in the database
+	 * @return First cell of the load query result, null if the query failed or returned no numeric value
+	 */
+	public Double executeLoadQuery() {
+
+		try {
+			String load = executeScalarQuery(sqlSourceHelper.getLoadQuery());
+			return load == null ? null : Double.valueOf(load);
+		} catch (Exception e) {
+			LOG.warn("Error executing load probe query", e);
+			return null;
+		}
+	}
+
+	private String executeScalarQuery(String sql) {
+
+		if (!session.isConnected()){
+			resetConnection();
+		}
+
+		List<?> result = session.createSQLQuery(sql).setMaxResults(1).list();
+
+		if (result.isEmpty() || result.get(0) == null){
+			return null;
+		}
+
+		Object value = result.get(0);
+		if (value instanceof Object[]){
+			Object[] row = (Object[]) value;
+			value = row.length > 0 ? row[0] : null;
+		}
+
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Execute the snapshot bounds query in the database
+	 * @return Min and max values of the snapshot key, null values if the table is empty
+	 */
+	public Object[] executeSnapshotBoundsQuery() {
+
+		Object row = session.createSQLQuery(sqlSourceHelper.buildSnapshotBoundsQuery()).uniqueResult();
+		return row instanceof Object[] ? (Object[]) row : new Object[] {row, row};
+	}
+
+	/**
+	 * Receives the rows of a snapshot chunk while the result set is on them
+	 */
+	interface RowHandler {
+		/**
+		 * @param row Row cells, LOB cells still readable
+		 * @param plan Conversion plan of the result columns
+		 */
+		void handle(List<Object> row, ConversionPlan plan) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Stream the rows of a snapshot chunk query with its own session, reading them through JDBC with the
+	 * same conversion plans as the selection query
+	 * @param sql Chunk query
+	 * @param fetchSize Rows fetched per round trip
+	 * @param handler Receives each row
+	 * @return Rows read
+	 * @throws IOException if the handler fails to deliver a row
+	 * @throws InterruptedException if the source is stopped
+	 */
+	public long readSnapshotChunk(final String sql, final int fetchSize, final RowHandler handler)
+			throws IOException, InterruptedException {
+		
+		Session chunkSession = factory.openSession();
+		chunkSession.setCacheMode(CacheMode.IGNORE);
+		chunkSession.setDefaultReadOnly(true);
+		final ConversionPlan.Cache plans = conversionPlans();
+		try {
+			return chunkSession.doReturningWork(new ReturningWork<Long>() {
+				@Override
+				public Long execute(Connection connection) throws SQLException {
+					
+					PreparedStatement statement = connection.prepareStatement(sql);
+					try {
+						statement.setFetchSize(fetchSize);
+						ResultSet resultSet = statement.executeQuery();
+						try {
+							ConversionPlan plan = plans.get(resultSet.getMetaData());
+							long rows = 0;
+							while (resultSet.next()){
+								handler.handle(plan.read(resultSet), plan);
+								rows++;
+							}
+							return rows;
+						} finally {
+							resultSet.close();
+						}
+					} catch (IOException | InterruptedException e) {
+						throw new RowHandlerException(e);
+					} finally {
+						statement.close();
+					}
+				}
+			});
+		} catch (RowHandlerException e) {
+			if (e.getCause() instanceof InterruptedException){
+				throw (InterruptedException) e.getCause();
+			}
+			throw (IOException) e.getCause();
+		} finally {
+			chunkSession.close();
+		}
+	}
+
+	/* Carries the exceptions of a row handler through the hibernate work */
+	private static class RowHandlerException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		RowHandlerException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	/*
+	 * Conversion plans of the result columns, with the string types of the dialect. Shared by the
+	 * selection query and the snapshot chunks.
+	 */
+	private synchronized ConversionPlan.Cache conversionPlans() {
+		if (conversionPlans == null){
+			conversionPlans = new ConversionPlan.Cache(stringTypes(((SessionFactoryImplementor) factory).getDialect()));
+		}
+		return conversionPlans;
+	}
+
+	private void resetConnection() {
+		sqlSourceCounter.incrementConnectionResetCount();
+		lastQueryReconnects++;
+		try {
+			session.close();
+			SessionFactoryRegistry.invalidate(factories.remove(currentUrl));
+		} catch (Exception e) {
+			LOG.debug("Error closing dead session factory", e);
+		}
 		establishSession();
 	}
 }
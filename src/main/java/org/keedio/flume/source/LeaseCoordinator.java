@@ -0,0 +1,393 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Distributes the sources among several agents through lease rows in a coordination table. <p>
+ * Every agent configured with a source competes for its work unit (the source identity). The agent holding
+ * the lease is the only one polling the database; it renews the lease from a heartbeat thread, so long polls
+ * don't let it expire, and saves the checkpoint (last index) in the lease row, so any other agent resumes
+ * from it when the lease expires. Agents also heartbeat in an agents table: an agent holds at most its fair
+ * share of the work units (units / live agents, rounded up), releasing leases when agents join and taking
+ * expired ones when agents leave. Expirations are taken from the clock of the coordination database, so the
+ * agent clocks don't need to be synchronized.
+ */
+public class LeaseCoordinator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LeaseCoordinator.class);
+
+	private final String url, user, password, leaseTable, agentTable, agentId, workUnit;
+	private final long leaseTimeout;
+	private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	private Connection connection;
+	/* Read without the lock by the polling thread, while the heartbeat may be waiting for the database */
+	private volatile boolean held;
+	private volatile long heldUntil;
+	private long nextRenewal;
+	private boolean closed;
+	private String checkpoint;
+	private ScheduledExecutorService heartbeat;
+	/* Not a monitor: the lease queries block, and a virtual thread waiting on them must release its carrier */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * @param url JDBC url of the coordination database
+	 * @param user Database user
+	 * @param password Database password
+	 * @param table Lease table name, the agents table name is the same followed by _AGENT
+	 * @param agentId Identity of this agent
+	 * @param workUnit Work unit leased, the source identity
+	 * @param leaseTimeout Time in ms a lease is valid without heartbeats
+	 */
+	public LeaseCoordinator(String url, String user, String password, String table, String agentId, String workUnit,
+			long leaseTimeout) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.leaseTable = table;
+		this.agentTable = table + "_AGENT";
+		this.agentId = agentId;
+		this.workUnit = workUnit;
+		this.leaseTimeout = leaseTimeout;
+	}
+
+	/**
+	 * Start the heartbeat thread renewing the lease every third of the lease timeout
+	 */
+	public void start() {
+		lock.lock();
+		try {
+			if (heartbeat != null || closed){
+				return;
+			}
+			heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+					.setNameFormat("sql-source-lease-" + workUnit).build());
+			heartbeat.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					holdLease();
+				}
+			}, leaseTimeout / 3, leaseTimeout / 3, TimeUnit.MILLISECONDS);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Renew or try to acquire the lease of the work unit, if the heartbeat is due
+	 * @return true if this agent holds the lease and can poll the database
+	 */
+	public boolean holdLease() {
+		lock.lock();
+		try {
+			long renewal = System.currentTimeMillis();
+			if (closed || renewal < nextRenewal){
+				return isHeld();
+			}
+
+			try {
+				connect();
+				insertWorkUnit();
+				long now = databaseTime();
+				heartbeat(now);
+
+				int fairShare = fairShare(now);
+				if (held){
+					if (update("UPDATE " + leaseTable + " SET EXPIRES_AT = ? WHERE WORK_UNIT = ? AND OWNER = ?",
+							now + leaseTimeout, workUnit, agentId) == 0){
+						LOG.warn("Lease of {} lost", workUnit);
+						held = false;
+					}
+					else if (countOwned(now) > fairShare){
+						LOG.info("Releasing lease of {} to rebalance work units", workUnit);
+						release();
+					}
+					else {
+						heldUntil = renewal + leaseTimeout;
+					}
+				}
+				else if (countOwned(now) < fairShare && update("UPDATE " + leaseTable
+						+ " SET OWNER = ?, EXPIRES_AT = ? WHERE WORK_UNIT = ? AND (OWNER IS NULL OR EXPIRES_AT < ?)",
+						agentId, now + leaseTimeout, workUnit, now) == 1){
+					checkpoint = queryString("SELECT CHECKPOINT_VALUE FROM " + leaseTable + " WHERE WORK_UNIT = ?", workUnit);
+					LOG.info("Lease of {} acquired, checkpoint {}", workUnit, checkpoint);
+					heldUntil = renewal + leaseTimeout;
+					held = true;
+				}
+				nextRenewal = renewal + leaseTimeout / 3;
+			} catch (SQLException e) {
+				LOG.error("Error renewing lease of " + workUnit + ", stop polling until it is renewed", e);
+				held = false;
+				closeConnection();
+			}
+			return held;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Check the lease without renewing it, i.e. before delivering a batch. The lease is considered lost
+	 * once its timeout passed since the last renewal started, even if the heartbeat is still waiting for
+	 * the database
+	 * @return true if this agent still holds the lease
+	 */
+	public boolean isHeld() {
+		return held && System.currentTimeMillis() < heldUntil;
+	}
+
+	/**
+	 * @return Checkpoint read from the lease row when the lease was acquired, null if never saved
+	 */
+	public String getCheckpoint() {
+		lock.lock();
+		try {
+			return checkpoint;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Save the checkpoint in the lease row, only if this agent still holds the lease
+	 * @param value Last index delivered
+	 */
+	public void saveCheckpoint(String value) {
+		lock.lock();
+		try {
+			if (!held){
+				return;
+			}
+			try {
+				connect();
+				if (update("UPDATE " + leaseTable + " SET CHECKPOINT_VALUE = ? WHERE WORK_UNIT = ? AND OWNER = ?",
+						value, workUnit, agentId) == 0){
+					LOG.warn("Lease of {} lost, checkpoint not saved", workUnit);
+					held = false;
+				}
+				else {
+					checkpoint = value;
+				}
+			} catch (SQLException e) {
+				LOG.error("Error saving checkpoint of " + workUnit, e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Release the lease, so other agent can take the work unit without waiting for its expiration
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			if (!held){
+				return;
+			}
+			held = false;
+			try {
+				connect();
+				update("UPDATE " + leaseTable + " SET OWNER = NULL, EXPIRES_AT = 0 WHERE WORK_UNIT = ? AND OWNER = ?",
+						workUnit, agentId);
+			} catch (SQLException e) {
+				LOG.warn("Error releasing lease of " + workUnit + ", it will expire", e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the heartbeat thread, release the lease and close the coordination connection
+	 */
+	public void close() {
+
+		ScheduledExecutorService stopped;
+		lock.lock();
+		try {
+			closed = true;
+			stopped = heartbeat;
+			heartbeat = null;
+		} finally {
+			lock.unlock();
+		}
+		/* Outside the lock, the heartbeat may be waiting for it */
+		if (stopped != null){
+			stopped.shutdownNow();
+			try {
+				stopped.awaitTermination(leaseTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		release();
+		closeConnection();
+	}
+
+	private void closeConnection() {
+		lock.lock();
+		try {
+			if (connection == null){
+				return;
+			}
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				LOG.warn("Error closing coordination connection", e);
+			}
+			connection = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void connect() throws SQLException {
+
+		if (connection != null){
+			return;
+		}
+		connection = DriverManager.getConnection(url, user, password);
+		connection.setAutoCommit(true);
+		createTable("CREATE TABLE " + leaseTable + " (WORK_UNIT VARCHAR(255) NOT NULL PRIMARY KEY, OWNER VARCHAR(255),"
+				+ " EXPIRES_AT NUMERIC(19) NOT NULL, CHECKPOINT_VALUE VARCHAR(1024))", leaseTable);
+		createTable("CREATE TABLE " + agentTable + " (AGENT_ID VARCHAR(255) NOT NULL PRIMARY KEY,"
+				+ " EXPIRES_AT NUMERIC(19) NOT NULL)", agentTable);
+	}
+
+	/* Create the table, unless it already exists */
+	private void createTable(String ddl, String table) throws SQLException {
+
+		Statement statement = connection.createStatement();
+		try {
+			statement.executeUpdate(ddl);
+			LOG.info("Coordination table {} created", table);
+		} catch (SQLException e) {
+			statement.executeQuery("SELECT COUNT(*) FROM " + table + " WHERE 1 = 0").close();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private void heartbeat(long now) throws SQLException {
+
+		if (update("UPDATE " + agentTable + " SET EXPIRES_AT = ? WHERE AGENT_ID = ?", now + leaseTimeout, agentId) == 0){
+			update("INSERT INTO " + agentTable + " (AGENT_ID, EXPIRES_AT) VALUES (?, ?)", agentId, now + leaseTimeout);
+		}
+	}
+
+	/* Register the work unit, other agent may insert it at the same time */
+	private void insertWorkUnit() throws SQLException {
+
+		if (queryLong("SELECT COUNT(*) FROM " + leaseTable + " WHERE WORK_UNIT = ?", workUnit) == 0){
+			try {
+				update("INSERT INTO " + leaseTable + " (WORK_UNIT, EXPIRES_AT) VALUES (?, 0)", workUnit);
+			} catch (SQLException e) {
+				LOG.debug("Work unit {} already inserted", workUnit);
+			}
+		}
+	}
+
+	/* Current time of the coordination database in ms, read from the work unit row so no vendor specific
+	 * dual table is needed. Read in UTC, so every agent gets the same value whatever its time zone */
+	private long databaseTime() throws SQLException {
+
+		PreparedStatement statement = prepare("SELECT CURRENT_TIMESTAMP FROM " + leaseTable + " WHERE WORK_UNIT = ?", workUnit);
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			if (!resultSet.next()){
+				throw new SQLException("Work unit " + workUnit + " not found in " + leaseTable);
+			}
+			return resultSet.getTimestamp(1, calendar).getTime();
+		} finally {
+			statement.close();
+		}
+	}
+
+	/* Work units per live agent, rounded up */
+	private int fairShare(long now) throws SQLException {
+
+		long units = queryLong("SELECT COUNT(*) FROM " + leaseTable);
+		long agents = Math.max(1, queryLong("SELECT COUNT(*) FROM " + agentTable + " WHERE EXPIRES_AT > ?", now));
+		return (int) ((units + agents - 1) / agents);
+	}
+
+	private long countOwned(long now) throws SQLException {
+		return queryLong("SELECT COUNT(*) FROM " + leaseTable + " WHERE OWNER = ? AND EXPIRES_AT > ?", agentId, now);
+	}
+
+	private int update(String sql, Object... parameters) throws SQLException {
+
+		PreparedStatement statement = prepare(sql, parameters);
+		try {
+			return statement.executeUpdate();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private long queryLong(String sql, Object... parameters) throws SQLException {
+
+		PreparedStatement statement = prepare(sql, parameters);
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private String queryString(String sql, Object... parameters) throws SQLException {
+
+		PreparedStatement statement = prepare(sql, parameters);
+		try {
+			ResultSet resultSet = statement.executeQuery();
+			return resultSet.next() ? resultSet.getString(1) : null;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private PreparedStatement prepare(String sql, Object... parameters) throws SQLException {
+
+		PreparedStatement statement = connection.prepareStatement(sql);
+		for (int i = 0; i < parameters.length; i++){
+			statement.setObject(i + 1, parameters[i]);
+		}
+		return statement;
+	}
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+import org.keedio.flume.metrics.SqlSourceCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the load generated by the source in the database. <p>
+ * Rows per second and queries per minute are limited with token buckets, concurrent queries against the
+ * same endpoint (and, optionally, against any database) are limited with semaphores shared by all the
+ * sources of the agent, and an extra delay
+ * between queries grows while query time or database load are over their thresholds, and shrinks back
+ * when they are under them.
+ */
+public class LoadGovernor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LoadGovernor.class);
+	private static final ConcurrentMap<String, QueryPermits> CONCURRENT_QUERIES = new ConcurrentHashMap<String, QueryPermits>();
+	private static final long MIN_DELAY = 100;
+	/* Key of the semaphore shared by the sources of all the databases */
+	private static final String AGENT_QUERIES = "*";
+
+	private SQLSourceHelper sqlSourceHelper;
+	private SqlSourceCounter sqlSourceCounter;
+	private TokenBucket rowsBucket;
+	private TokenBucket queriesBucket;
+	/* Semaphores of the primary and the replicas, by url */
+	private final Map<String, Semaphore> endpointQueries = new HashMap<String, Semaphore>();
+	private Semaphore agentQueries;
+	private volatile long delay;
+	private volatile boolean overloaded;
+
+	/**
+	 * @param sqlSourceHelper Contains the governor configuration parameters
+	 * @param sqlSourceCounter Metric counters of the source, to publish throttle state
+	 */
+	public LoadGovernor(SQLSourceHelper sqlSourceHelper, SqlSourceCounter sqlSourceCounter) {
+
+		this.sqlSourceHelper = sqlSourceHelper;
+		this.sqlSourceCounter = sqlSourceCounter;
+
+		if (sqlSourceHelper.getMaxRowsPerSecond() > 0){
+			rowsBucket = new TokenBucket(sqlSourceHelper.getMaxRowsPerSecond(), sqlSourceHelper.getMaxRowsPerSecond());
+		}
+		if (sqlSourceHelper.getMaxQueriesPerMinute() > 0){
+			queriesBucket = new TokenBucket(sqlSourceHelper.getMaxQueriesPerMinute() / 60.0, 1);
+		}
+		if (sqlSourceHelper.getMaxConcurrentQueries() > 0){
+			endpointQueries.put(sqlSourceHelper.getConnectionURL(),
+					permits(sqlSourceHelper.getConnectionURL(), sqlSourceHelper.getMaxConcurrentQueries()));
+			if (sqlSourceHelper.getReplicaURLs() != null){
+				for (String url : sqlSourceHelper.getReplicaURLs()){
+					endpointQueries.put(url, permits(url, sqlSourceHelper.getMaxConcurrentQueries()));
+				}
+			}
+		}
+		if (sqlSourceHelper.getMaxAgentConcurrentQueries() > 0){
+			agentQueries = permits(AGENT_QUERIES, sqlSourceHelper.getMaxAgentConcurrentQueries());
+		}
+	}
+
+	/* Semaphore shared by the sources querying the same endpoint, the first source configured sets its limit */
+	private static Semaphore permits(String key, int limit) {
+
+		QueryPermits permits = CONCURRENT_QUERIES.get(key);
+		if (permits == null){
+			QueryPermits created = new QueryPermits(limit);
+			permits = CONCURRENT_QUERIES.putIfAbsent(key, created);
+			if (permits == null){
+				return created;
+			}
+		}
+		if (permits.limit != limit){
+			LOG.warn("Concurrent query limit " + limit + " of " + (AGENT_QUERIES.equals(key) ? "the agent" : key)
+					+ " ignored, another source already limits it to " + permits.limit);
+		}
+		return permits;
+	}
+
+	/**
+	 * Wait until a query can be executed: adaptive delay, queries per minute and concurrent queries.
+	 * Every call must be followed by a call to {@link #afterQuery(String, long)} with the same endpoint
+	 * @param endpoint Url of the endpoint queried, the primary if null
+	 * @throws InterruptedException
+	 */
+	public void beforeQuery(String endpoint) throws InterruptedException {
+
+		long throttled = 0;
+
+		if (delay > 0){
+			Thread.sleep(delay);
+			throttled += delay;
+		}
+		if (queriesBucket != null){
+			throttled += queriesBucket.acquire(1);
+		}
+		if (agentQueries != null){
+			long start = System.currentTimeMillis();
+			agentQueries.acquire();
+			throttled += System.currentTimeMillis() - start;
+		}
+		Semaphore concurrentQueries = endpointQueries(endpoint);
+		if (concurrentQueries != null){
+			long start = System.currentTimeMillis();
+			try {
+				concurrentQueries.acquire();
+			} catch (InterruptedException e) {
+				if (agentQueries != null){
+					agentQueries.release();
+				}
+				throw e;
+			}
+			throttled += System.currentTimeMillis() - start;
+		}
+
+		if (throttled > 0){
+			sqlSourceCounter.addThrottleTime(throttled);
+		}
+	}
+
+	/**
+	 * Release the concurrent query permit and adapt the delay between queries to the query time
+	 * @param endpoint Url of the endpoint passed to {@link #beforeQuery(String)}
+	 * @param queryTime ms spent executing the query
+	 */
+	public void afterQuery(String endpoint, long queryTime) {
+
+		Semaphore concurrentQueries = endpointQueries(endpoint);
+		if (concurrentQueries != null){
+			concurrentQueries.release();
+		}
+		if (agentQueries != null){
+			agentQueries.release();
+		}
+
+		long maxQueryTime = sqlSourceHelper.getMaxQueryTime();
+		adaptDelay(overloaded || (maxQueryTime > 0 && queryTime > maxQueryTime));
+	}
+
+	/**
+	 * Wait until the rows read are within the rows per second limit
+	 * @param rows Rows read from the database
+	 * @throws InterruptedException
+	 */
+	public void throttleRows(int rows) throws InterruptedException {
+
+		if (rowsBucket != null && rows > 0){
+			long throttled = rowsBucket.acquire(rows);
+			if (throttled > 0){
+				sqlSourceCounter.addThrottleTime(throttled);
+			}
+		}
+	}
+
+	/**
+	 * Update the database load read with the load probe query
+	 * @param load Value returned by the load probe query, null if unknown
+	 */
+	public void updateLoad(Double load) {
+		overloaded = load != null && load > sqlSourceHelper.getLoadThreshold();
+		if (overloaded){
+			LOG.debug("Database load " + load + " over threshold " + sqlSourceHelper.getLoadThreshold());
+		}
+	}
+
+	private Semaphore endpointQueries(String endpoint) {
+		Semaphore permits = endpoint == null ? null : endpointQueries.get(endpoint);
+		return permits != null ? permits : endpointQueries.get(sqlSourceHelper.getConnectionURL());
+	}
+
+	/* Multiplicative increase while overloaded, halved when not */
+	private synchronized void adaptDelay(boolean slowDown) {
+
+		if (slowDown){
+			delay = Math.min(sqlSourceHelper.getMaxGovernorDelay(), Math.max(MIN_DELAY, delay * 2));
+			LOG.info("Database overloaded, delaying queries " + delay + " ms");
+		}
+		else {
+			delay = delay / 2 < MIN_DELAY ? 0 : delay / 2;
+		}
+		sqlSourceCounter.setGovernorDelay(delay);
+	}
+
+	/* Semaphore remembering the limit it was created with */
+	private static final class QueryPermits extends Semaphore {
+
+		private static final long serialVersionUID = 1L;
+		private final int limit;
+
+		QueryPermits(int limit) {
+			super(limit, true);
+			this.limit = limit;
+		}
+	}
+}
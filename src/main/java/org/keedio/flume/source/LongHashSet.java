@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Set of 64 bits hashes with open addressing and linear probing, storing the hashes in a long array
+ * without boxing them. 0 is not a valid hash, it marks the empty slots.
+ */
+class LongHashSet {
+
+	private long[] table;
+	private int mask, size;
+
+	/**
+	 * @param expectedSize Hashes stored without resizing the table
+	 */
+	LongHashSet(int expectedSize) {
+		int tableSize = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+		table = new long[tableSize];
+		mask = tableSize - 1;
+	}
+
+	/**
+	 * @param hash Hash to add, not 0
+	 * @return true if the hash was not in the set
+	 */
+	boolean add(long hash) {
+		if (!insert(table, mask, hash)){
+			return false;
+		}
+		if (++size * 4 > table.length * 3){
+			long[] grown = new long[table.length * 2];
+			for (long stored : table){
+				if (stored != 0){
+					insert(grown, grown.length - 1, stored);
+				}
+			}
+			table = grown;
+			mask = grown.length - 1;
+		}
+		return true;
+	}
+
+	boolean contains(long hash) {
+		for (int i = slot(hash, mask); table[i] != 0; i = (i + 1) & mask){
+			if (table[i] == hash){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Remove every hash, resizing the table to the expected size. A table already of that size is reused.
+	 * @param expectedSize Hashes stored without resizing the table
+	 */
+	void clear(int expectedSize) {
+		int tableSize = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+		if (table.length != tableSize){
+			table = new long[tableSize];
+			mask = tableSize - 1;
+		}
+		else if (size > 0){
+			Arrays.fill(table, 0);
+		}
+		size = 0;
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		for (long hash : table){
+			if (hash != 0){
+				out.writeLong(hash);
+			}
+		}
+	}
+
+	void read(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++){
+			add(in.readLong());
+		}
+	}
+
+	private static int slot(long hash, int mask) {
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	private static boolean insert(long[] table, int mask, long hash) {
+		int i = slot(hash, mask);
+		while (table[i] != 0){
+			if (table[i] == hash){
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = hash;
+		return true;
+	}
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.keedio.flume.metrics.SqlSourceCounter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Encodes the rows of large query results in chunks on a pool of worker threads. <p>
+ * The event bodies are handed over in the order of the rows as each chunk completes, so the events are sent
+ * to the channel and the last index committed exactly as with serial encoding, and only the chunks in flight
+ * are held in memory. The query reads the LOB cells into encoded values while their row is current, so
+ * results with LOB columns are encoded on the pool too; only rows still holding LOB locators are refused,
+ * as their streams are read through the connection, which is not safe to use from several threads.
+ */
+public class ParallelEncoder {
+
+	private final int chunkSize;
+	/* Chunks submitted ahead of the one being handed over */
+	private final int chunksInFlight;
+	private final ExecutorService executor;
+	private final ThreadLocal<EventBodyEncoder> encoders;
+
+	/**
+	 * @param sqlSourceHelper Contains the encoding configuration parameters
+	 * @param sqlSourceCounter Metric counters of the source
+	 * @param threads Worker threads
+	 * @param chunkSize Rows encoded by each task, results with fewer rows are encoded serially
+	 */
+	public ParallelEncoder(final SQLSourceHelper sqlSourceHelper, final SqlSourceCounter sqlSourceCounter, int threads,
+			int chunkSize) {
+		this.chunkSize = chunkSize;
+		this.chunksInFlight = threads * 2;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("sql-source-" + sqlSourceHelper.getSourceName() + "-encoder-%d").build());
+		this.encoders = new ThreadLocal<EventBodyEncoder>() {
+			@Override
+			protected EventBodyEncoder initialValue() {
+				return new EventBodyEncoder(sqlSourceHelper, sqlSourceCounter);
+			}
+		};
+	}
+
+	/**
+	 * @param rows Query result
+	 * @return true if the rows are worth encoding in parallel and safe to encode outside the polling thread
+	 */
+	public boolean accepts(List<List<Object>> rows) {
+
+		if (rows.size() <= chunkSize){
+			return false;
+		}
+		for (List<Object> row : rows){
+			for (Object cell : row){
+				if (EventBodyEncoder.isLob(cell)){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Receives the event bodies in the order of the rows
+	 */
+	interface BodyHandler {
+		void handle(List<Object> row, byte[] body) throws IOException;
+	}
+
+	/**
+	 * Encode the rows in chunks, handing each body over as soon as the chunks before it are handed over
+	 * @param rows Query result
+	 * @param handler Receives the rows and their bodies, in order, from the calling thread
+	 * @throws IOException if a row can't be encoded or the encoding is interrupted
+	 */
+	public void encode(List<List<Object>> rows, BodyHandler handler) throws IOException {
+
+		Deque<Future<byte[][]>> chunks = new ArrayDeque<Future<byte[][]>>(chunksInFlight);
+		int submitted = 0, handled = 0;
+		try {
+			while (handled < rows.size()){
+				while (submitted < rows.size() && chunks.size() < chunksInFlight){
+					chunks.add(executor.submit(chunkTask(rows.subList(submitted, Math.min(submitted + chunkSize, rows.size())))));
+					submitted += chunkSize;
+				}
+				for (byte[] body : chunks.poll().get()){
+					handler.handle(rows.get(handled++), body);
+				}
+			}
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+					: new IOException("Error encoding rows", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted encoding rows", e);
+		} finally {
+			cancel(chunks);
+		}
+	}
+
+	private Callable<byte[][]> chunkTask(final List<List<Object>> chunk) {
+		return new Callable<byte[][]>() {
+			@Override
+			public byte[][] call() throws IOException {
+				EventBodyEncoder encoder = encoders.get();
+				byte[][] bodies = new byte[chunk.size()][];
+				for (int i = 0; i < bodies.length; i++){
+					bodies[i] = encoder.encode(chunk.get(i));
+				}
+				return bodies;
+			}
+		};
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void cancel(Deque<Future<byte[][]>> chunks) {
+		for (Future<byte[][]> chunk : chunks){
+			chunk.cancel(true);
+		}
+	}
+}
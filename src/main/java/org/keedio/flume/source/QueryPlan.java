@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Execution plan of the custom query, as explained by the database, reduced to the findings that make a
+ * poll slow as the table grows: full scans and sorts not served by an index. <p>
+ * The plan output is parsed per vendor: the rows of MySQL <tt>EXPLAIN</tt> (access type, extra and
+ * estimated rows), the text lines of PostgreSQL <tt>EXPLAIN</tt> and Oracle <tt>DBMS_XPLAN</tt> (node
+ * names and costs) and the plan text of H2.
+ */
+public class QueryPlan {
+
+	private static final Pattern POSTGRESQL_COST = Pattern.compile("cost=[0-9.]+\\.\\.([0-9.]+)");
+
+	/**
+	 * Action taken when the plan has a full scan or sort at startup
+	 */
+	public enum CheckMode {
+		/** The plan is not checked */
+		NONE,
+		/** A warning is logged */
+		WARN,
+		/** The source configuration fails */
+		FAIL
+	}
+
+	private final boolean fullScan, sort;
+	private final double cost;
+	private final String text;
+
+	QueryPlan(boolean fullScan, boolean sort, double cost, String text) {
+		this.fullScan = fullScan;
+		this.sort = sort;
+		this.cost = cost;
+		this.text = text;
+	}
+
+	/**
+	 * @param vendor Database explaining the query
+	 * @param rows Rows of the plan output, by lower case column label
+	 * @return Findings of the plan
+	 */
+	public static QueryPlan parse(DatabaseVendor vendor, List<Map<String, Object>> rows) {
+
+		StringBuilder text = new StringBuilder();
+		for (Map<String, Object> row : rows){
+			if (text.length() > 0){
+				text.append('\n');
+			}
+			text.append(row.size() == 1 ? String.valueOf(row.values().iterator().next()) : row.toString());
+		}
+
+		switch (vendor){
+		case MYSQL:
+			return parseMySQL(rows, text.toString());
+		case POSTGRESQL:
+			return parsePostgreSQL(text.toString());
+		case ORACLE:
+			return parseOracle(text.toString());
+		default:
+			String plan = text.toString();
+			String upperPlan = plan.toUpperCase(Locale.ENGLISH);
+			return new QueryPlan(plan.contains("tableScan"), upperPlan.contains("ORDER BY") && !plan.contains("index sorted"),
+					0, plan);
+		}
+	}
+
+	/* One row per table: access type ALL (or index, a full index scan) and "Using filesort" in extra */
+	private static QueryPlan parseMySQL(List<Map<String, Object>> rows, String text) {
+
+		boolean fullScan = false, sort = false;
+		double cost = 0;
+		for (Map<String, Object> row : rows){
+			String type = String.valueOf(row.get("type"));
+			fullScan |= "ALL".equalsIgnoreCase(type) || "index".equalsIgnoreCase(type);
+			sort |= String.valueOf(row.get("extra")).contains("Using filesort");
+			if (row.get("rows") instanceof Number){
+				cost += ((Number) row.get("rows")).doubleValue();
+			}
+		}
+		return new QueryPlan(fullScan, sort, cost, text);
+	}
+
+	/* Seq Scan and Sort nodes, the total cost of the plan is the upper cost of the root node */
+	private static QueryPlan parsePostgreSQL(String text) {
+
+		boolean fullScan = false, sort = false;
+		for (String line : text.split("\n")){
+			String node = line.trim();
+			if (node.startsWith("->")){
+				node = node.substring(2).trim();
+			}
+			fullScan |= node.startsWith("Seq Scan") || node.startsWith("Parallel Seq Scan");
+			sort |= node.startsWith("Sort ") || node.startsWith("Incremental Sort");
+		}
+		Matcher matcher = POSTGRESQL_COST.matcher(text);
+		return new QueryPlan(fullScan, sort, matcher.find() ? Double.parseDouble(matcher.group(1)) : 0, text);
+	}
+
+	/* Plan table lines: full table and index scans, SORT ORDER BY, and the cost of the operation 0 */
+	private static QueryPlan parseOracle(String text) {
+
+		int costColumn = -1;
+		double cost = 0;
+		for (String line : text.split("\n")){
+			String[] columns = line.split("\\|");
+			for (int i = 0; i < columns.length && costColumn < 0; i++){
+				if (columns[i].trim().startsWith("Cost")){
+					costColumn = i;
+				}
+			}
+			if (costColumn > 0 && columns.length > costColumn && columns[1].trim().replace("*", "").equals("0")){
+				String value = columns[costColumn].trim();
+				int end = value.indexOf(' ');
+				try {
+					cost = Double.parseDouble(end < 0 ? value : value.substring(0, end));
+				} catch (NumberFormatException e) {
+					cost = 0;
+				}
+			}
+		}
+		return new QueryPlan(text.contains("TABLE ACCESS FULL") || text.contains("INDEX FULL SCAN")
+				|| text.contains("INDEX FAST FULL SCAN"), text.contains("SORT ORDER BY"), cost, text);
+	}
+
+	/**
+	 * @return true if a table or a whole index is scanned
+	 */
+	public boolean isFullScan() {
+		return fullScan;
+	}
+
+	/**
+	 * @return true if the rows are sorted instead of read in index order
+	 */
+	public boolean isSort() {
+		return sort;
+	}
+
+	/**
+	 * @return Estimated cost, in the units of the database (rows examined in MySQL), 0 if unknown
+	 */
+	public double getCost() {
+		return cost;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return Findings of the plan, empty if none
+	 */
+	public String getFindings() {
+
+		StringBuilder findings = new StringBuilder();
+		if (fullScan){
+			findings.append("full scan");
+		}
+		if (sort){
+			findings.append(findings.length() > 0 ? ", " : "").append("sort without index");
+		}
+		return findings.toString();
+	}
+}
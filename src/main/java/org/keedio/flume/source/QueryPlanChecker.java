@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import org.apache.flume.conf.ConfigurationException;
+import org.keedio.flume.metrics.SqlSourceCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the plan of the custom query for full scans and sorts not served by an index, which only hurt
+ * once the table is big. <p>
+ * The plan is checked when the source is configured, logging the findings or failing the configuration.
+ * While polling, the query time and row count are averaged: when the time grows a latency factor faster
+ * than the rows since the last check, the plan is checked again, as the database may have changed it.
+ */
+public class QueryPlanChecker {
+
+	private static final Logger LOG = LoggerFactory.getLogger(QueryPlanChecker.class);
+
+	/* Polls averaged before the baseline of a check is taken, and weight of each poll in the averages */
+	private static final int WARMUP_POLLS = 10;
+	private static final double SMOOTHING = 0.2;
+
+	private final SQLSourceHelper sqlSourceHelper;
+	private final HibernateHelper hibernateHelper;
+	private final SqlSourceCounter sqlSourceCounter;
+	private double averageTime, averageRows, baselineTime, baselineRows;
+	private int polls;
+	private long lastCheck;
+
+	/**
+	 * @param sqlSourceHelper Contains the plan check configuration parameters
+	 * @param hibernateHelper Session explaining the query
+	 * @param sqlSourceCounter Metric counters of the source
+	 */
+	public QueryPlanChecker(SQLSourceHelper sqlSourceHelper, HibernateHelper hibernateHelper,
+			SqlSourceCounter sqlSourceCounter) {
+		this.sqlSourceHelper = sqlSourceHelper;
+		this.hibernateHelper = hibernateHelper;
+		this.sqlSourceCounter = sqlSourceCounter;
+	}
+
+	/**
+	 * Check the plan at startup
+	 * @throws ConfigurationException if the plan has findings, or can't be explained, and the check mode is fail
+	 */
+	public void checkAtStartup() {
+
+		QueryPlan plan = check(sqlSourceHelper.getPlanCheckMode() == QueryPlan.CheckMode.FAIL);
+		if (plan != null && !plan.getFindings().isEmpty() && sqlSourceHelper.getPlanCheckMode() == QueryPlan.CheckMode.FAIL){
+			throw new ConfigurationException("Custom query plan has " + plan.getFindings() + ":\n" + plan.getText());
+		}
+	}
+
+	/**
+	 * Record a poll and check the plan again if the query time grows faster than the rows
+	 * @param rows Rows returned by the query
+	 * @param queryTime Query time in ms
+	 */
+	public void afterQuery(int rows, long queryTime) {
+
+		if (polls++ == 0){
+			averageTime = queryTime;
+			averageRows = rows;
+		}
+		else {
+			averageTime += SMOOTHING * (queryTime - averageTime);
+			averageRows += SMOOTHING * (rows - averageRows);
+		}
+
+		if (polls == WARMUP_POLLS){
+			baselineTime = Math.max(1, averageTime);
+			baselineRows = Math.max(1, averageRows);
+			return;
+		}
+
+		if (polls > WARMUP_POLLS
+				&& averageTime / baselineTime > sqlSourceHelper.getPlanCheckLatencyFactor() * Math.max(1, averageRows / baselineRows)
+				&& System.currentTimeMillis() - lastCheck >= sqlSourceHelper.getPlanCheckInterval()){
+			LOG.info("Query time grew from {} ms to {} ms, checking the query plan again", Math.round(baselineTime),
+					Math.round(averageTime));
+			check(false);
+			polls = 0;
+		}
+	}
+
+	/* Explain the query, logging and counting the findings. Explain errors fail a strict check */
+	private QueryPlan check(boolean strict) {
+
+		lastCheck = System.currentTimeMillis();
+		QueryPlan plan;
+		try {
+			plan = hibernateHelper.explainQuery();
+		} catch (Exception e) {
+			if (strict){
+				throw new ConfigurationException("Error explaining the custom query, its plan can't be checked", e);
+			}
+			LOG.warn("Error explaining the custom query, its plan is not checked", e);
+			return null;
+		}
+
+		if (plan == null){
+			LOG.info("Query plans of {} can't be checked", sqlSourceHelper.getDatabaseVendor());
+			return null;
+		}
+
+		sqlSourceCounter.setQueryPlanCost(Math.round(plan.getCost()));
+		if (plan.getFindings().isEmpty()){
+			LOG.info("Custom query plan checked, estimated cost {}", plan.getCost());
+		}
+		else {
+			sqlSourceCounter.incrementQueryPlanWarningCount();
+			LOG.warn("Custom query plan has " + plan.getFindings() + ", the index predicate may not be indexed:\n"
+					+ plan.getText());
+		}
+		return plan;
+	}
+}
@@ -0,0 +1,385 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Suppresses rows already sent to the channel, i.e. rows replayed after an agent restart or a connection reset. <p>
+ * Each row key is reduced to a 64 bits hash. The most recent hashes are kept in an exact window, and hashes
+ * evicted from the window are added to a rotating Bloom filter (two generations) with a configurable false
+ * positive rate, so memory is bounded whatever the number of rows. A row is a duplicate if its hash is found
+ * in the window or in the Bloom filter. The state is saved in a file next to the status file.
+ */
+public class RowDeduplicator {
+
+	private static final Logger LOG = LoggerFactory.getLogger(RowDeduplicator.class);
+	private static final int FILE_MAGIC = 0x53514444;
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int[] keyColumns;
+	private final File file;
+	private final LongWindow window;
+	private LongBloomFilter current, previous;
+	private final long capacity;
+	private final double falsePositiveRate;
+	private long[] pending = new long[16];
+	private int pendingCount;
+	private final LongHashSet pendingSet = new LongHashSet(16);
+
+	/**
+	 * @param keyColumns 0 based indexes of the columns forming the row key, empty to use the whole row
+	 * @param windowSize Number of recent keys kept exactly
+	 * @param capacity Keys stored in each Bloom filter generation before rotating it
+	 * @param falsePositiveRate Bloom filter false positive rate
+	 * @param file File to persist the state
+	 */
+	public RowDeduplicator(int[] keyColumns, int windowSize, long capacity, double falsePositiveRate, File file) {
+		this.keyColumns = keyColumns;
+		this.window = new LongWindow(windowSize);
+		this.capacity = capacity;
+		this.falsePositiveRate = falsePositiveRate;
+		this.file = file;
+		this.current = new LongBloomFilter(capacity, falsePositiveRate);
+		this.previous = new LongBloomFilter(capacity, falsePositiveRate);
+	}
+
+	/**
+	 * Remove the rows already sent, and the rows repeated in the batch. The keys of the returned rows are
+	 * recorded only when {@link #commit()} is called, once the rows are delivered to the channel.
+	 * @param rows Query result
+	 * @return Rows not seen before, in the same order
+	 */
+	public List<List<Object>> filter(List<List<Object>> rows) {
+
+		pendingCount = 0;
+		/* Sized to the batch: no rehash while filtering, and batches of the same size reuse the table */
+		pendingSet.clear(rows.size());
+		List<List<Object>> unique = new ArrayList<List<Object>>(rows.size());
+
+		for (List<Object> row : rows){
+			long hash = hash(row);
+			/* Rows repeated in the batch are kept once */
+			if (!window.contains(hash) && !current.mightContain(hash) && !previous.mightContain(hash)
+					&& pendingSet.add(hash)){
+				unique.add(row);
+				if (pendingCount == pending.length){
+					long[] grown = new long[pending.length * 2];
+					System.arraycopy(pending, 0, grown, 0, pendingCount);
+					pending = grown;
+				}
+				pending[pendingCount++] = hash;
+			}
+		}
+		return unique;
+	}
+
+	/**
+	 * Record the keys of the rows returned by the last call to {@link #filter(List)}
+	 */
+	public void commit() {
+
+		for (int i = 0; i < pendingCount; i++){
+			if (window.contains(pending[i])){
+				continue;
+			}
+			long evicted = window.add(pending[i]);
+			if (evicted != 0){
+				if (current.getInsertions() >= capacity){
+					previous = current;
+					current = new LongBloomFilter(capacity, falsePositiveRate);
+				}
+				current.put(evicted);
+			}
+		}
+		pendingCount = 0;
+	}
+
+	long hash(List<Object> row) {
+		return hash(row, keyColumns);
+	}
+
+	/*
+	 * FNV-1a over the key cells, with a murmur3 finalizer to spread the bits used by the Bloom filter
+	 */
+	static long hash(List<Object> row, int[] keyColumns) {
+
+		long hash = FNV_OFFSET;
+		int columns = keyColumns.length == 0 ? row.size() : keyColumns.length;
+
+		for (int i = 0; i < columns; i++){
+			Object cell = row.get(keyColumns.length == 0 ? i : keyColumns[i]);
+			String value = cell == null ? "" : cell.toString();
+			for (int j = 0; j < value.length(); j++){
+				hash = (hash ^ value.charAt(j)) * FNV_PRIME;
+			}
+			hash = (hash ^ 0xffff) * FNV_PRIME;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		/* 0 marks empty slots in the window */
+		return hash == 0 ? 1 : hash;
+	}
+
+	/**
+	 * Save the state in the deduplication file, writing a temporary file first
+	 */
+	public void save() {
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(FILE_MAGIC);
+				window.write(out);
+				current.write(out);
+				previous.write(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)){
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (IOException e) {
+			LOG.error("Error saving deduplication file " + file, e);
+		}
+	}
+
+	/**
+	 * Load the state from the deduplication file, if it exists and matches the configuration
+	 */
+	public void load() {
+
+		if (!file.exists()){
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_MAGIC){
+					throw new IOException("Not a deduplication file");
+				}
+				window.read(in);
+				LongBloomFilter loadedCurrent = LongBloomFilter.read(in);
+				LongBloomFilter loadedPrevious = LongBloomFilter.read(in);
+				if (loadedCurrent.isCompatible(current) && loadedPrevious.isCompatible(previous)){
+					current = loadedCurrent;
+					previous = loadedPrevious;
+				}
+				else {
+					LOG.warn("Deduplication Bloom filter configuration changed, discarding saved filter");
+				}
+			} finally {
+				in.close();
+			}
+			LOG.info("Deduplication state loaded from " + file);
+		} catch (IOException e) {
+			LOG.error("Error loading deduplication file " + file + ", starting with empty state", e);
+		}
+	}
+
+	/**
+	 * Fixed size FIFO window of hashes, with an open addressing hash set to look them up
+	 */
+	private static class LongWindow {
+
+		private final long[] ring;
+		private final long[] table;
+		private final int mask;
+		private int head, size;
+
+		LongWindow(int capacity) {
+			ring = new long[Math.max(1, capacity)];
+			int tableSize = Integer.highestOneBit(Math.max(2, ring.length * 2) - 1) << 1;
+			table = new long[tableSize];
+			mask = tableSize - 1;
+		}
+
+		boolean contains(long hash) {
+			for (int i = slot(hash); table[i] != 0; i = (i + 1) & mask){
+				if (table[i] == hash){
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/* @return evicted hash, 0 if the window was not full */
+		long add(long hash) {
+			long evicted = 0;
+			if (size == ring.length){
+				evicted = ring[head];
+				remove(evicted);
+			}
+			else {
+				size++;
+			}
+			ring[head] = hash;
+			head = (head + 1) % ring.length;
+			insert(hash);
+			return evicted;
+		}
+
+		private int slot(long hash) {
+			return (int) (hash ^ (hash >>> 32)) & mask;
+		}
+
+		private void insert(long hash) {
+			int i = slot(hash);
+			while (table[i] != 0){
+				i = (i + 1) & mask;
+			}
+			table[i] = hash;
+		}
+
+		/* linear probing removal shifting back the following entries */
+		private void remove(long hash) {
+			int i = slot(hash);
+			while (table[i] != hash){
+				if (table[i] == 0){
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			table[i] = 0;
+			for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask){
+				long moved = table[j];
+				table[j] = 0;
+				insert(moved);
+			}
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			int start = (head - size + ring.length) % ring.length;
+			for (int i = 0; i < size; i++){
+				out.writeLong(ring[(start + i) % ring.length]);
+			}
+		}
+
+		void read(DataInputStream in) throws IOException {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++){
+				long hash = in.readLong();
+				if (!contains(hash)){
+					add(hash);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bloom filter of 64 bits hashes, using double hashing to compute the bit positions
+	 */
+	private static class LongBloomFilter {
+
+		private final long[] bits;
+		private final long numBits;
+		private final int numHashes;
+		private long insertions;
+
+		LongBloomFilter(long expectedInsertions, double falsePositiveRate) {
+			this(optimalNumBits(expectedInsertions, falsePositiveRate),
+					optimalNumHashes(expectedInsertions, optimalNumBits(expectedInsertions, falsePositiveRate)));
+		}
+
+		private LongBloomFilter(long numBits, int numHashes) {
+			this.numBits = numBits;
+			this.bits = new long[(int) ((numBits + 63) / 64)];
+			this.numHashes = numHashes;
+		}
+
+		private static long optimalNumBits(long n, double p) {
+			return Math.max(64, (long) (-Math.max(1, n) * Math.log(p) / (Math.log(2) * Math.log(2))));
+		}
+
+		private static int optimalNumHashes(long n, long numBits) {
+			return Math.max(1, (int) Math.round((double) numBits / Math.max(1, n) * Math.log(2)));
+		}
+
+		void put(long hash) {
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 1; i <= numHashes; i++){
+				long index = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+				bits[(int) (index >>> 6)] |= 1L << index;
+			}
+			insertions++;
+		}
+
+		boolean mightContain(long hash) {
+			if (insertions == 0){
+				return false;
+			}
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 1; i <= numHashes; i++){
+				long index = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+				if ((bits[(int) (index >>> 6)] & (1L << index)) == 0){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		long getInsertions() {
+			return insertions;
+		}
+
+		boolean isCompatible(LongBloomFilter other) {
+			return numBits == other.numBits && numHashes == other.numHashes;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeLong(numBits);
+			out.writeInt(numHashes);
+			out.writeLong(insertions);
+			for (long word : bits){
+				out.writeLong(word);
+			}
+		}
+
+		static LongBloomFilter read(DataInputStream in) throws IOException {
+			LongBloomFilter filter = new LongBloomFilter(in.readLong(), in.readInt());
+			filter.insertions = in.readLong();
+			for (int i = 0; i < filter.bits.length; i++){
+				filter.bits[i] = in.readLong();
+			}
+			return filter;
+		}
+	}
+}
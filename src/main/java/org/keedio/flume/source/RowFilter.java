@@ -0,0 +1,504 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.flume.conf.ConfigurationException;
+
+/**
+ * Filters and projects the query result rows before they are converted to events. <p>
+ * The filter expression is parsed once and compiled to a tree of predicates bound to column indexes,
+ * so evaluating a row performs no parsing or lookups. Expression syntax:
+ * <ul>
+ * <li>Columns are referenced by their 1 based position: <tt>$1</tt>, <tt>$2</tt>...</li>
+ * <li>Literals are numbers or quoted strings: <tt>10</tt>, <tt>-2.5</tt>, <tt>'text'</tt></li>
+ * <li>Comparisons: <tt>= != &lt;&gt; &lt; &lt;= &gt; &gt;=</tt>, <tt>LIKE 'pattern'</tt>,
+ * <tt>IS NULL</tt>, <tt>IS NOT NULL</tt></li>
+ * <li>Logical operators and parentheses: <tt>AND</tt>, <tt>OR</tt>, <tt>NOT</tt>, <tt>( )</tt></li>
+ * </ul>
+ * i.e. <tt>$3 &gt; 100 AND ($4 = 'ACTIVE' OR $5 IS NULL)</tt>. <p>
+ * The column references are checked against each new result columns layout, which also tells how each
+ * comparison is evaluated: numerically for numeric SQL types, as text for the other types.
+ */
+public class RowFilter {
+
+	/**
+	 * Compiled condition over a row
+	 */
+	interface RowPredicate {
+		boolean test(List<Object> row);
+	}
+
+	private final RowPredicate predicate;
+	private final int[] projection;
+	private final List<Comparison> comparisons;
+	private int maxColumn;
+	private ConversionPlan plan;
+
+	/**
+	 * @param expression Filter expression, null to keep every row
+	 * @param projection 0 based indexes of the columns to keep, empty to keep every column
+	 */
+	public RowFilter(String expression, int[] projection) {
+		Parser parser = expression == null ? null : new Parser(expression);
+		this.predicate = parser == null ? null : parser.parse();
+		this.comparisons = parser == null ? new ArrayList<Comparison>() : parser.comparisons;
+		this.maxColumn = parser == null ? -1 : parser.maxColumn;
+		this.projection = projection;
+		for (int column : projection){
+			maxColumn = Math.max(maxColumn, column);
+		}
+	}
+
+	/**
+	 * Check the columns referenced against the result columns and classify the compared cells, once per
+	 * result columns layout. The parallel snapshot chunks bind the filter from their own threads
+	 * @param plan Conversion plan of the query result
+	 * @throws ConfigurationException if a column referenced is not in the result
+	 */
+	public synchronized void bind(ConversionPlan plan) {
+
+		if (plan == null || plan == this.plan){
+			return;
+		}
+		if (maxColumn >= plan.getColumnCount()){
+			throw new ConfigurationException("Column " + (maxColumn + 1) + " of filter.expression or projection.columns "
+					+ "is not in the query result, which has " + plan.getColumnCount() + " columns: " + plan.getDescription());
+		}
+		for (Comparison comparison : comparisons){
+			comparison.bind(plan);
+		}
+		this.plan = plan;
+	}
+
+	/**
+	 * Apply the filter and the projection to the query result
+	 * @param rows Query result
+	 * @return Rows matching the filter, with the projected columns
+	 */
+	public List<List<Object>> apply(List<List<Object>> rows) {
+
+		List<List<Object>> result = new ArrayList<List<Object>>(rows.size());
+
+		for (List<Object> row : rows){
+			List<Object> projected = applyRow(row);
+			if (projected != null){
+				result.add(projected);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Apply the filter and the projection to a single row, for the results streamed row by row
+	 * @param row Query result row
+	 * @return The row with the projected columns, null if it doesn't match the filter
+	 */
+	public List<Object> applyRow(List<Object> row) {
+
+		if (predicate != null && !predicate.test(row)){
+			return null;
+		}
+		return projection.length == 0 ? row : new ProjectedRow(row, projection);
+	}
+
+	/**
+	 * Projected columns of a query row. The row is kept, so the event headers are taken from its cells
+	 * with the column indexes of the query result, whatever the projection.
+	 */
+	static final class ProjectedRow extends AbstractList<Object> {
+
+		private final List<Object> row;
+		private final int[] projection;
+
+		ProjectedRow(List<Object> row, int[] projection) {
+			this.row = row;
+			this.projection = projection;
+		}
+
+		@Override
+		public Object get(int index) {
+			return row.get(projection[index]);
+		}
+
+		@Override
+		public int size() {
+			return projection.length;
+		}
+
+		/**
+		 * @return Row of the query result, with every column
+		 */
+		List<Object> getQueryRow() {
+			return row;
+		}
+	}
+
+	/**
+	 * Comparison between a column and a literal (or another column), with the literal pre-parsed
+	 */
+	private static class Comparison implements RowPredicate {
+
+		private final int column;
+		private final String operator;
+		private final int otherColumn;
+		private final String literal;
+		private final BigDecimal number;
+		private final double numberAsDouble;
+		/* Set once bound to a result layout: the cells are compared as numbers or as text */
+		private boolean bound, numeric;
+
+		Comparison(int column, String operator, int otherColumn, String literal) {
+			this.column = column;
+			this.operator = operator;
+			this.otherColumn = otherColumn;
+			this.literal = literal;
+			this.number = toNumber(literal);
+			this.numberAsDouble = number == null ? 0 : number.doubleValue();
+		}
+
+		void bind(ConversionPlan plan) {
+			numeric = plan.isNumeric(column) && (otherColumn < 0 || plan.isNumeric(otherColumn));
+			bound = true;
+		}
+
+		@Override
+		public boolean test(List<Object> row) {
+
+			Object value = row.get(column);
+			if (value == null){
+				return false;
+			}
+
+			int comparison;
+			if (otherColumn >= 0){
+				Object other = row.get(otherColumn);
+				if (other == null){
+					return false;
+				}
+				comparison = compare(value, other.toString(), bound && !numeric ? null : toNumber(other));
+			}
+			else {
+				comparison = compare(value, literal, number);
+			}
+
+			switch (operator){
+			case "=": return comparison == 0;
+			case "!=": return comparison != 0;
+			case "<": return comparison < 0;
+			case "<=": return comparison <= 0;
+			case ">": return comparison > 0;
+			default: return comparison >= 0;
+			}
+		}
+
+		private int compare(Object value, String text, BigDecimal numeric) {
+
+			/* Text columns are compared as text, their cells are not parsed */
+			if (numeric != null && (!bound || this.numeric)){
+				if (value instanceof BigDecimal){
+					return ((BigDecimal) value).compareTo(numeric);
+				}
+				if (value instanceof Number){
+					return Double.compare(((Number) value).doubleValue(),
+							numeric == number ? numberAsDouble : numeric.doubleValue());
+				}
+				BigDecimal parsed = toNumber(value);
+				if (parsed != null){
+					return parsed.compareTo(numeric);
+				}
+			}
+			return value.toString().compareTo(text);
+		}
+
+		private static BigDecimal toNumber(Object value) {
+			if (value instanceof BigDecimal){
+				return (BigDecimal) value;
+			}
+			if (value == null){
+				return null;
+			}
+			try {
+				return new BigDecimal(value.toString().trim());
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Recursive descent parser compiling the expression to predicates
+	 */
+	private static class Parser {
+
+		private final String expression;
+		private final List<String> tokens = new ArrayList<String>();
+		private int position;
+		private final List<Comparison> comparisons = new ArrayList<Comparison>();
+		private int maxColumn = -1;
+
+		Parser(String expression) {
+			this.expression = expression;
+			tokenize();
+		}
+
+		RowPredicate parse() {
+			RowPredicate result = parseOr();
+			if (position < tokens.size()){
+				throw error("unexpected " + tokens.get(position));
+			}
+			return result;
+		}
+
+		private RowPredicate parseOr() {
+			RowPredicate left = parseAnd();
+			while (accept("OR")){
+				final RowPredicate a = left;
+				final RowPredicate b = parseAnd();
+				left = new RowPredicate() {
+					@Override
+					public boolean test(List<Object> row) {
+						return a.test(row) || b.test(row);
+					}
+				};
+			}
+			return left;
+		}
+
+		private RowPredicate parseAnd() {
+			RowPredicate left = parseNot();
+			while (accept("AND")){
+				final RowPredicate a = left;
+				final RowPredicate b = parseNot();
+				left = new RowPredicate() {
+					@Override
+					public boolean test(List<Object> row) {
+						return a.test(row) && b.test(row);
+					}
+				};
+			}
+			return left;
+		}
+
+		private RowPredicate parseNot() {
+			if (accept("NOT")){
+				final RowPredicate negated = parseNot();
+				return new RowPredicate() {
+					@Override
+					public boolean test(List<Object> row) {
+						return !negated.test(row);
+					}
+				};
+			}
+			if (accept("(")){
+				RowPredicate inner = parseOr();
+				expect(")");
+				return inner;
+			}
+			return parseCondition();
+		}
+
+		private RowPredicate parseCondition() {
+
+			String left = next();
+
+			if (accept("IS")){
+				final boolean not = accept("NOT");
+				expect("NULL");
+				final int column = column(left);
+				return new RowPredicate() {
+					@Override
+					public boolean test(List<Object> row) {
+						return (row.get(column) == null) != not;
+					}
+				};
+			}
+
+			if (accept("LIKE")){
+				final int column = column(left);
+				String pattern = literal(next());
+				if (pattern == null){
+					throw error("LIKE needs a quoted pattern");
+				}
+				final Pattern regex = Pattern.compile(Pattern.quote(pattern).replace("%", "\\E.*\\Q")
+						.replace("_", "\\E.\\Q"), Pattern.DOTALL);
+				return new RowPredicate() {
+					@Override
+					public boolean test(List<Object> row) {
+						Object value = row.get(column);
+						return value != null && regex.matcher(value.toString()).matches();
+					}
+				};
+			}
+
+			String operator = next();
+			if (operator.equals("<>")){
+				operator = "!=";
+			}
+			if (!operator.matches("=|!=|<|<=|>|>=")){
+				throw error("unknown operator " + operator);
+			}
+			String right = next();
+
+			Comparison comparison;
+			if (isColumn(left)){
+				comparison = isColumn(right) ? new Comparison(column(left), operator, column(right), null)
+						: new Comparison(column(left), operator, -1, literalValue(right));
+			}
+			else if (isColumn(right)){
+				/* literal on the left side: swap operands */
+				comparison = new Comparison(column(right), swap(operator), -1, literalValue(left));
+			}
+			else {
+				throw error("comparison without columns");
+			}
+			comparisons.add(comparison);
+			return comparison;
+		}
+
+		private static String swap(String operator) {
+			switch (operator){
+			case "<": return ">";
+			case "<=": return ">=";
+			case ">": return "<";
+			case ">=": return "<=";
+			default: return operator;
+			}
+		}
+
+		private static boolean isColumn(String token) {
+			return token.startsWith("$");
+		}
+
+		private int column(String token) {
+			if (!isColumn(token)){
+				throw error("expected column reference instead of " + token);
+			}
+			try {
+				int column = Integer.parseInt(token.substring(1)) - 1;
+				if (column < 0){
+					throw error("column positions start at $1");
+				}
+				maxColumn = Math.max(maxColumn, column);
+				return column;
+			} catch (NumberFormatException e) {
+				throw error("invalid column reference " + token);
+			}
+		}
+
+		private String literalValue(String token) {
+			String value = literal(token);
+			if (value != null){
+				return value;
+			}
+			if (Comparison.toNumber(token) == null){
+				throw error("invalid literal " + token);
+			}
+			return token;
+		}
+
+		/* @return unquoted string literal, null if the token is not quoted */
+		private static String literal(String token) {
+			if (token.length() >= 2 && token.startsWith("'") && token.endsWith("'")){
+				return token.substring(1, token.length() - 1).replace("''", "'");
+			}
+			return null;
+		}
+
+		private String next() {
+			if (position >= tokens.size()){
+				throw error("unexpected end of expression");
+			}
+			return tokens.get(position++);
+		}
+
+		private boolean accept(String token) {
+			if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(token)){
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) {
+			if (!accept(token)){
+				throw error("expected " + token);
+			}
+		}
+
+		private void tokenize() {
+
+			int i = 0;
+			while (i < expression.length()){
+				char c = expression.charAt(i);
+				if (Character.isWhitespace(c)){
+					i++;
+				}
+				else if (c == '\''){
+					int end = i + 1;
+					while (true){
+						if (end >= expression.length()){
+							throw error("unterminated string");
+						}
+						if (expression.charAt(end) == '\''){
+							if (end + 1 < expression.length() && expression.charAt(end + 1) == '\''){
+								end += 2;
+								continue;
+							}
+							break;
+						}
+						end++;
+					}
+					tokens.add(expression.substring(i, end + 1));
+					i = end + 1;
+				}
+				else if ("()".indexOf(c) >= 0){
+					tokens.add(String.valueOf(c));
+					i++;
+				}
+				else if ("=!<>".indexOf(c) >= 0){
+					int end = i + 1;
+					if (end < expression.length() && "=>".indexOf(expression.charAt(end)) >= 0){
+						end++;
+					}
+					tokens.add(expression.substring(i, end));
+					i = end;
+				}
+				else {
+					int end = i;
+					while (end < expression.length() && !Character.isWhitespace(expression.charAt(end))
+							&& "()=!<>'".indexOf(expression.charAt(end)) < 0){
+						end++;
+					}
+					tokens.add(expression.substring(i, end));
+					i = end;
+				}
+			}
+		}
+
+		private ConfigurationException error(String message) {
+			return new ConfigurationException("Invalid filter.expression [" + expression + "]: " + message);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
+
+import org.hibernate.QueryTimeoutException;
+import org.hibernate.exception.JDBCConnectionException;
+import org.hibernate.exception.LockAcquisitionException;
+
+/**
+ * Classifies the exceptions thrown while querying the database, to decide if the query
+ * can be retried, if the connection has to be validated or if it is a problem with the query itself
+ */
+public final class SQLErrorClassifier {
+
+	/**
+	 * Kind of database error
+	 */
+	public enum ErrorType {
+		/** Timeouts, deadlocks, lock waits... the same query can be retried */
+		TRANSIENT,
+		/** The connection is broken or the database unreachable */
+		CONNECTION,
+		/** Syntax errors, missing tables, constraint violations... retrying will not help */
+		SQL
+	}
+
+	private SQLErrorClassifier() {
+	}
+
+	/**
+	 * Classify an exception walking its cause chain
+	 * @param throwable Exception thrown by hibernate or the JDBC driver
+	 * @return The error type, SQL if nothing more specific is found
+	 */
+	public static ErrorType classify(Throwable throwable) {
+
+		Throwable cause = throwable;
+		while (cause != null) {
+
+			if (cause instanceof JDBCConnectionException || cause instanceof IOException
+					|| cause instanceof SQLNonTransientConnectionException
+					|| cause instanceof SQLTransientConnectionException
+					|| cause instanceof SQLRecoverableException) {
+				return ErrorType.CONNECTION;
+			}
+			if (cause instanceof QueryTimeoutException || cause instanceof LockAcquisitionException
+					|| cause instanceof SQLTransientException) {
+				return ErrorType.TRANSIENT;
+			}
+			if (cause instanceof SQLException) {
+				ErrorType type = classifySQLState(((SQLException) cause).getSQLState());
+				if (type != null) {
+					return type;
+				}
+			}
+
+			cause = cause.getCause() == cause ? null : cause.getCause();
+		}
+
+		return ErrorType.SQL;
+	}
+
+	private static ErrorType classifySQLState(String sqlState) {
+
+		if (sqlState == null || sqlState.length() < 2) {
+			return null;
+		}
+		/* 08: connection exception */
+		if (sqlState.startsWith("08")) {
+			return ErrorType.CONNECTION;
+		}
+		/* 40: transaction rollback (deadlocks, serialization failures), HYT: ODBC timeouts, 57014: query canceled */
+		if (sqlState.startsWith("40") || sqlState.startsWith("HYT") || sqlState.equals("57014")) {
+			return ErrorType.TRANSIENT;
+		}
+		return null;
+	}
+}
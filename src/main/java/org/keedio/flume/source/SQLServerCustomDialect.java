@@ -9,16 +9,17 @@ public class SQLServerCustomDialect extends SQLServerDialect {
 
 	/**
 	 * Initializes a new instance of the {@link SQLServerDialect} class.
+	 * LOB types are kept as LOBs, so the source can stream them instead of reading them as Strings.
 	 */
 	public SQLServerCustomDialect(){	
 		registerHibernateType(Types.ARRAY, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.BIGINT, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.BINARY, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.BIT, StandardBasicTypes.STRING.getName());
-		registerHibernateType(Types.BLOB, StandardBasicTypes.STRING.getName());
+		registerHibernateType(Types.BLOB, StandardBasicTypes.BLOB.getName());
 		registerHibernateType(Types.BOOLEAN, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.CHAR, StandardBasicTypes.STRING.getName());
-		registerHibernateType(Types.CLOB, StandardBasicTypes.STRING.getName());
+		registerHibernateType(Types.CLOB, StandardBasicTypes.CLOB.getName());
 		registerHibernateType(Types.DATALINK, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.DATE, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.DECIMAL, StandardBasicTypes.STRING.getName());
@@ -27,11 +28,11 @@ public class SQLServerCustomDialect extends SQLServerDialect {
 		registerHibernateType(Types.FLOAT, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.INTEGER, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.JAVA_OBJECT, StandardBasicTypes.STRING.getName());
-		registerHibernateType(Types.LONGNVARCHAR, StandardBasicTypes.STRING.getName());
-		registerHibernateType(Types.LONGVARBINARY, StandardBasicTypes.STRING.getName());
-		registerHibernateType(Types.LONGVARCHAR, StandardBasicTypes.STRING.getName());
+		registerHibernateType(Types.LONGNVARCHAR, StandardBasicTypes.NCLOB.getName());
+		registerHibernateType(Types.LONGVARBINARY, StandardBasicTypes.BLOB.getName());
+		registerHibernateType(Types.LONGVARCHAR, StandardBasicTypes.CLOB.getName());
 		registerHibernateType(Types.NCHAR, StandardBasicTypes.STRING.getName());
-		registerHibernateType(Types.NCLOB, StandardBasicTypes.STRING.getName());
+		registerHibernateType(Types.NCLOB, StandardBasicTypes.NCLOB.getName());
 		registerHibernateType(Types.NULL, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.NUMERIC, StandardBasicTypes.STRING.getName());
 		registerHibernateType(Types.NVARCHAR, StandardBasicTypes.STRING.getName());
@@ -19,29 +19,26 @@
 package org.keedio.flume.source;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import org.apache.flume.ChannelException;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.EventDeliveryException;
 import org.apache.flume.PollableSource;
 import org.apache.flume.conf.Configurable;
+import org.apache.flume.conf.ConfigurationException;
 import org.apache.flume.event.SimpleEvent;
+import org.apache.flume.lifecycle.LifecycleState;
 import org.apache.flume.source.AbstractSource;
+import org.hibernate.HibernateException;
 import org.keedio.flume.metrics.SqlSourceCounter;
+import org.keedio.flume.source.FlightRecorderEvents.TracedEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.opencsv.CSVWriter;
-
-/*Support UTF-8 character encoding.*/
-import com.google.common.base.Charsets;
-import java.nio.charset.Charset;
-
 
 /**
  * A Source to read data from a SQL database. This source ask for new data in a table each configured time.<p>
@@ -60,10 +57,29 @@ public class SQLSource extends AbstractSource implements Configurable, PollableS
     }
 
     private static final Logger LOG = LoggerFactory.getLogger(SQLSource.class);
+    static final String SCHEMA_VERSION_HEADER = "schemaVersion";
+    static final String SCHEMA_CHANGE_HEADER = "schemaChange";
+    static final String TIMESTAMP_HEADER = "timestamp";
+    static final String KEY_HEADER = "key";
+    static final String WATERMARK_HEADER = "watermark";
+    static final String TABLE_HEADER = "table";
+    static final String OPERATION_HEADER = "operation";
     protected SQLSourceHelper sqlSourceHelper;
     private SqlSourceCounter sqlSourceCounter;
-    private CSVWriter csvWriter;
+    private ChannelWriter channelWriter;
     private HibernateHelper hibernateHelper;
+    private SnapshotLoader snapshotLoader;
+    private LoadGovernor loadGovernor;
+    private RowDeduplicator rowDeduplicator;
+    private RowFilter rowFilter;
+    private EventSpillBuffer eventSpillBuffer;
+    private LeaseCoordinator leaseCoordinator;
+    private ParallelEncoder parallelEncoder;
+    private QueryPlanChecker queryPlanChecker;
+    private boolean leaseHeld;
+    private boolean pendingRows;
+    private volatile Context pendingTunables;
+    private volatile Context pendingConfiguration;
        
     /**
      * Configure the source, load configuration properties and establish connection with database
@@ -74,55 +90,501 @@ public class SQLSource extends AbstractSource implements Configurable, PollableS
     	LOG.getName();
         	
     	LOG.info("Reading and processing configuration values for source " + getName());
-		
-    	/* Initialize configuration parameters */
-    	sqlSourceHelper = new SQLSourceHelper(context, this.getName());
+    	
+    	/* Reconfigured: tunable properties are applied by the polling thread before the next poll */
+    	if (sqlSourceHelper != null){
+    		if (pendingConfiguration == null && sqlSourceHelper.isTunableChange(context)){
+    			LOG.info("Only tunable properties changed, applying them to source {} without reconnecting", getName());
+    			pendingTunables = context;
+    			return;
+    		}
+    		/* Any other change rebuilds the source, by the polling thread if it is running */
+    		if (getLifecycleState() == LifecycleState.START){
+    			LOG.info("Configuration of source {} changed, rebuilding it before the next poll", getName());
+    			pendingTunables = null;
+    			pendingConfiguration = context;
+    			return;
+    		}
+    	}
+    	
+    	build(new SQLSourceHelper(context, this.getName()));
+    }
+    
+    /*
+     * Create the components of the configuration. A source configured before has its components closed
+     * and reset, as the new configuration may not enable them
+     */
+    private void build(SQLSourceHelper configuration) {
+    	
+    	HibernateHelper previousHibernateHelper = null;
+    	if (sqlSourceHelper != null){
+    		previousHibernateHelper = hibernateHelper;
+    		try {
+    			closeComponents();
+    		} catch (IOException e) {
+    			LOG.warn("Error closing the components of the previous configuration", e);
+    		}
+    		eventSpillBuffer = null;
+    		leaseCoordinator = null;
+    		parallelEncoder = null;
+    		queryPlanChecker = null;
+    		rowDeduplicator = null;
+    		rowFilter = null;
+    		leaseHeld = false;
+    		pendingRows = false;
+    	}
+    	sqlSourceHelper = configuration;
         
     	/* Initialize metric counters */
-		sqlSourceCounter = new SqlSourceCounter("SOURCESQL." + this.getName());
+    	if (sqlSourceCounter == null){
+    		sqlSourceCounter = new SqlSourceCounter("SOURCESQL." + this.getName());
+    	}
         
-        /* Establish connection with database */
-        hibernateHelper = new HibernateHelper(sqlSourceHelper);
+        /* Establish connection with database, reusing the session factory if the connection didn't change */
+        hibernateHelper = new HibernateHelper(sqlSourceHelper, sqlSourceCounter);
         hibernateHelper.establishSession();
+        if (previousHibernateHelper != null){
+        	previousHibernateHelper.closeSession();
+        }
+        
+        /* The generated query pages the whole table by design, only custom queries are checked */
+        if (sqlSourceHelper.getPlanCheckMode() != QueryPlan.CheckMode.NONE && sqlSourceHelper.isCustomQuerySet()){
+        	queryPlanChecker = new QueryPlanChecker(sqlSourceHelper, hibernateHelper, sqlSourceCounter);
+        	queryPlanChecker.checkAtStartup();
+        }
        
-        /* Instantiate the CSV Writer */
-        csvWriter = new CSVWriter(new ChannelWriter(),sqlSourceHelper.getDelimiterEntry().charAt(0));
+        /* Map the spill buffer, events spilled before a restart are queried again */
+        if (sqlSourceHelper.getSpillCapacity() > 0){
+        	try {
+        		eventSpillBuffer = new EventSpillBuffer(sqlSourceHelper.getSpillFile(), sqlSourceHelper.getSpillCapacity());
+        	} catch (IOException e) {
+        		throw new ConfigurationException("Error creating spill file " + sqlSourceHelper.getSpillFile(), e);
+        	}
+        }
+        
+        if (sqlSourceHelper.isCoordinationEnabled()){
+        	leaseCoordinator = new LeaseCoordinator(sqlSourceHelper.getCoordinationURL(),
+        			sqlSourceHelper.getCoordinationUserName(), sqlSourceHelper.getCoordinationPassword(),
+        			sqlSourceHelper.getCoordinationTable(), sqlSourceHelper.getCoordinationAgentId(),
+        			sqlSourceHelper.getWorkUnit(), sqlSourceHelper.getCoordinationLeaseTimeout());
+        }
+        
+        if (sqlSourceHelper.getEncodingThreads() > 1 && sqlSourceHelper.getEncodingChunkSize() > 0){
+        	parallelEncoder = new ParallelEncoder(sqlSourceHelper, sqlSourceCounter, sqlSourceHelper.getEncodingThreads(),
+        			sqlSourceHelper.getEncodingChunkSize());
+        }
         
+        /* Instantiate the Channel Writer */
+        channelWriter = new ChannelWriter(eventSpillBuffer);
+        
+        loadGovernor = new LoadGovernor(sqlSourceHelper, sqlSourceCounter);
+        if (sqlSourceHelper.isDeduplicationEnabled()){
+        	rowDeduplicator = createRowDeduplicator();
+        }
+        
+        if (sqlSourceHelper.getFilterExpression() != null || sqlSourceHelper.getProjectionColumns().length > 0){
+        	rowFilter = new RowFilter(sqlSourceHelper.getFilterExpression(), sqlSourceHelper.getProjectionColumns());
+        }
+        
+        snapshotLoader = new SnapshotLoader(this, sqlSourceHelper, hibernateHelper, loadGovernor, rowFilter, sqlSourceCounter);
     }  
     
+    /**
+     * Create a Channel Writer sending each written row as an event to the source channels
+     */
+    ChannelWriter createChannelWriter() {
+    	return new ChannelWriter(null);
+    }
+    
+    private RowDeduplicator createRowDeduplicator() {
+    	RowDeduplicator deduplicator = new RowDeduplicator(sqlSourceHelper.getDeduplicationKeyColumns(),
+    			sqlSourceHelper.getDeduplicationWindowSize(), sqlSourceHelper.getDeduplicationCapacity(),
+    			sqlSourceHelper.getDeduplicationFalsePositiveRate(), sqlSourceHelper.getDeduplicationFile());
+    	deduplicator.load();
+    	return deduplicator;
+    }
+    
     /**
      * Process a batch of events performing SQL Queries
      */
 	@Override
 	public Status process() throws EventDeliveryException {
 		
+		Context configuration = pendingConfiguration;
+		if (configuration != null){
+			pendingConfiguration = null;
+			rebuild(configuration);
+		}
+		
+		Context tunables = pendingTunables;
+		if (tunables != null){
+			pendingTunables = null;
+			applyTunables(tunables);
+		}
+		
+		TracedEvent pollEvent = FlightRecorderEvents.begin(FlightRecorderEvents.POLL);
+		String watermarkBefore = sqlSourceHelper.getCurrentIndex();
+		int rowCount = 0, eventCount = 0;
+		long queryTime = 0;
+		boolean queried = false, rolledBack = false;
+		channelWriter.resetTimes();
+		
 		try {
 			sqlSourceCounter.startProcess();			
 			
-			List<List<Object>> result = hibernateHelper.executeQuery();
+			if (leaseCoordinator != null){
+				boolean held = leaseCoordinator.holdLease();
+				if (held && !leaseHeld){
+					resumeFromCheckpoint();
+				}
+				leaseHeld = held;
+				if (!held){
+					sqlSourceCounter.endProcess(0);
+					Thread.sleep(sqlSourceHelper.getRunQueryDelay());
+					return Status.BACKOFF;
+				}
+			}
+			
+			if (eventSpillBuffer != null && !eventSpillBuffer.isEmpty()){
+				drainSpillBuffer();
+				if (eventSpillBuffer.getUsage() >= sqlSourceHelper.getSpillHighWatermark()){
+					LOG.warn("Spill buffer above high watermark, {} events pending", eventSpillBuffer.size());
+					sqlSourceCounter.endProcess(0);
+					Thread.sleep(sqlSourceHelper.getRunQueryDelay());
+					return Status.BACKOFF;
+				}
+			}
+			
+			if (!hibernateHelper.isAvailable()){
+				LOG.warn("Circuit breaker open, database {} will not be polled", sqlSourceHelper.getConnectionURL());
+				sqlSourceCounter.endProcess(0);
+				Thread.sleep(sqlSourceHelper.getRunQueryDelay());
+				return Status.BACKOFF;
+			}
+			
+			hibernateHelper.route();
+			
+			if (sqlSourceHelper.isSnapshotRequired()){
+				if (!snapshotLoader.run()){
+					Thread.sleep(sqlSourceHelper.getRunQueryDelay());
+					return Status.BACKOFF;
+				}
+				return Status.READY;
+			}
+			
+			String probeValue = null;
+			if (sqlSourceHelper.isProbeQuerySet() && !pendingRows){
+				try {
+					probeValue = hibernateHelper.executeProbeQuery();
+					boolean newData = sqlSourceHelper.hasNewData(probeValue);
+					sqlSourceCounter.incrementProbeQueryCount(newData);
+					
+					if (!newData){
+						sqlSourceCounter.endProcess(0);
+						Thread.sleep(sqlSourceHelper.getRunQueryDelay());
+						return Status.READY;
+					}
+				} catch (HibernateException e) {
+					LOG.warn("Error executing probe query, running full query", e);
+				}
+			}
+			
+			if (sqlSourceHelper.getLoadQuery() != null){
+				loadGovernor.updateLoad(hibernateHelper.executeLoadQuery());
+			}
+			
+			TimeWindow timeWindow = sqlSourceHelper.getTimeWindow();
+			if (timeWindow != null){
+				timeWindow.plan(Long.parseLong(sqlSourceHelper.getCurrentIndex()), System.currentTimeMillis());
+			}
+			
+			List<List<Object>> result;
+			String endpoint = hibernateHelper.getCurrentURL();
+			loadGovernor.beforeQuery(endpoint);
+			long queryStart = System.currentTimeMillis();
+			long queryNanos = System.nanoTime();
+			try {
+				result = hibernateHelper.executeQuery();
+			} finally {
+				loadGovernor.afterQuery(endpoint, System.currentTimeMillis() - queryStart);
+				queryTime = System.nanoTime() - queryNanos;
+			}
+			queried = true;
+			rowCount = result.size();
+			if (queryPlanChecker != null && !hibernateHelper.isLastQueryFailed()){
+				queryPlanChecker.afterQuery(result.size(), queryTime / 1000000);
+			}
+			loadGovernor.throttleRows(result.size());
+			
+			if (!hibernateHelper.isLastQueryFailed()){
+				trackSchema(hibernateHelper.getConversionPlan());
+				channelWriter.setConversionPlan(hibernateHelper.getConversionPlan());
+				if (rowFilter != null){
+					bindFilter(hibernateHelper.getConversionPlan());
+				}
+			}
+			
+			boolean windowSettled = false;
+			if (timeWindow != null){
+				windowSettled = timeWindow.isSettled() && !hibernateHelper.isLastQueryFailed();
+				result = timeWindow.filterSent(result);
+			}
 						
 			if (!result.isEmpty())
 			{
-				csvWriter.writeAll(sqlSourceHelper.getAllRows(result),sqlSourceHelper.encloseByQuotes());
-				csvWriter.flush();
-				sqlSourceCounter.incrementEventCount(result.size());
+				List<List<Object>> rows = result;
+				if (rowDeduplicator != null){
+					rows = rowDeduplicator.filter(result);
+					sqlSourceCounter.incrementSuppressedRowCount(result.size() - rows.size());
+				}
+				if (rowFilter != null){
+					int unfiltered = rows.size();
+					rows = rowFilter.apply(rows);
+					sqlSourceCounter.incrementFilteredRowCount(unfiltered - rows.size());
+				}
+				
+				/* Other agent may be polling the same rows if the lease expired during the query */
+				if (leaseCoordinator != null && !leaseCoordinator.isHeld()){
+					LOG.warn("Lease of source {} lost during the poll, rows not delivered", getName());
+					sqlSourceHelper.rollbackCurrentIndex();
+					resetState();
+					leaseHeld = false;
+					sqlSourceCounter.endProcess(0);
+					return Status.BACKOFF;
+				}
+				
+				channelWriter.writeAll(rows);
+				channelWriter.flush();
+				sqlSourceCounter.incrementEventCount(rows.size());
+				eventCount = rows.size();
 				
-				sqlSourceHelper.updateStatusFile();
+				if (rowDeduplicator != null){
+					rowDeduplicator.commit();
+				}
+			}
+			
+			/* The settled window is complete, the next one starts at its end */
+			if (windowSettled){
+				sqlSourceHelper.setCurrentIndex(Long.toString(timeWindow.advance()));
+			}
+			
+			/* Spilled events are not delivered yet, the index is committed once they are drained */
+			if ((!result.isEmpty() || windowSettled) && (eventSpillBuffer == null || eventSpillBuffer.isEmpty())){
+				commitStatus();
 			}
 			
 			sqlSourceCounter.endProcess(result.size());
 			
-			if (result.size() < sqlSourceHelper.getMaxRows()){
+			if (timeWindow != null){
+				pendingRows = windowSettled;
+			}
+			else {
+				pendingRows = (sqlSourceHelper.getMaxRows() != 0 && result.size() >= sqlSourceHelper.getMaxRows())
+						|| hibernateHelper.isByteBudgetReached();
+			}
+			
+			if (!pendingRows){
+				sqlSourceHelper.setLastProbeValue(probeValue);
+			}
+			
+			/* Settled windows are walked without delay to catch up */
+			if (timeWindow != null ? !windowSettled
+					: result.size() < sqlSourceHelper.getMaxRows() && !hibernateHelper.isByteBudgetReached()){
 				Thread.sleep(sqlSourceHelper.getRunQueryDelay());
 			}
 						
 			return Status.READY;
 			
+		} catch (ChannelException e) {
+			rollback(e);
+			rolledBack = true;
+			return Status.BACKOFF;
 		} catch (IOException | InterruptedException e) {
 			LOG.error("Error procesing row", e);
 			return Status.BACKOFF;
+		} finally {
+			if (pollEvent.isRecorded()){
+				pollEvent.set("source", getName()).set("watermarkBefore", watermarkBefore)
+						.set("watermarkAfter", sqlSourceHelper.getCurrentIndex()).set("rows", rowCount)
+						.set("events", eventCount).set("bytes", queried ? hibernateHelper.getLastQueryBytes() : 0L)
+						.set("queryTime", queryTime).set("conversionTime", channelWriter.getConversionTime())
+						.set("channelTime", channelWriter.getChannelTime())
+						.set("reconnects", queried ? hibernateHelper.getLastQueryReconnects() : 0)
+						.set("rolledBack", rolledBack).commit();
+			}
+		}
+	}
+	
+	/*
+	 * The query already moved the index past its rows: if the filter doesn't fit the result columns, restore
+	 * the saved state before failing, or the rows would be skipped by the next status commit
+	 */
+	private void bindFilter(ConversionPlan plan) {
+		
+		try {
+			rowFilter.bind(plan);
+		} catch (ConfigurationException e) {
+			sqlSourceHelper.rollbackCurrentIndex();
+			resetState();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Send the spilled events to the channel, until it rejects them again, and commit
+	 * the status once they are all delivered
+	 */
+	private void drainSpillBuffer() {
+		
+		try {
+			List<Event> events;
+			while (!(events = eventSpillBuffer.peek(sqlSourceHelper.getBatchSize())).isEmpty()){
+				getChannelProcessor().processEventBatch(events);
+				eventSpillBuffer.remove(events.size());
+			}
+		} catch (ChannelException e) {
+			LOG.debug("Channel still full, {} events remain in the spill buffer", eventSpillBuffer.size());
+		}
+		
+		sqlSourceCounter.setSpilledEventCount(eventSpillBuffer.size());
+		if (eventSpillBuffer.isEmpty()){
+			commitStatus();
 		}
 	}
+	
+	/*
+	 * Detect changes of the result columns, i.e. after an ALTER TABLE, comparing the schema version
+	 * with the one saved in the status file
+	 */
+	private void trackSchema(ConversionPlan plan) throws IOException {
+		
+		if (plan == null || plan.getVersion().equals(sqlSourceHelper.getSchemaVersion())){
+			return;
+		}
+		
+		if (sqlSourceHelper.getSchemaVersion() != null){
+			LOG.warn("Result columns changed, schema version {}: {}", plan.getVersion(), plan.getDescription());
+			sqlSourceCounter.incrementSchemaChangeCount();
+			if (sqlSourceHelper.isSchemaChangeEventEnabled()){
+				channelWriter.writeSchemaChange(plan);
+			}
+		}
+		sqlSourceHelper.setSchemaVersion(plan.getVersion());
+		channelWriter.setSchemaVersion(plan.getVersion());
+	}
+	
+	private void commitStatus() {
+		
+		TracedEvent checkpointEvent = FlightRecorderEvents.begin(FlightRecorderEvents.CHECKPOINT);
+		sqlSourceHelper.updateStatusFile();
+		if (leaseCoordinator != null){
+			leaseCoordinator.saveCheckpoint(sqlSourceHelper.getCurrentIndex());
+		}
+		if (rowDeduplicator != null){
+			rowDeduplicator.save();
+		}
+		if (sqlSourceHelper.getTimeWindow() != null){
+			sqlSourceHelper.getTimeWindow().save();
+		}
+		checkpointEvent.set("source", getName()).set("watermark", sqlSourceHelper.getCurrentIndex())
+				.set("lease", leaseCoordinator != null).commit();
+	}
+	
+	/*
+	 * The channel rejected events that could not be spilled: discard the undelivered events and
+	 * restore the state saved with the last delivered row, so the rows are queried again
+	 */
+	private void rollback(ChannelException e) {
+		
+		String index = sqlSourceHelper.rollbackCurrentIndex();
+		LOG.warn("Channel rejected events, rows will be queried again from index " + index, e);
+		
+		resetState();
+		sqlSourceCounter.endProcess(0);
+	}
+	
+	/*
+	 * The lease of the source was just acquired: continue from the checkpoint saved by the last
+	 * agent holding it, discarding the state kept while other agent was polling
+	 */
+	private void resumeFromCheckpoint() {
+		
+		String checkpoint = leaseCoordinator.getCheckpoint();
+		if (checkpoint != null){
+			sqlSourceHelper.setCurrentIndex(checkpoint);
+		}
+		LOG.info("Polling from index {}", sqlSourceHelper.getCurrentIndex());
+		resetState();
+	}
+	
+	/*
+	 * Apply a changed configuration between polls, so no poll runs with components being closed.
+	 * Invalid configuration parameters are logged and the previous configuration kept.
+	 */
+	private void rebuild(Context context) {
+		
+		SQLSourceHelper configuration;
+		try {
+			configuration = new SQLSourceHelper(context, this.getName());
+		} catch (ConfigurationException e) {
+			LOG.error("Invalid configuration of source " + getName() + ", keeping the previous one", e);
+			return;
+		}
+		build(configuration);
+		if (leaseCoordinator != null){
+			leaseCoordinator.start();
+		}
+		LOG.info("Source {} configured again, query: {}", getName(), sqlSourceHelper.getQuery());
+	}
+	
+	/*
+	 * Apply the tunable properties between polls. The encoders keep the body format, so the writer is
+	 * created again; it has no pending events after a poll.
+	 */
+	private void applyTunables(Context context) {
+		
+		sqlSourceHelper.applyTunables(context);
+		channelWriter = new ChannelWriter(eventSpillBuffer);
+		if (parallelEncoder != null){
+			parallelEncoder.close();
+			parallelEncoder = new ParallelEncoder(sqlSourceHelper, sqlSourceCounter, sqlSourceHelper.getEncodingThreads(),
+					sqlSourceHelper.getEncodingChunkSize());
+		}
+		LOG.info("Tunable properties applied, query: {}", sqlSourceHelper.getQuery());
+	}
+	
+	/* Close the components of the configuration, except the database session */
+	private void closeComponents() throws IOException {
+		
+		channelWriter.close();
+		if (eventSpillBuffer != null){
+			eventSpillBuffer.close();
+		}
+		if (leaseCoordinator != null){
+			leaseCoordinator.close();
+		}
+		if (parallelEncoder != null){
+			parallelEncoder.close();
+		}
+	}
+	
+	/* Discard the events not delivered and the state derived from them */
+	private void resetState() {
+		
+		channelWriter.discard();
+		if (eventSpillBuffer != null){
+			eventSpillBuffer.clear();
+			sqlSourceCounter.setSpilledEventCount(0);
+		}
+		if (rowDeduplicator != null){
+			rowDeduplicator = createRowDeduplicator();
+		}
+		if (sqlSourceHelper.getTimeWindow() != null){
+			sqlSourceHelper.getTimeWindow().reset();
+		}
+		sqlSourceHelper.setLastProbeValue(null);
+		pendingRows = true;
+	}
  
 	/**
 	 * Starts the source. Starts the metrics counter.
@@ -132,6 +594,9 @@ public class SQLSource extends AbstractSource implements Configurable, PollableS
         
     	LOG.info("Starting sql source {} ...", getName());
         sqlSourceCounter.start();
+        if (leaseCoordinator != null){
+        	leaseCoordinator.start();
+        }
         super.start();
     }
 
@@ -146,45 +611,202 @@ public class SQLSource extends AbstractSource implements Configurable, PollableS
         try 
         {
             hibernateHelper.closeSession();
-            csvWriter.close();    
-        } catch (IOException e) {
-        	LOG.warn("Error CSVWriter object ", e);
+            closeComponents();
+        } catch (Exception e) {
+        	LOG.warn("Error closing ChannelWriter object ", e);
         } finally {
         	this.sqlSourceCounter.stop();
         	super.stop();
         }
     }
     
-    private class ChannelWriter extends Writer{
+    /**
+     * Encodes rows as events and sends them to the source channels in batches. Batches rejected by
+     * the channel are appended to the spill buffer, if any, as are the following ones while the buffer
+     * is not empty to keep the events order. <p>
+     * Header values taken from the row cells are resolved to column indexes once per result columns
+     * layout; the timestamp and table headers are shared by the events of a batch.
+     */
+    class ChannelWriter {
         private List<Event> events = new ArrayList<>();
+        private EventBodyEncoder eventBodyEncoder = new EventBodyEncoder(sqlSourceHelper, sqlSourceCounter);
+        private final EventSpillBuffer spillBuffer;
+        private String schemaVersion;
+        private long conversionTime, channelTime;
+        private final String table = sqlSourceHelper.getHeaderTable();
+        private String batchTimestamp;
+        private ConversionPlan conversionPlan;
+        private int keyColumn, watermarkColumn, operationColumn, headerCapacity;
+        
+        ChannelWriter(EventSpillBuffer spillBuffer) {
+        	this.spillBuffer = spillBuffer;
+        	this.schemaVersion = sqlSourceHelper.getSchemaVersion();
+        	resolveHeaderColumns();
+        }
+        
+        /* Columns named in the header configuration are resolved with the labels of the result columns */
+        void setConversionPlan(ConversionPlan plan) {
+        	if (plan != null && plan != conversionPlan){
+        		conversionPlan = plan;
+        		resolveHeaderColumns();
+        	}
+        }
+        
+        private void resolveHeaderColumns() {
+        	keyColumn = headerColumn(sqlSourceHelper.getHeaderKeyColumn());
+        	watermarkColumn = headerColumn(sqlSourceHelper.getHeaderWatermarkColumn());
+        	operationColumn = headerColumn(sqlSourceHelper.getHeaderOperationColumn());
+        	headerCapacity = 2 + (table == null ? 0 : 1) + (keyColumn < 0 ? 0 : 1) + (watermarkColumn < 0 ? 0 : 1)
+        			+ (operationColumn < 0 ? 0 : 1);
+        }
+        
+        /* Column index, 0 based, from a 1 based index or a column label, -1 if not configured or unknown */
+        private int headerColumn(String column) {
+        	if (column == null)
+        		return -1;
+        	try {
+        		return Integer.parseInt(column.trim()) - 1;
+        	} catch (NumberFormatException e) {
+        		if (conversionPlan == null)
+        			return -1;
+        		int index = conversionPlan.getColumnIndex(column.trim());
+        		if (index < 0)
+        			LOG.warn("Header column {} not found in the result columns", column);
+        		return index;
+        	}
+        }
+        
+        void setSchemaVersion(String schemaVersion) {
+        	this.schemaVersion = schemaVersion;
+        }
+        
+        /* Nanoseconds spent encoding rows and putting events in the channel, since the last reset */
+        long getConversionTime() {
+        	return conversionTime;
+        }
+        
+        long getChannelTime() {
+        	return channelTime;
+        }
+        
+        void resetTimes() {
+        	conversionTime = 0;
+        	channelTime = 0;
+        }
 
-        @Override
-        public void write(char[] cbuf, int off, int len) throws IOException {
+        public void write(List<Object> row) throws IOException {
+            write(row, eventBodyEncoder.encode(row));
+        }
+        
+        private void write(List<Object> row, byte[] body) {
             Event event = new SimpleEvent();
             
-            String s = new String(cbuf);
-            event.setBody(s.substring(off, len-1).getBytes(Charset.forName(sqlSourceHelper.getDefaultCharsetResultSet())));
+            event.setBody(body);
+            
+            if (events.isEmpty())
+            	batchTimestamp = String.valueOf(System.currentTimeMillis());
+            
+            EventHeaders headers = new EventHeaders(headerCapacity);
+            headers.put(TIMESTAMP_HEADER, batchTimestamp);
+            if (schemaVersion != null)
+            	headers.put(SCHEMA_VERSION_HEADER, schemaVersion);
+            if (table != null)
+            	headers.put(TABLE_HEADER, table);
+            putCell(headers, KEY_HEADER, row, keyColumn);
+            putCell(headers, WATERMARK_HEADER, row, watermarkColumn);
+            putCell(headers, OPERATION_HEADER, row, operationColumn);
+            event.setHeaders(headers);
             
-            Map<String, String> headers;
-            headers = new HashMap<String, String>();
-			headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
-			event.setHeaders(headers);
-			
             events.add(event);
             
             if (events.size() >= sqlSourceHelper.getBatchSize())
             	flush();
         }
+        
+        /* Header columns are indexes of the query result, read before the projection */
+        private void putCell(EventHeaders headers, String header, List<Object> row, int column) {
+        	if (row instanceof RowFilter.ProjectedRow)
+        		row = ((RowFilter.ProjectedRow) row).getQueryRow();
+        	if (column >= 0 && column < row.size() && row.get(column) != null)
+        		headers.put(header, row.get(column).toString());
+        }
+        
+        /* Event describing the new result columns, sent before the rows using them */
+        void writeSchemaChange(ConversionPlan plan) {
+        	Event event = new SimpleEvent();
+        	
+        	event.setBody(plan.getDescription().getBytes(Charset.forName(sqlSourceHelper.getDefaultCharsetResultSet())));
+        	
+        	EventHeaders headers = new EventHeaders(3);
+        	headers.put(TIMESTAMP_HEADER, String.valueOf(System.currentTimeMillis()));
+        	headers.put(SCHEMA_VERSION_HEADER, plan.getVersion());
+        	headers.put(SCHEMA_CHANGE_HEADER, "true");
+        	event.setHeaders(headers);
+        	
+        	events.add(event);
+        	flush();
+        }
 
-        @Override
-        public void flush() throws IOException {
-            getChannelProcessor().processEventBatch(events);
+        public void writeAll(List<List<Object>> rows) throws IOException {
+            long start = System.nanoTime();
+            long channelStart = channelTime;
+            try {
+            	if (parallelEncoder != null && parallelEncoder.accepts(rows)){
+            		parallelEncoder.encode(rows, new ParallelEncoder.BodyHandler() {
+            			@Override
+            			public void handle(List<Object> row, byte[] body) {
+            				write(row, body);
+            			}
+            		});
+            		return;
+            	}
+            	
+            	for (List<Object> row : rows)
+            		write(row);
+            } finally {
+            	conversionTime += System.nanoTime() - start - (channelTime - channelStart);
+            }
+        }
+
+        public void flush() {
+        	if (events.isEmpty())
+        		return;
+        	
+        	if (spillBuffer != null && !spillBuffer.isEmpty()){
+        		spill(null);
+        		return;
+        	}
+        	
+        	long start = System.nanoTime();
+        	try {
+        		getChannelProcessor().processEventBatch(events);
+        	} catch (ChannelException e) {
+        		if (spillBuffer == null)
+        			throw e;
+        		spill(e);
+        		return;
+        	} finally {
+        		channelTime += System.nanoTime() - start;
+        	}
             events.clear();
         }
 
-        @Override
-        public void close() throws IOException {
+        public void close() {
             flush();
         }
+        
+        /* Discard the events not sent */
+        void discard() {
+        	events.clear();
+        }
+        
+        private void spill(ChannelException cause) {
+        	if (!spillBuffer.append(events)){
+        		sqlSourceCounter.incrementSpillOverflowCount();
+        		throw cause != null ? cause : new ChannelException("Spill buffer full");
+        	}
+        	sqlSourceCounter.setSpilledEventCount(spillBuffer.size());
+        	events.clear();
+        }
     }
 }
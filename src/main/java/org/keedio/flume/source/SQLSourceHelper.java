@@ -5,8 +5,11 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.base.Charsets;
 import org.hibernate.cfg.Configuration;
@@ -34,6 +37,26 @@ import org.slf4j.LoggerFactory;
  * <tt>batch.size: </tt> Batch size to send events from flume source to flume channel <p>
  * <tt>max.rows: </tt> Max rows to import from DB in one query <p>
  * <tt>custom.query: </tt> Custom query to execute to database (be careful) <p>
+ * <tt>probe.query: </tt> Cheap query executed before the custom query to detect new data <p>
+ * <tt>query.retries: </tt> Retries for transient and connection errors <p>
+ * <tt>circuit.breaker.failures: </tt> Consecutive failed polls before stop polling the database <p>
+ * <tt>snapshot.enabled: </tt> Bulk load the existing rows in parallel chunks at first start <p>
+ * <tt>governor.*: </tt> Limits of the load generated in the database <p>
+ * <tt>replica.urls: </tt> Read replicas urls, used following the routing.policy <p>
+ * <tt>source.identity: </tt> Logical identity of the source saved in the status file instead of the url <p>
+ * <tt>dedup.enabled: </tt> Suppress rows already sent, replayed after restarts or connection resets <p>
+ * <tt>filter.expression: </tt> Condition the rows must match to be sent <p>
+ * <tt>projection.columns: </tt> Columns of the rows to be sent <p>
+ * <tt>lob.max.size: </tt> Max chars (CLOB) or bytes (BLOB) of a LOB value sent in an event <p>
+ * <tt>time.window.size: </tt> Length in ms of the time windows queried in time window mode <p>
+ * <tt>schema.change.event: </tt> Send an event describing the result columns when they change <p>
+ * <tt>shard.count: </tt> Number of agents sharing the table, each reading the rows of its shard.index <p>
+ * <tt>max.bytes: </tt> Max estimated bytes of the rows read per query <p>
+ * <tt>plan.check: </tt> Check the custom query plan for full scans and sorts, none, warn or fail <p>
+ * <tt>header.key.column: </tt> Column sent in the key header, to partition the events downstream <p>
+ * <tt>encoding.threads: </tt> Threads encoding the rows of large query results <p>
+ * <tt>coordination.enabled: </tt> Distribute the sources among agents through leases in a coordination table <p>
+ * <tt>spill.capacity: </tt> Bytes of the buffer keeping the events rejected by a full channel <p>
  *
  * @author <a href="mailto:mvalle@keedio.com">Marcelo Valle</a>
  * @author <a href="mailto:lalazaro@keedio.com">Luis Lazaro</a>
@@ -44,18 +67,39 @@ public class SQLSourceHelper {
   private static final Logger LOG = LoggerFactory.getLogger(SQLSourceHelper.class);
 
   private File file, directory;
-  private int runQueryDelay, batchSize, maxRows;
+  private int runQueryDelay, batchSize, maxRows, queryRetries, connectionValidationTimeout, circuitBreakerFailures,
+    snapshotParallelism, maxRowsPerSecond, maxQueriesPerMinute, maxConcurrentQueries, maxAgentConcurrentQueries, deduplicationWindowSize,
+    spillCapacity, shardCount, shardIndex, encodingThreads, encodingChunkSize;
+  private long queryRetryBackoff, queryRetryMaxBackoff, circuitBreakerResetTimeout, snapshotChunkSize, maxQueryTime,
+    maxGovernorDelay, replicaMaxLag, routingFailureTimeout, deduplicationCapacity, lobMaxSize, timeWindowSize,
+    timeWindowSettleDelay, coordinationLeaseTimeout, maxBytes, fetchMaxBytes, planCheckInterval;
+  private double loadThreshold, deduplicationFalsePositiveRate, spillHighWatermark, planCheckLatencyFactor;
+  private int[] deduplicationKeyColumns, projectionColumns;
   private String startFrom, currentIndex;
   private String statusFilePath, statusFileName, connectionURL, table,
     columnsToSelect, customQuery, query, sourceName, delimiterEntry, connectionUserName, connectionPassword,
-		defaultCharsetResultSet;
+		defaultCharsetResultSet, probeQuery, lastProbeValue, connectionTestQuery, snapshotKey, snapshotQuery, loadQuery,
+    sourceIdentity, replicaLagQuery, filterExpression, schemaVersion, coordinationURL, coordinationUserName,
+    coordinationPassword, coordinationTable, coordinationAgentId, shardKey, shardPredicate,
+    headerKeyColumn, headerWatermarkColumn, headerOperationColumn, headerTable;
+  private List<String> replicaURLs;
+  private EndpointRouter.RoutingPolicy routingPolicy;
+  private EventBodyEncoder.LobOverflowPolicy lobOverflowPolicy;
+  private QueryPlan.CheckMode planCheckMode;
+  private File lobReferenceDirectory;
+  private TimeWindow timeWindow;
+  /* Guards the status map and file, a lock and not a monitor so a virtual thread writing it keeps its carrier free */
+  private final ReentrantLock statusLock = new ReentrantLock();
+  private boolean[] windowParameters;
+  private DatabaseVendor databaseVendor;
   private Boolean encloseByQuotes;
 
   private Context context;
 
   private Map<String, String> statusFileJsonMap = new LinkedHashMap<String, String>();
 
-  private boolean readOnlySession;
+  private boolean readOnlySession, snapshotEnabled, snapshotForce, snapshotDone, newStatusFile, deduplicationEnabled,
+    schemaChangeEvent, coordinationEnabled, shardHash;
 
   private static final String DEFAULT_STATUS_DIRECTORY = "/var/lib/flume";
   private static final int DEFAULT_QUERY_DELAY = 10000;
@@ -64,13 +108,51 @@ public class SQLSourceHelper {
   private static final String DEFAULT_INCREMENTAL_VALUE = "0";
   private static final String DEFAULT_DELIMITER_ENTRY = ",";
   private static final Boolean DEFAULT_ENCLOSE_BY_QUOTES = true;
+  private static final int DEFAULT_QUERY_RETRIES = 3;
+  private static final long DEFAULT_QUERY_RETRY_BACKOFF = 500;
+  private static final long DEFAULT_QUERY_RETRY_MAX_BACKOFF = 30000;
+  private static final int DEFAULT_CONNECTION_VALIDATION_TIMEOUT = 5;
+  private static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 5;
+  private static final long DEFAULT_CIRCUIT_BREAKER_RESET_TIMEOUT = 60000;
+  private static final long DEFAULT_SNAPSHOT_CHUNK_SIZE = 100000;
+  private static final int DEFAULT_SNAPSHOT_PARALLELISM = 4;
+  private static final String SNAPSHOT_PLACEHOLDER = "$@snapshot$";
+  /* Completed chunks are listed in the status file, rewritten as each chunk completes */
+  private static final long MAX_SNAPSHOT_CHUNKS = 100000;
+  private static final long DEFAULT_MAX_GOVERNOR_DELAY = 60000;
+  private static final long DEFAULT_ROUTING_FAILURE_TIMEOUT = 60000;
+  private static final String DEFAULT_ROUTING_POLICY = "primary";
+  private static final long DEFAULT_DEDUPLICATION_CAPACITY = 1000000;
+  private static final double DEFAULT_DEDUPLICATION_FALSE_POSITIVE_RATE = 0.001;
+  private static final String DEFAULT_LOB_OVERFLOW_POLICY = "truncate";
+  private static final double DEFAULT_SPILL_HIGH_WATERMARK = 0.8;
+  private static final String DEFAULT_COORDINATION_TABLE = "FLUME_SQL_LEASE";
+  private static final String SHARD_PLACEHOLDER = "$@shard$";
+  private static final int DEFAULT_ENCODING_CHUNK_SIZE = 1000;
+  /* Not columns.to.select: the filter, key and header column positions depend on the selected columns */
+  private static final List<String> TUNABLE_PROPERTIES = Arrays.asList("run.query.delay", "batch.size", "max.rows",
+    "delimiter.entry", "enclose.by.quotes");
+  private static final String DEFAULT_PLAN_CHECK = "none";
+  private static final double DEFAULT_PLAN_CHECK_LATENCY_FACTOR = 4;
+  private static final long DEFAULT_PLAN_CHECK_INTERVAL = 600000;
+  private static final long DEFAULT_COORDINATION_LEASE_TIMEOUT = 30000;
+  private static final long DEFAULT_TIME_WINDOW_SETTLE_DELAY = 60000;
+  private static final int DEFAULT_TIME_WINDOW_MAX_KEYS = 1000000;
+  private static final String WINDOW_START_PLACEHOLDER = "$@window.start$";
+  private static final String WINDOW_END_PLACEHOLDER = "$@window.end$";
 
   private static final String SOURCE_NAME_STATUS_FILE = "SourceName";
   private static final String URL_STATUS_FILE = "URL";
+  private static final String SOURCE_IDENTITY_STATUS_FILE = "SourceIdentity";
+  private static final String SCHEMA_VERSION_STATUS_FILE = "SchemaVersion";
   private static final String COLUMNS_TO_SELECT_STATUS_FILE = "ColumnsToSelect";
   private static final String TABLE_STATUS_FILE = "Table";
   private static final String LAST_INDEX_STATUS_FILE = "LastIndex";
   private static final String QUERY_STATUS_FILE = "Query";
+  private static final String SNAPSHOT_LOW_STATUS_FILE = "SnapshotLowWatermark";
+  private static final String SNAPSHOT_HIGH_STATUS_FILE = "SnapshotHighWatermark";
+  private static final String SNAPSHOT_CHUNK_SIZE_STATUS_FILE = "SnapshotChunkSize";
+  private static final String SNAPSHOT_COMPLETED_STATUS_FILE = "SnapshotCompletedChunks";
   private static final String DEFAULT_CHARSET_RESULTSET = "UTF-8";
 
   /**
@@ -104,6 +186,116 @@ public class SQLSourceHelper {
     encloseByQuotes = context.getBoolean("enclose.by.quotes", DEFAULT_ENCLOSE_BY_QUOTES);
     statusFileJsonMap = new LinkedHashMap<String, String>();
     defaultCharsetResultSet = context.getString("default.charset.resultset", DEFAULT_CHARSET_RESULTSET);
+    probeQuery = context.getString("probe.query");
+    queryRetries = context.getInteger("query.retries", DEFAULT_QUERY_RETRIES);
+    queryRetryBackoff = context.getLong("query.retry.backoff", DEFAULT_QUERY_RETRY_BACKOFF);
+    queryRetryMaxBackoff = context.getLong("query.retry.max.backoff", DEFAULT_QUERY_RETRY_MAX_BACKOFF);
+    connectionValidationTimeout = context.getInteger("connection.validation.timeout",
+      DEFAULT_CONNECTION_VALIDATION_TIMEOUT);
+    connectionTestQuery = context.getString("connection.test.query");
+    circuitBreakerFailures = context.getInteger("circuit.breaker.failures", DEFAULT_CIRCUIT_BREAKER_FAILURES);
+    circuitBreakerResetTimeout = context.getLong("circuit.breaker.reset.timeout",
+      DEFAULT_CIRCUIT_BREAKER_RESET_TIMEOUT);
+    snapshotEnabled = context.getBoolean("snapshot.enabled", false);
+    snapshotForce = context.getBoolean("snapshot.force", false);
+    snapshotKey = context.getString("snapshot.key");
+    snapshotQuery = context.getString("snapshot.query");
+    snapshotChunkSize = context.getLong("snapshot.chunk.size", DEFAULT_SNAPSHOT_CHUNK_SIZE);
+    snapshotParallelism = context.getInteger("snapshot.parallelism", DEFAULT_SNAPSHOT_PARALLELISM);
+    maxRowsPerSecond = context.getInteger("governor.max.rows.per.second", 0);
+    maxQueriesPerMinute = context.getInteger("governor.max.queries.per.minute", 0);
+    maxConcurrentQueries = context.getInteger("governor.max.concurrent.queries", 0);
+    maxAgentConcurrentQueries = context.getInteger("governor.max.agent.concurrent.queries", 0);
+    maxQueryTime = context.getLong("governor.max.query.time", 0L);
+    maxGovernorDelay = context.getLong("governor.max.delay", DEFAULT_MAX_GOVERNOR_DELAY);
+    loadQuery = context.getString("governor.load.query");
+    sourceIdentity = context.getString("source.identity");
+    replicaURLs = new ArrayList<String>();
+    String replicas = context.getString("replica.urls");
+    if (replicas != null) {
+      for (String replica : replicas.split(",")) {
+        if (!replica.trim().isEmpty()) {
+          replicaURLs.add(replica.trim());
+        }
+      }
+    }
+    String policy = context.getString("routing.policy", DEFAULT_ROUTING_POLICY);
+    try {
+      routingPolicy = EndpointRouter.RoutingPolicy.fromString(policy == null ? DEFAULT_ROUTING_POLICY : policy);
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException("routing.policy must be primary or prefer.replica");
+    }
+    routingFailureTimeout = context.getLong("routing.failure.timeout", DEFAULT_ROUTING_FAILURE_TIMEOUT);
+    replicaLagQuery = context.getString("replica.lag.query");
+    replicaMaxLag = context.getLong("replica.max.lag", 0L);
+    String threshold = context.getString("governor.load.threshold");
+    loadThreshold = threshold == null ? Double.MAX_VALUE : Double.parseDouble(threshold);
+    lobMaxSize = context.getLong("lob.max.size", 0L);
+    String overflowPolicy = context.getString("lob.overflow.policy", DEFAULT_LOB_OVERFLOW_POLICY);
+    try {
+      lobOverflowPolicy = EventBodyEncoder.LobOverflowPolicy.valueOf(
+        (overflowPolicy == null ? DEFAULT_LOB_OVERFLOW_POLICY : overflowPolicy).trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException("lob.overflow.policy must be truncate or reference");
+    }
+    String referencePath = context.getString("lob.reference.path");
+    lobReferenceDirectory = new File(referencePath == null ? statusFilePath + "/lob" : referencePath);
+    filterExpression = context.getString("filter.expression");
+    projectionColumns = parseColumnIndexes(context.getString("projection.columns"));
+    deduplicationEnabled = context.getBoolean("dedup.enabled", false);
+    deduplicationKeyColumns = parseColumnIndexes(context.getString("dedup.key.columns"));
+    deduplicationWindowSize = context.getInteger("dedup.window.size", maxRows > 0 ? maxRows : DEFAULT_MAX_ROWS);
+    deduplicationCapacity = context.getLong("dedup.capacity", DEFAULT_DEDUPLICATION_CAPACITY);
+    String falsePositiveRate = context.getString("dedup.false.positive.rate");
+    deduplicationFalsePositiveRate = falsePositiveRate == null ? DEFAULT_DEDUPLICATION_FALSE_POSITIVE_RATE
+      : Double.parseDouble(falsePositiveRate);
+    timeWindowSize = context.getLong("time.window.size", 0L);
+    timeWindowSettleDelay = context.getLong("time.window.settle.delay", DEFAULT_TIME_WINDOW_SETTLE_DELAY);
+    if (timeWindowSize > 0) {
+      timeWindow = new TimeWindow(timeWindowSize, timeWindowSettleDelay,
+        parseColumnIndexes(context.getString("time.window.key.columns")),
+        context.getInteger("time.window.max.keys", DEFAULT_TIME_WINDOW_MAX_KEYS),
+        new File(statusFilePath + "/" + statusFileName + ".window"));
+      timeWindow.load();
+    }
+    schemaChangeEvent = context.getBoolean("schema.change.event", false);
+    headerKeyColumn = context.getString("header.key.column");
+    headerWatermarkColumn = context.getString("header.watermark.column");
+    headerOperationColumn = context.getString("header.operation.column");
+    headerTable = context.getString("header.table");
+    encodingThreads = context.getInteger("encoding.threads", 1);
+    encodingChunkSize = context.getInteger("encoding.chunk.size", DEFAULT_ENCODING_CHUNK_SIZE);
+    maxBytes = context.getLong("max.bytes", 0L);
+    fetchMaxBytes = context.getLong("fetch.max.bytes", maxBytes);
+    databaseVendor = DatabaseVendor.detect(context.getString("hibernate.dialect"), connectionURL);
+    shardCount = context.getInteger("shard.count", 1);
+    shardIndex = context.getInteger("shard.index", 0);
+    shardKey = context.getString("shard.key");
+    String shardFunction = context.getString("shard.function", "mod");
+    shardHash = "hash".equalsIgnoreCase(shardFunction);
+    if (!shardHash && shardFunction != null && !"mod".equalsIgnoreCase(shardFunction)) {
+      throw new ConfigurationException("shard.function must be mod or hash");
+    }
+    coordinationEnabled = context.getBoolean("coordination.enabled", false);
+    coordinationURL = context.getString("coordination.url", connectionURL);
+    coordinationUserName = context.getString("coordination.user", connectionUserName);
+    coordinationPassword = context.getString("coordination.password", connectionPassword);
+    coordinationTable = context.getString("coordination.table", DEFAULT_COORDINATION_TABLE);
+    coordinationAgentId = context.getString("coordination.agent.id", ManagementFactory.getRuntimeMXBean().getName());
+    coordinationLeaseTimeout = context.getLong("coordination.lease.timeout", DEFAULT_COORDINATION_LEASE_TIMEOUT);
+    spillCapacity = context.getInteger("spill.capacity", 0);
+    String highWatermark = context.getString("spill.high.watermark");
+    spillHighWatermark = highWatermark == null ? DEFAULT_SPILL_HIGH_WATERMARK : Double.parseDouble(highWatermark);
+    String planCheck = context.getString("plan.check", DEFAULT_PLAN_CHECK);
+    try {
+      planCheckMode = QueryPlan.CheckMode.valueOf(
+        (planCheck == null ? DEFAULT_PLAN_CHECK : planCheck).trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException("plan.check must be none, warn or fail");
+    }
+    String latencyFactor = context.getString("plan.check.latency.factor");
+    planCheckLatencyFactor = latencyFactor == null ? DEFAULT_PLAN_CHECK_LATENCY_FACTOR : Double.parseDouble(latencyFactor);
+    planCheckInterval = context.getLong("plan.check.interval", DEFAULT_PLAN_CHECK_INTERVAL);
 
     checkMandatoryProperties();
 
@@ -115,10 +307,20 @@ public class SQLSourceHelper {
 
     if (!isStatusFileCreated()) {
       currentIndex = startFrom;
+      newStatusFile = true;
       createStatusFile();
     } else {
       currentIndex = getStatusFileIndex(startFrom);
     }
+    schemaVersion = statusFileJsonMap.get(SCHEMA_VERSION_STATUS_FILE);
+
+    if (shardCount > 1) {
+      shardPredicate = databaseVendor.shardPredicate(shardKey, shardHash, shardCount, shardIndex);
+    }
+
+    if (timeWindow != null) {
+      windowParameters = parseWindowParameters();
+    }
 
     query = buildQuery();
   }
@@ -126,14 +328,258 @@ public class SQLSourceHelper {
   public String buildQuery() {
 
     if (customQuery == null) {
-      return "SELECT " + columnsToSelect + " FROM " + table;
+      return "SELECT " + columnsToSelect + " FROM " + table + (shardPredicate == null ? "" : " WHERE " + shardPredicate);
     } else {
-      if (customQuery.contains("$@$")) {
-        return customQuery.replace("$@$", currentIndex);
+      String shardQuery = replaceShard(customQuery);
+      if (timeWindow != null) {
+        return shardQuery.replace(WINDOW_START_PLACEHOLDER, "?").replace(WINDOW_END_PLACEHOLDER, "?");
+      } else if (shardQuery.contains("$@$")) {
+        return shardQuery.replace("$@$", currentIndex);
       } else {
-        return customQuery;
+        return shardQuery;
+      }
+    }
+  }
+
+  /*
+   * Replace the shard placeholder with the predicate of the shard, or an always true one if not sharded
+   */
+  private String replaceShard(String sql) {
+    return sql.replace(SHARD_PLACEHOLDER, shardPredicate == null ? "1 = 1" : shardPredicate);
+  }
+
+  /**
+   * Builds the change probe query, replacing the $@$ special character with the current index
+   *
+   * @return probe query ready to be executed, or null if no probe query is configured
+   */
+  public String buildProbeQuery() {
+
+    if (probeQuery == null) {
+      return null;
+    }
+    return replaceShard(probeQuery).replace("$@$", currentIndex);
+  }
+
+  /**
+   * Decides if the full query has to be executed given the last value returned by the probe query. <p>
+   * If both probe value and current index are numeric, new data exists when the probe value is greater
+   * than the current index (i.e. <tt>SELECT MAX(id)</tt> with custom query or <tt>SELECT COUNT(*)</tt>
+   * without it). Otherwise new data exists when the probe value changed since the last drained query.
+   *
+   * @param probeValue first cell returned by the probe query, null if the query returned nothing
+   * @return true if the full query must be executed
+   */
+  public boolean hasNewData(String probeValue) {
+
+    if (probeValue == null) {
+      return false;
+    }
+
+    try {
+      return new BigDecimal(probeValue.trim()).compareTo(new BigDecimal(currentIndex.trim())) > 0;
+    } catch (NumberFormatException e) {
+      return !probeValue.equals(lastProbeValue);
+    }
+  }
+
+  /**
+   * @return true if the snapshot phase has to run: a snapshot is in progress in the status file,
+   * it is forced by configuration, or it is enabled and this is the first start of the source
+   */
+  boolean isSnapshotRequired() {
+    if (snapshotDone) {
+      return false;
+    }
+    return isSnapshotInProgress() || snapshotForce || (snapshotEnabled && newStatusFile);
+  }
+
+  boolean isSnapshotInProgress() {
+    statusLock.lock();
+    try {
+      return statusFileJsonMap.containsKey(SNAPSHOT_HIGH_STATUS_FILE);
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
+  /**
+   * Builds the query to read the key bounds of the table to snapshot
+   */
+  String buildSnapshotBoundsQuery() {
+    return "SELECT MIN(" + snapshotKey + "), MAX(" + snapshotKey + ") FROM " + table;
+  }
+
+  /**
+   * Records the snapshot bounds in the status file, the high watermark will be the starting
+   * point of the incremental polling once the snapshot finishes
+   */
+  void startSnapshot(long lowWatermark, long highWatermark) {
+    statusLock.lock();
+    try {
+      if (highWatermark < lowWatermark || (double) highWatermark - lowWatermark > Long.MAX_VALUE) {
+        throw new ConfigurationException("Invalid snapshot key range [" + lowWatermark + ", " + highWatermark + "]");
+      }
+      long chunks = (highWatermark - lowWatermark) / snapshotChunkSize + 1;
+      if (chunks > MAX_SNAPSHOT_CHUNKS) {
+        throw new ConfigurationException("Snapshot key range [" + lowWatermark + ", " + highWatermark + "] needs "
+          + chunks + " chunks of " + snapshotChunkSize + " keys, more than " + MAX_SNAPSHOT_CHUNKS
+          + ", increase snapshot.chunk.size");
+      }
+      statusFileJsonMap.put(SNAPSHOT_LOW_STATUS_FILE, Long.toString(lowWatermark));
+      statusFileJsonMap.put(SNAPSHOT_HIGH_STATUS_FILE, Long.toString(highWatermark));
+      statusFileJsonMap.put(SNAPSHOT_CHUNK_SIZE_STATUS_FILE, Long.toString(snapshotChunkSize));
+      statusFileJsonMap.put(SNAPSHOT_COMPLETED_STATUS_FILE, "");
+      updateStatusFile();
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
+  /**
+   * @return number of key range chunks of the snapshot in progress
+   */
+  int getSnapshotChunkCount() {
+    statusLock.lock();
+    try {
+      long low = Long.parseLong(statusFileJsonMap.get(SNAPSHOT_LOW_STATUS_FILE));
+      long high = Long.parseLong(statusFileJsonMap.get(SNAPSHOT_HIGH_STATUS_FILE));
+      long chunkSize = Long.parseLong(statusFileJsonMap.get(SNAPSHOT_CHUNK_SIZE_STATUS_FILE));
+      return (int) ((high - low) / chunkSize + 1);
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
+  /**
+   * @return chunks of the snapshot in progress not completed yet
+   */
+  List<Integer> getPendingSnapshotChunks() {
+    statusLock.lock();
+    try {
+      Set<Integer> completed = new HashSet<Integer>();
+      for (String chunk : statusFileJsonMap.get(SNAPSHOT_COMPLETED_STATUS_FILE).split(",")) {
+        if (!chunk.isEmpty()) {
+          completed.add(Integer.valueOf(chunk));
+        }
+      }
+
+      List<Integer> pending = new ArrayList<Integer>();
+      int chunkCount = getSnapshotChunkCount();
+      for (int chunk = 0; chunk < chunkCount; chunk++) {
+        if (!completed.contains(chunk)) {
+          pending.add(chunk);
+        }
+      }
+      return pending;
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
+  /**
+   * Builds the query exporting one key range chunk of the snapshot in progress,
+   * chunk n covers keys from low + n * chunk size to low + (n + 1) * chunk size - 1
+   */
+  String buildSnapshotChunkQuery(int chunk) {
+    statusLock.lock();
+    try {
+      long low = Long.parseLong(statusFileJsonMap.get(SNAPSHOT_LOW_STATUS_FILE));
+      long high = Long.parseLong(statusFileJsonMap.get(SNAPSHOT_HIGH_STATUS_FILE));
+      long chunkSize = Long.parseLong(statusFileJsonMap.get(SNAPSHOT_CHUNK_SIZE_STATUS_FILE));
+      long from = low + chunk * chunkSize;
+      long to = chunkSize - 1 >= high - from ? high : from + chunkSize - 1;
+
+      String predicate = snapshotKey + " >= " + from + " AND " + snapshotKey + " <= " + to;
+      if (shardPredicate != null) {
+        predicate += " AND " + shardPredicate;
+      }
+      if (snapshotQuery == null) {
+        return "SELECT " + columnsToSelect + " FROM " + table + " WHERE " + predicate;
+      }
+      return snapshotQuery.replace(SNAPSHOT_PLACEHOLDER, predicate);
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
+  void completeSnapshotChunk(int chunk) {
+    statusLock.lock();
+    try {
+      String completed = statusFileJsonMap.get(SNAPSHOT_COMPLETED_STATUS_FILE);
+      statusFileJsonMap.put(SNAPSHOT_COMPLETED_STATUS_FILE, completed.isEmpty() ? Integer.toString(chunk)
+        : completed + "," + chunk);
+      updateStatusFile();
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
+  /**
+   * Ends the snapshot phase, the incremental polling will start from the snapshot high watermark
+   * (or from the current index if there was nothing to snapshot)
+   */
+  void finishSnapshot() {
+    statusLock.lock();
+    try {
+      if (isSnapshotInProgress()) {
+        currentIndex = statusFileJsonMap.get(SNAPSHOT_HIGH_STATUS_FILE);
+      }
+      statusFileJsonMap.remove(SNAPSHOT_LOW_STATUS_FILE);
+      statusFileJsonMap.remove(SNAPSHOT_HIGH_STATUS_FILE);
+      statusFileJsonMap.remove(SNAPSHOT_CHUNK_SIZE_STATUS_FILE);
+      statusFileJsonMap.remove(SNAPSHOT_COMPLETED_STATUS_FILE);
+      snapshotDone = true;
+      updateStatusFile();
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
+  /*
+   * Order of the window placeholders in the custom query, true for the window start
+   */
+  private boolean[] parseWindowParameters() {
+
+    List<Boolean> parameters = new ArrayList<Boolean>();
+    int position = 0;
+    while (true) {
+      int start = customQuery.indexOf(WINDOW_START_PLACEHOLDER, position);
+      int end = customQuery.indexOf(WINDOW_END_PLACEHOLDER, position);
+      if (start == -1 && end == -1) {
+        break;
       }
+      boolean isStart = end == -1 || (start != -1 && start < end);
+      parameters.add(isStart);
+      position = isStart ? start + WINDOW_START_PLACEHOLDER.length() : end + WINDOW_END_PLACEHOLDER.length();
     }
+
+    boolean[] order = new boolean[parameters.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = parameters.get(i);
+    }
+    return order;
+  }
+
+  /*
+   * Parses a comma separated list of 1 based column indexes
+   * @return 0 based column indexes, empty if the list is not set
+   */
+  private int[] parseColumnIndexes(String columns) {
+
+    if (columns == null || columns.trim().isEmpty()) {
+      return new int[0];
+    }
+
+    String[] values = columns.split(",");
+    int[] indexes = new int[values.length];
+    for (int i = 0; i < values.length; i++) {
+      indexes[i] = Integer.parseInt(values[i].trim()) - 1;
+      if (indexes[i] < 0) {
+        throw new ConfigurationException("Column indexes start at 1: " + columns);
+      }
+    }
+    return indexes;
   }
 
   private boolean isStatusFileCreated() {
@@ -159,24 +605,32 @@ public class SQLSourceHelper {
       return allRows;
     }
 
-    String[] row = null;
-
     for (int i = 0; i < queryResult.size(); i++) {
-      List<Object> rawRow = queryResult.get(i);
-      row = new String[rawRow.size()];
-      for (int j = 0; j < rawRow.size(); j++) {
-        if (rawRow.get(j) != null) {
-          row[j] = rawRow.get(j).toString();
-        } else {
-          row[j] = "";
-        }
-      }
-      allRows.add(row);
+      allRows.add(getRow(queryResult.get(i)));
     }
 
     return allRows;
   }
 
+  /**
+   * Converter from a row of cell Objects to a String array
+   *
+   * @param rawRow Row from a query result
+   * @return String array, null cells are converted to empty Strings
+   */
+  public String[] getRow(List<Object> rawRow) {
+
+    String[] row = new String[rawRow.size()];
+    for (int j = 0; j < rawRow.size(); j++) {
+      if (rawRow.get(j) != null) {
+        row[j] = rawRow.get(j).toString();
+      } else {
+        row[j] = "";
+      }
+    }
+    return row;
+  }
+
   /**
    * Create status file
    */
@@ -184,6 +638,9 @@ public class SQLSourceHelper {
 
     statusFileJsonMap.put(SOURCE_NAME_STATUS_FILE, sourceName);
     statusFileJsonMap.put(URL_STATUS_FILE, connectionURL);
+    if (sourceIdentity != null) {
+      statusFileJsonMap.put(SOURCE_IDENTITY_STATUS_FILE, sourceIdentity);
+    }
     statusFileJsonMap.put(LAST_INDEX_STATUS_FILE, currentIndex);
 
     if (isCustomQuerySet()) {
@@ -206,15 +663,22 @@ public class SQLSourceHelper {
    * Update status file with last read row index
    */
   public void updateStatusFile() {
-
-    statusFileJsonMap.put(LAST_INDEX_STATUS_FILE, currentIndex);
-
+    statusLock.lock();
     try {
-      Writer fileWriter = new FileWriter(file, false);
-      JSONValue.writeJSONString(statusFileJsonMap, fileWriter);
-      fileWriter.close();
-    } catch (IOException e) {
-      LOG.error("Error writing incremental value to status file!!!", e);
+      statusFileJsonMap.put(LAST_INDEX_STATUS_FILE, currentIndex);
+      if (schemaVersion != null) {
+        statusFileJsonMap.put(SCHEMA_VERSION_STATUS_FILE, schemaVersion);
+      }
+
+      try {
+        Writer fileWriter = new FileWriter(file, false);
+        JSONValue.writeJSONString(statusFileJsonMap, fileWriter);
+        fileWriter.close();
+      } catch (IOException e) {
+        LOG.error("Error writing incremental value to status file!!!", e);
+      }
+    } finally {
+      statusLock.unlock();
     }
   }
 
@@ -248,10 +712,21 @@ public class SQLSourceHelper {
       LOG.error("Status file doesn't contains all required values");
       throw new ParseException(ERROR_UNEXPECTED_EXCEPTION);
     }
-    if (!statusFileJsonMap.get(URL_STATUS_FILE).equals(connectionURL)) {
+    if (sourceIdentity != null) {
+      // The checkpoint is keyed by the logical identity, the url can change (replicas, failover, migrations)
+      if (!statusFileJsonMap.containsKey(SOURCE_IDENTITY_STATUS_FILE)) {
+        LOG.info("Status file without source identity, adding " + sourceIdentity);
+        statusFileJsonMap.put(SOURCE_IDENTITY_STATUS_FILE, sourceIdentity);
+      } else if (!statusFileJsonMap.get(SOURCE_IDENTITY_STATUS_FILE).equals(sourceIdentity)) {
+        LOG.error("Source identity in status file doesn't match with configured in properties file");
+        throw new ParseException(ERROR_UNEXPECTED_EXCEPTION);
+      }
+      statusFileJsonMap.put(URL_STATUS_FILE, connectionURL);
+    } else if (!statusFileJsonMap.get(URL_STATUS_FILE).equals(connectionURL)) {
       LOG.error("Connection url in status file doesn't match with configured in properties file");
       throw new ParseException(ERROR_UNEXPECTED_EXCEPTION);
-    } else if (!statusFileJsonMap.get(SOURCE_NAME_STATUS_FILE).equals(sourceName)) {
+    }
+    if (!statusFileJsonMap.get(SOURCE_NAME_STATUS_FILE).equals(sourceName)) {
       LOG.error("Source name in status file doesn't match with configured in properties file");
       throw new ParseException(ERROR_UNEXPECTED_EXCEPTION);
     }
@@ -311,6 +786,50 @@ public class SQLSourceHelper {
     if (connectionPassword == null) {
       throw new ConfigurationException("hibernate.connection.password property not set");
     }
+
+    if (snapshotEnabled || snapshotForce) {
+      if (snapshotKey == null || table == null) {
+        throw new ConfigurationException("snapshot.key and table properties are required by the snapshot");
+      }
+      if (customQuery == null) {
+        throw new ConfigurationException("snapshot requires a custom.query using snapshot.key as incremental field");
+      }
+      if (snapshotChunkSize <= 0) {
+        throw new ConfigurationException("snapshot.chunk.size must be greater than 0");
+      }
+      if (snapshotQuery != null && !snapshotQuery.contains(SNAPSHOT_PLACEHOLDER)) {
+        throw new ConfigurationException("snapshot.query must contain " + SNAPSHOT_PLACEHOLDER);
+      }
+    }
+
+    if (shardCount > 1) {
+      if (shardKey == null) {
+        throw new ConfigurationException("shard.key property is required by shard.count");
+      }
+      if (shardIndex < 0 || shardIndex >= shardCount) {
+        throw new ConfigurationException("shard.index must be between 0 and shard.count - 1");
+      }
+      if (customQuery != null && !customQuery.contains(SHARD_PLACEHOLDER)) {
+        throw new ConfigurationException("custom.query must contain " + SHARD_PLACEHOLDER + " when sharded");
+      }
+      if (databaseVendor.shardPredicate(shardKey, shardHash, shardCount, shardIndex) == null) {
+        throw new ConfigurationException("shard.function hash is not supported for " + databaseVendor
+          + " databases, use mod");
+      }
+    }
+
+    if (timeWindowSize > 0) {
+      if (customQuery == null || !customQuery.contains(WINDOW_START_PLACEHOLDER)
+        || !customQuery.contains(WINDOW_END_PLACEHOLDER)) {
+        throw new ConfigurationException("time window mode requires a custom.query containing "
+          + WINDOW_START_PLACEHOLDER + " and " + WINDOW_END_PLACEHOLDER);
+      }
+      try {
+        Long.parseLong(startFrom);
+      } catch (NumberFormatException e) {
+        throw new ConfigurationException("start.from must be a time in ms in time window mode");
+      }
+    }
   }
 
   /*
@@ -334,6 +853,21 @@ public class SQLSourceHelper {
     currentIndex = newValue;
   }
 
+  /**
+   * Restore the current index to the last value saved in the status file, to query again
+   * the rows not delivered to the channel
+   * @return Restored index
+   */
+  String rollbackCurrentIndex() {
+    statusLock.lock();
+    try {
+      currentIndex = statusFileJsonMap.get(LAST_INDEX_STATUS_FILE);
+      return currentIndex;
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
   /*
    * @return int delay in ms
    */
@@ -365,6 +899,39 @@ public class SQLSourceHelper {
     return context;
   }
 
+  /**
+   * @param newContext Configuration reloaded
+   * @return true if only tunable properties (query delay, batch size, max rows and body format) changed,
+   * so they can be applied without reconfiguring the source
+   */
+  boolean isTunableChange(Context newContext) {
+
+    Map<String, String> current = new HashMap<String, String>(context.getParameters());
+    Map<String, String> updated = new HashMap<String, String>(newContext.getParameters());
+    current.keySet().removeAll(TUNABLE_PROPERTIES);
+    updated.keySet().removeAll(TUNABLE_PROPERTIES);
+    return current.equals(updated);
+  }
+
+  /**
+   * Apply the tunable properties of a reloaded configuration. The last index is kept.
+   * @param newContext Configuration reloaded
+   */
+  void applyTunables(Context newContext) {
+    statusLock.lock();
+    try {
+      context = newContext;
+      runQueryDelay = context.getInteger("run.query.delay", DEFAULT_QUERY_DELAY);
+      batchSize = context.getInteger("batch.size", DEFAULT_BATCH_SIZE);
+      maxRows = context.getInteger("max.rows", DEFAULT_MAX_ROWS);
+      delimiterEntry = context.getString("delimiter.entry", DEFAULT_DELIMITER_ENTRY);
+      encloseByQuotes = context.getBoolean("enclose.by.quotes", DEFAULT_ENCLOSE_BY_QUOTES);
+      query = buildQuery();
+    } finally {
+      statusLock.unlock();
+    }
+  }
+
   boolean isReadOnlySession() {
     return readOnlySession;
   }
@@ -388,4 +955,285 @@ public class SQLSourceHelper {
   public String getDefaultCharsetResultSet() {
     return defaultCharsetResultSet;
   }
+
+  int getQueryRetries() {
+    return queryRetries;
+  }
+
+  long getQueryRetryBackoff() {
+    return queryRetryBackoff;
+  }
+
+  long getQueryRetryMaxBackoff() {
+    return queryRetryMaxBackoff;
+  }
+
+  int getConnectionValidationTimeout() {
+    return connectionValidationTimeout;
+  }
+
+  String getConnectionTestQuery() {
+    return connectionTestQuery;
+  }
+
+  int getCircuitBreakerFailures() {
+    return circuitBreakerFailures;
+  }
+
+  long getCircuitBreakerResetTimeout() {
+    return circuitBreakerResetTimeout;
+  }
+
+  long getLobMaxSize() {
+    return lobMaxSize;
+  }
+
+  EventBodyEncoder.LobOverflowPolicy getLobOverflowPolicy() {
+    return lobOverflowPolicy;
+  }
+
+  File getLobReferenceDirectory() {
+    return lobReferenceDirectory;
+  }
+
+  String getFilterExpression() {
+    return filterExpression;
+  }
+
+  int[] getProjectionColumns() {
+    return projectionColumns;
+  }
+
+  boolean isDeduplicationEnabled() {
+    return deduplicationEnabled;
+  }
+
+  int[] getDeduplicationKeyColumns() {
+    return deduplicationKeyColumns;
+  }
+
+  int getDeduplicationWindowSize() {
+    return deduplicationWindowSize;
+  }
+
+  long getDeduplicationCapacity() {
+    return deduplicationCapacity;
+  }
+
+  double getDeduplicationFalsePositiveRate() {
+    return deduplicationFalsePositiveRate;
+  }
+
+  File getDeduplicationFile() {
+    return new File(statusFilePath + "/" + statusFileName + ".dedup");
+  }
+
+  TimeWindow getTimeWindow() {
+    return timeWindow;
+  }
+
+  /*
+   * @return Order of the window placeholders in the query, true for the window start
+   */
+  boolean[] getWindowParameters() {
+    return windowParameters;
+  }
+
+  /*
+   * @return Version of the result columns last seen, saved in the status file
+   */
+  String getSchemaVersion() {
+    return schemaVersion;
+  }
+
+  void setSchemaVersion(String schemaVersion) {
+    this.schemaVersion = schemaVersion;
+  }
+
+  boolean isSchemaChangeEventEnabled() {
+    return schemaChangeEvent;
+  }
+
+  /*
+   * @return Max estimated bytes of the rows read per query, 0 for no limit
+   */
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /*
+   * @return Max estimated bytes of the rows fetched per round trip, 0 to use max.rows as fetch size
+   */
+  long getFetchMaxBytes() {
+    return fetchMaxBytes;
+  }
+
+  int getEncodingThreads() {
+    return encodingThreads;
+  }
+
+  int getEncodingChunkSize() {
+    return encodingChunkSize;
+  }
+
+  QueryPlan.CheckMode getPlanCheckMode() {
+    return planCheckMode;
+  }
+
+  /*
+   * @return Times the query time must grow faster than the rows to check the plan again
+   */
+  double getPlanCheckLatencyFactor() {
+    return planCheckLatencyFactor;
+  }
+
+  long getPlanCheckInterval() {
+    return planCheckInterval;
+  }
+
+  String getHeaderKeyColumn() {
+    return headerKeyColumn;
+  }
+
+  String getHeaderWatermarkColumn() {
+    return headerWatermarkColumn;
+  }
+
+  String getHeaderOperationColumn() {
+    return headerOperationColumn;
+  }
+
+  String getHeaderTable() {
+    return headerTable;
+  }
+
+  DatabaseVendor getDatabaseVendor() {
+    return databaseVendor;
+  }
+
+  boolean isCoordinationEnabled() {
+    return coordinationEnabled;
+  }
+
+  String getCoordinationURL() {
+    return coordinationURL;
+  }
+
+  String getCoordinationUserName() {
+    return coordinationUserName;
+  }
+
+  String getCoordinationPassword() {
+    return coordinationPassword;
+  }
+
+  String getCoordinationTable() {
+    return coordinationTable;
+  }
+
+  String getCoordinationAgentId() {
+    return coordinationAgentId;
+  }
+
+  long getCoordinationLeaseTimeout() {
+    return coordinationLeaseTimeout;
+  }
+
+  /*
+   * @return Work unit leased in coordination mode, the source identity or the source name
+   */
+  String getWorkUnit() {
+    String workUnit = sourceIdentity != null ? sourceIdentity : sourceName;
+    return shardCount > 1 ? workUnit + "#" + shardIndex : workUnit;
+  }
+
+  int getSpillCapacity() {
+    return spillCapacity;
+  }
+
+  double getSpillHighWatermark() {
+    return spillHighWatermark;
+  }
+
+  File getSpillFile() {
+    return new File(statusFilePath + "/" + statusFileName + ".spill");
+  }
+
+  List<String> getReplicaURLs() {
+    return replicaURLs;
+  }
+
+  EndpointRouter.RoutingPolicy getRoutingPolicy() {
+    return routingPolicy;
+  }
+
+  long getRoutingFailureTimeout() {
+    return routingFailureTimeout;
+  }
+
+  String getReplicaLagQuery() {
+    return replicaLagQuery;
+  }
+
+  long getReplicaMaxLag() {
+    return replicaMaxLag;
+  }
+
+  int getMaxRowsPerSecond() {
+    return maxRowsPerSecond;
+  }
+
+  int getMaxQueriesPerMinute() {
+    return maxQueriesPerMinute;
+  }
+
+  int getMaxConcurrentQueries() {
+    return maxConcurrentQueries;
+  }
+
+  /*
+   * @return Max concurrent queries of all the sources of the agent, whatever their database, 0 for no limit
+   */
+  int getMaxAgentConcurrentQueries() {
+    return maxAgentConcurrentQueries;
+  }
+
+  long getMaxQueryTime() {
+    return maxQueryTime;
+  }
+
+  long getMaxGovernorDelay() {
+    return maxGovernorDelay;
+  }
+
+  String getLoadQuery() {
+    return loadQuery;
+  }
+
+  double getLoadThreshold() {
+    return loadThreshold;
+  }
+
+  int getSnapshotParallelism() {
+    return Math.max(1, snapshotParallelism);
+  }
+
+  String getSourceName() {
+    return sourceName;
+  }
+
+  boolean isProbeQuerySet() {
+    return (probeQuery != null);
+  }
+
+  String getLastProbeValue() {
+    return lastProbeValue;
+  }
+
+  /*
+   * @void set the probe value observed when the full query returned all pending rows
+   */
+  void setLastProbeValue(String lastProbeValue) {
+    this.lastProbeValue = lastProbeValue;
+  }
 }
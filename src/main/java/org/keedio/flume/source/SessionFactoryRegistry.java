@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Session factories shared by the source instances with the same connection identity, counting their
+ * references. <p>
+ * When the agent configuration is reloaded, the new instance of a source is configured before the old one
+ * is stopped. If the connection parameters did not change, the new instance gets the factory, and its
+ * connection pool, of the old one instead of building it again, and the factory is closed only when the
+ * last instance releases it.
+ */
+public final class SessionFactoryRegistry {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SessionFactoryRegistry.class);
+
+	private static final Map<String, SessionFactory> FACTORIES = new HashMap<String, SessionFactory>();
+	private static final Map<SessionFactory, Integer> REFERENCES = new IdentityHashMap<SessionFactory, Integer>();
+	private static final Map<SessionFactory, String> KEYS = new IdentityHashMap<SessionFactory, String>();
+	/* Held while a factory is built, a lock and not a monitor so a virtual thread waiting on it releases its carrier */
+	private static final ReentrantLock LOCK = new ReentrantLock();
+
+	private SessionFactoryRegistry() {
+	}
+
+	/**
+	 * Get the factory of a connection identity, building it if there is none open
+	 * @param key Connection identity: source name and hibernate properties
+	 * @param config Hibernate configuration, used if the factory is built
+	 * @return Session factory, to be released by the caller
+	 */
+	public static SessionFactory acquire(String key, Configuration config) {
+		LOCK.lock();
+		try {
+			SessionFactory factory = FACTORIES.get(key);
+			if (factory == null || factory.isClosed()){
+				forget(factory);
+				factory = config.buildSessionFactory(new StandardServiceRegistryBuilder()
+						.applySettings(config.getProperties()).build());
+				FACTORIES.put(key, factory);
+				KEYS.put(factory, key);
+				REFERENCES.put(factory, 0);
+			}
+			else {
+				LOG.info("Reusing open session factory to {}", config.getProperty("hibernate.connection.url"));
+			}
+			REFERENCES.put(factory, REFERENCES.get(factory) + 1);
+			return factory;
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * Release a factory, closing it if no other instance uses it
+	 * @param factory Factory acquired
+	 */
+	public static void release(SessionFactory factory) {
+		LOCK.lock();
+		try {
+			Integer references = REFERENCES.get(factory);
+			if (references == null){
+				closeQuietly(factory);
+				return;
+			}
+			if (references > 1){
+				REFERENCES.put(factory, references - 1);
+				return;
+			}
+			forget(factory);
+			closeQuietly(factory);
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	/**
+	 * Close a factory whose connections are dead, whoever uses it. The other instances build a new one
+	 * when they find it closed.
+	 * @param factory Factory acquired
+	 */
+	public static void invalidate(SessionFactory factory) {
+		LOCK.lock();
+		try {
+			forget(factory);
+			closeQuietly(factory);
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+	private static void forget(SessionFactory factory) {
+
+		if (factory == null){
+			return;
+		}
+		String key = KEYS.remove(factory);
+		if (key != null && FACTORIES.get(key) == factory){
+			FACTORIES.remove(key);
+		}
+		REFERENCES.remove(factory);
+	}
+
+	private static void closeQuietly(SessionFactory factory) {
+
+		if (factory == null || factory.isClosed()){
+			return;
+		}
+		try {
+			factory.close();
+		} catch (Exception e) {
+			LOG.debug("Error closing session factory", e);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.flume.conf.ConfigurationException;
+import org.keedio.flume.metrics.SqlSourceCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bulk loads the rows existing in the table before starting the incremental polling. <p>
+ * The rows up to the high watermark read at snapshot start are exported in parallel key range chunks,
+ * each chunk streamed with its own session and without delay between chunks. The rows are read through
+ * JDBC with the conversion plans and the row filter of the polls, so the snapshot events have the same bodies and headers. Completed chunks
+ * are recorded in the status file, so an interrupted snapshot resumes with the pending chunks only. The
+ * first chunk failing cancels the running ones, the snapshot is resumed on the next poll. A key that is
+ * not an integer or a key range that can't be chunked fails the snapshot until the source is configured again.
+ */
+public class SnapshotLoader {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SnapshotLoader.class);
+	private static final int DEFAULT_FETCH_SIZE = 1000;
+	private static final long TERMINATION_TIMEOUT = 60000;
+
+	private SQLSource sqlSource;
+	private SQLSourceHelper sqlSourceHelper;
+	private HibernateHelper hibernateHelper;
+	private LoadGovernor loadGovernor;
+	private RowFilter rowFilter;
+	private SqlSourceCounter sqlSourceCounter;
+	private boolean failed;
+
+	/**
+	 * @param sqlSource Source delivering the snapshot rows to its channels
+	 * @param sqlSourceHelper Contains the configuration parameters and the status file
+	 * @param hibernateHelper Provides the sessions to query the database
+	 * @param loadGovernor Limits the load of the chunk queries in the database
+	 * @param rowFilter Filter and projection of the rows, null if not configured
+	 * @param sqlSourceCounter Metric counters of the source
+	 */
+	public SnapshotLoader(SQLSource sqlSource, SQLSourceHelper sqlSourceHelper, HibernateHelper hibernateHelper,
+			LoadGovernor loadGovernor, RowFilter rowFilter, SqlSourceCounter sqlSourceCounter) {
+		this.sqlSource = sqlSource;
+		this.sqlSourceHelper = sqlSourceHelper;
+		this.hibernateHelper = hibernateHelper;
+		this.loadGovernor = loadGovernor;
+		this.rowFilter = rowFilter;
+		this.sqlSourceCounter = sqlSourceCounter;
+	}
+
+	/**
+	 * Run the snapshot until all its chunks are exported
+	 * @return true if the snapshot finished, false if some chunk failed and the snapshot must be resumed
+	 * or if the snapshot key range is not valid
+	 * @throws InterruptedException if the source is stopped while the snapshot is running
+	 */
+	public boolean run() throws InterruptedException {
+
+		if (failed){
+			return false;
+		}
+
+		if (!sqlSourceHelper.isSnapshotInProgress()){
+			Object[] bounds = hibernateHelper.executeSnapshotBoundsQuery();
+			if (bounds[0] == null || bounds[1] == null){
+				LOG.info("Table is empty, nothing to snapshot");
+				sqlSourceHelper.finishSnapshot();
+				return true;
+			}
+			Long lowWatermark = toKey(bounds[0]);
+			Long highWatermark = toKey(bounds[1]);
+			if (lowWatermark == null || highWatermark == null){
+				LOG.error("Snapshot of source " + sqlSourceHelper.getSourceName() + " failed, the snapshot.key values "
+						+ bounds[0] + " and " + bounds[1] + " are not integers, the source will not poll until configured again");
+				failed = true;
+				return false;
+			}
+			try {
+				sqlSourceHelper.startSnapshot(lowWatermark, highWatermark);
+			} catch (ConfigurationException e) {
+				LOG.error("Snapshot of source " + sqlSourceHelper.getSourceName() + " failed, the source will not poll "
+						+ "until configured again", e);
+				failed = true;
+				return false;
+			}
+		}
+
+		List<Integer> pendingChunks = sqlSourceHelper.getPendingSnapshotChunks();
+		LOG.info("Running snapshot of source " + sqlSourceHelper.getSourceName() + ", "
+				+ pendingChunks.size() + " of " + sqlSourceHelper.getSnapshotChunkCount() + " chunks pending");
+		sqlSourceCounter.setSnapshotPendingChunks(pendingChunks.size());
+
+		int parallelism = sqlSourceHelper.getSnapshotParallelism();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				new ThreadFactoryBuilder().setNameFormat("sql-source-" + sqlSourceHelper.getSourceName()
+						+ "-snapshot-%d").setDaemon(true).build());
+		CompletionService<Long> completionService = new ExecutorCompletionService<Long>(executor);
+		Set<Future<Long>> running = new HashSet<Future<Long>>();
+		Iterator<Integer> chunks = pendingChunks.iterator();
+		boolean completed = true;
+
+		/* A chunk is submitted when another one finishes, so no chunk waits in the executor queue */
+		try {
+			while (running.size() < parallelism && chunks.hasNext()){
+				running.add(completionService.submit(chunkTask(chunks.next())));
+			}
+			while (!running.isEmpty()){
+				Future<Long> future = completionService.take();
+				running.remove(future);
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					LOG.error("Error exporting snapshot chunk, the pending chunks will be retried", e.getCause());
+					completed = false;
+					break;
+				}
+				if (chunks.hasNext()){
+					running.add(completionService.submit(chunkTask(chunks.next())));
+				}
+			}
+		} finally {
+			for (Future<Long> future : running){
+				future.cancel(true);
+			}
+			executor.shutdownNow();
+			/* The next run must not export a chunk still running */
+			if (!executor.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS)){
+				LOG.warn("Snapshot chunks of source {} still running after being cancelled", sqlSourceHelper.getSourceName());
+			}
+		}
+
+		if (completed){
+			LOG.info("Snapshot of source " + sqlSourceHelper.getSourceName() + " finished, starting incremental polling");
+			sqlSourceHelper.finishSnapshot();
+		}
+		return completed;
+	}
+
+	/**
+	 * @return the key bound as a long, null if it is not an integer in the long range
+	 */
+	private static Long toKey(Object bound) {
+
+		if (!(bound instanceof Number)){
+			return null;
+		}
+		try {
+			return new BigDecimal(bound.toString()).longValueExact();
+		} catch (ArithmeticException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private Callable<Long> chunkTask(final int chunk) {
+		return new Callable<Long>() {
+			@Override
+			public Long call() throws IOException, InterruptedException {
+				long rows = exportChunk(chunk);
+				sqlSourceHelper.completeSnapshotChunk(chunk);
+				sqlSourceCounter.decrementSnapshotPendingChunks();
+				return rows;
+			}
+		};
+	}
+
+	private long exportChunk(int chunk) throws IOException, InterruptedException {
+
+		int fetchSize = sqlSourceHelper.getMaxRows() > 0 ? sqlSourceHelper.getMaxRows() : DEFAULT_FETCH_SIZE;
+		ChunkWriter chunkWriter = new ChunkWriter(sqlSource.createChannelWriter(), fetchSize);
+		long rows;
+
+		String endpoint = hibernateHelper.getCurrentURL();
+		loadGovernor.beforeQuery(endpoint);
+		long queryStart = System.currentTimeMillis();
+		try {
+			rows = hibernateHelper.readSnapshotChunk(sqlSourceHelper.buildSnapshotChunkQuery(chunk), fetchSize, chunkWriter);
+			chunkWriter.close();
+		} finally {
+			loadGovernor.afterQuery(endpoint, System.currentTimeMillis() - queryStart);
+		}
+
+		LOG.debug("Snapshot chunk " + chunk + " exported, " + rows + " rows");
+		return rows;
+	}
+
+	/**
+	 * Filters the rows of a chunk and writes them to the channels, flushed every fetch size events
+	 */
+	private class ChunkWriter implements HibernateHelper.RowHandler {
+
+		private final SQLSource.ChannelWriter channelWriter;
+		private final int fetchSize;
+		private long rows;
+		private long events;
+
+		ChunkWriter(SQLSource.ChannelWriter channelWriter, int fetchSize) {
+			this.channelWriter = channelWriter;
+			this.fetchSize = fetchSize;
+		}
+
+		@Override
+		public void handle(List<Object> row, ConversionPlan plan) throws IOException, InterruptedException {
+			if (rows++ == 0){
+				channelWriter.setConversionPlan(plan);
+				channelWriter.setSchemaVersion(plan.getVersion());
+				if (rowFilter != null){
+					rowFilter.bind(plan);
+				}
+			}
+			if (rows % fetchSize == 0){
+				loadGovernor.throttleRows(fetchSize);
+			}
+
+			List<Object> event = rowFilter == null ? row : rowFilter.applyRow(row);
+			if (event == null){
+				sqlSourceCounter.incrementFilteredRowCount(1);
+				return;
+			}
+			/* Written while the result set is on the row, so its LOBs are still readable */
+			channelWriter.write(event);
+			if (++events % fetchSize == 0){
+				channelWriter.flush();
+				sqlSourceCounter.incrementEventCount(fetchSize);
+			}
+		}
+
+		void close() {
+			channelWriter.close();
+			sqlSourceCounter.incrementEventCount((int) (events % fetchSize));
+		}
+	}
+}
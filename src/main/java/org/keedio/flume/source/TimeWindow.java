@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed time window queried in time window mode, as <tt>ts &gt;= start AND ts &lt; end</tt>. <p>
+ * A window is open until it is older than the settle delay: meanwhile it is queried again on each poll, so
+ * rows from transactions committed late are still read, and the rows already sent from it are skipped.
+ * Once settled the window is queried a last time and the next one starts at its end, so a source behind
+ * walks the settled windows one after another. <p>
+ * The keys of the rows sent from the open window are kept as 64 bits hashes, up to a max number of keys,
+ * and saved in a file next to the status file, so a restart doesn't send the open window again.
+ */
+public class TimeWindow {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TimeWindow.class);
+	private static final int FILE_MAGIC = 0x53515457;
+	private static final int INITIAL_KEYS = 1024;
+
+	private final long size;
+	private final long settleDelay;
+	private final int[] keyColumns;
+	private final int maxKeys;
+	private final File file;
+	private final LongHashSet sentKeys = new LongHashSet(INITIAL_KEYS);
+	private long start, end;
+	private boolean settled, overflowed;
+
+	/**
+	 * @param size Window length in ms
+	 * @param settleDelay Time in ms after the window end before it's considered complete
+	 * @param keyColumns 0 based indexes of the columns identifying a row, empty to use the whole row
+	 * @param maxKeys Max keys of sent rows kept for the open window
+	 * @param file File to persist the keys of the sent rows
+	 */
+	public TimeWindow(long size, long settleDelay, int[] keyColumns, int maxKeys, File file) {
+		this.size = size;
+		this.settleDelay = settleDelay;
+		this.keyColumns = keyColumns;
+		this.maxKeys = maxKeys;
+		this.file = file;
+	}
+
+	/**
+	 * Set the window to query
+	 * @param start Window start, the last committed index
+	 * @param now Current time in ms
+	 */
+	public void plan(long start, long now) {
+		if (start != this.start){
+			clear();
+		}
+		this.start = start;
+		this.end = start + size;
+		this.settled = end + settleDelay <= now;
+	}
+
+	/**
+	 * Remove the rows already sent from the window, and remember the new ones while it's open
+	 * @param rows Query result of the window
+	 * @return Rows not sent before
+	 */
+	public List<List<Object>> filterSent(List<List<Object>> rows) {
+
+		if (sentKeys.isEmpty() && settled){
+			return rows;
+		}
+
+		List<List<Object>> unsent = new ArrayList<List<Object>>(rows.size());
+		for (List<Object> row : rows){
+			long key = RowDeduplicator.hash(row, keyColumns);
+			if (sentKeys.contains(key)){
+				continue;
+			}
+			unsent.add(row);
+			if (settled){
+				continue;
+			}
+			if (sentKeys.size() < maxKeys){
+				sentKeys.add(key);
+			}
+			else if (!overflowed){
+				overflowed = true;
+				LOG.warn("More than {} rows sent from the open time window starting at {}, the rows not remembered may be sent again",
+						maxKeys, start);
+			}
+		}
+		return unsent;
+	}
+
+	/**
+	 * Move to the next window, once the settled one is delivered
+	 * @return Start of the next window
+	 */
+	public long advance() {
+		clear();
+		start = end;
+		return end;
+	}
+
+	/**
+	 * Forget the rows sent from the open window, i.e. after they are rolled back
+	 */
+	public void reset() {
+		clear();
+	}
+
+	private void clear() {
+		sentKeys.clear(INITIAL_KEYS);
+		overflowed = false;
+	}
+
+	/**
+	 * Save the window start and the keys of the rows sent from it, writing a temporary file first
+	 */
+	public void save() {
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(FILE_MAGIC);
+				out.writeLong(start);
+				sentKeys.write(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)){
+				file.delete();
+				tmp.renameTo(file);
+			}
+		} catch (IOException e) {
+			LOG.error("Error saving time window file " + file, e);
+		}
+	}
+
+	/**
+	 * Load the keys of the rows sent from the open window, if the file exists. They are discarded if the
+	 * next window planned starts somewhere else.
+	 */
+	public void load() {
+
+		if (!file.exists()){
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != FILE_MAGIC){
+					throw new IOException("Not a time window file");
+				}
+				clear();
+				start = in.readLong();
+				sentKeys.read(in);
+			} finally {
+				in.close();
+			}
+			LOG.info("{} keys of rows sent from the open time window loaded from {}", sentKeys.size(), file);
+		} catch (IOException e) {
+			clear();
+			LOG.error("Error loading time window file " + file + ", the open window may be sent again", e);
+		}
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public boolean isSettled() {
+		return settled;
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+/**
+ * Token bucket rate limiter. Permits can be taken beyond the available tokens, the debt has to be
+ * paid waiting before the next permits are granted, so a big query result delays the next query.
+ */
+public class TokenBucket {
+
+	private final double ratePerSecond;
+	private final double capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * @param ratePerSecond Tokens added to the bucket each second
+	 * @param capacity Max tokens stored in the bucket (allowed burst)
+	 */
+	public TokenBucket(double ratePerSecond, double capacity) {
+		this.ratePerSecond = ratePerSecond;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take permits from the bucket
+	 * @param permits Permits to take
+	 * @return ms to wait until the bucket is not in debt anymore
+	 */
+	public synchronized long reserve(double permits) {
+
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * ratePerSecond);
+		lastRefill = now;
+		tokens -= permits;
+
+		return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerSecond * 1000);
+	}
+
+	/**
+	 * Take permits from the bucket, waiting if it is in debt
+	 * @param permits Permits to take
+	 * @return ms waited
+	 * @throws InterruptedException
+	 */
+	public long acquire(double permits) throws InterruptedException {
+
+		long wait = reserve(permits);
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+		return wait;
+	}
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.keedio.flume.source;
+
+import org.apache.flume.Context;
+import org.apache.flume.EventDrivenSource;
+import org.apache.flume.PollableSource.Status;
+import org.apache.flume.conf.Configurable;
+import org.apache.flume.source.AbstractSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SQL source polling from its own thread instead of the platform thread Flume runs for each pollable
+ * source. <p>
+ * On Java 21 or later the poll loop runs on a virtual thread, which releases its carrier thread while the
+ * source sleeps between queries or waits for the database. Only the poll thread is virtual: the connection
+ * pool of each source still starts its own platform threads, and the saving has not been measured on
+ * Java 21 (see <tt>VirtualThreadSQLSourceBenchmark</tt>). On older JVMs, or with
+ * <tt>virtual.threads = false</tt>, a platform thread is used, as with {@link SQLSource}. The configuration
+ * is the same as {@link SQLSource}; <tt>governor.max.agent.concurrent.queries</tt> bounds the queries run
+ * at the same time by all the sources of the agent.
+ */
+public class VirtualThreadSQLSource extends AbstractSource implements EventDrivenSource, Configurable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadSQLSource.class);
+
+	/* Wait after process() fails, so a persistent error doesn't spin the loop */
+	private static final long ERROR_BACKOFF = 1000;
+	private static final long STOP_TIMEOUT = 30000;
+
+	private final SQLSource sqlSource = new SQLSource();
+	private boolean virtualThreads;
+	private volatile boolean running;
+	private Thread pollThread;
+
+	@Override
+	public void configure(Context context) {
+		virtualThreads = context.getBoolean("virtual.threads", true);
+		sqlSource.setName(getName());
+		sqlSource.configure(context);
+	}
+
+	@Override
+	public synchronized void start() {
+
+		LOG.info("Starting sql source {} on its own poll thread", getName());
+		sqlSource.setChannelProcessor(getChannelProcessor());
+		sqlSource.start();
+
+		running = true;
+		pollThread = newThread("sql-source-" + getName(), new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		});
+		pollThread.start();
+		super.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+
+		running = false;
+		pollThread.interrupt();
+		try {
+			pollThread.join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sqlSource.stop();
+		super.stop();
+	}
+
+	/**
+	 * @return true if the poll loop runs on a virtual thread
+	 */
+	public boolean isVirtual() {
+		return pollThread != null && isVirtual(pollThread);
+	}
+
+	/* Same loop and back off as the Flume polling runner */
+	private void poll() {
+
+		int backoffs = 0;
+		while (running){
+			long sleep;
+			try {
+				if (sqlSource.process() == Status.BACKOFF){
+					backoffs++;
+					sleep = Math.min(backoffs * sqlSource.getBackOffSleepIncrement(), sqlSource.getMaxBackOffSleepInterval());
+				}
+				else {
+					backoffs = 0;
+					sleep = 0;
+				}
+			} catch (Exception e) {
+				LOG.error("Unhandled exception polling source " + getName(), e);
+				sleep = ERROR_BACKOFF;
+			}
+
+			if (sleep > 0 && running){
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					LOG.debug("Poll loop of {} interrupted", getName());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Virtual thread built with Thread.ofVirtual() by reflection, the source is built for Java 7.
+	 * A platform thread if virtual threads are disabled or not supported.
+	 */
+	private Thread newThread(String name, Runnable task) {
+
+		if (virtualThreads){
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+				return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, task);
+			} catch (Exception e) {
+				LOG.info("Virtual threads not supported by this JVM, polling {} from a platform thread", getName());
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private static boolean isVirtual(Thread thread) {
+		try {
+			return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.keedio.flume.source;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(2, 60000);
+		circuitBreaker.recordFailure();
+		assertTrue(circuitBreaker.allowRequest());
+		circuitBreaker.recordFailure();
+		assertFalse(circuitBreaker.allowRequest());
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	public void successResetsFailures() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(2, 60000);
+		circuitBreaker.recordFailure();
+		circuitBreaker.recordSuccess();
+		circuitBreaker.recordFailure();
+		assertTrue(circuitBreaker.allowRequest());
+	}
+
+	@Test
+	public void halfOpenAfterResetTimeout() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0);
+		circuitBreaker.recordFailure();
+		assertTrue(circuitBreaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+		circuitBreaker.recordFailure();
+		assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+		circuitBreaker.allowRequest();
+		circuitBreaker.recordSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void disabledWithZeroThreshold() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(0, 60000);
+		for (int i = 0; i < 10; i++) {
+			circuitBreaker.recordFailure();
+		}
+		assertTrue(circuitBreaker.allowRequest());
+	}
+}
@@ -0,0 +1,80 @@
+package org.keedio.flume.source;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ConversionPlanTest {
+
+	private ResultSetMetaData metaData(int secondColumnType) throws SQLException {
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(metaData.getColumnCount()).thenReturn(2);
+		when(metaData.getColumnLabel(1)).thenReturn("NAME");
+		when(metaData.getColumnType(1)).thenReturn(Types.VARCHAR);
+		when(metaData.getColumnTypeName(1)).thenReturn("VARCHAR");
+		when(metaData.getPrecision(1)).thenReturn(32);
+		when(metaData.getColumnLabel(2)).thenReturn("AMOUNT");
+		when(metaData.getColumnType(2)).thenReturn(secondColumnType);
+		when(metaData.getColumnTypeName(2)).thenReturn(secondColumnType == Types.DECIMAL ? "DECIMAL" : "INTEGER");
+		when(metaData.getPrecision(2)).thenReturn(10);
+		return metaData;
+	}
+
+	@Test
+	public void planIsCachedBySchemaVersion() throws SQLException {
+		ConversionPlan.Cache cache = new ConversionPlan.Cache();
+		ConversionPlan plan = cache.get(metaData(Types.DECIMAL));
+
+		assertSame(plan, cache.get(metaData(Types.DECIMAL)));
+		assertEquals("NAME VARCHAR(32,0),AMOUNT DECIMAL(10,0)", plan.getDescription());
+
+		ConversionPlan altered = cache.get(metaData(Types.INTEGER));
+		assertNotEquals(plan.getVersion(), altered.getVersion());
+		assertSame(plan, cache.get(metaData(Types.DECIMAL)));
+	}
+
+	@Test
+	public void columnsReadByType() throws SQLException {
+		ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getString(1)).thenReturn("name");
+		when(resultSet.getBigDecimal(2)).thenReturn(new BigDecimal("10.50"));
+
+		ConversionPlan plan = new ConversionPlan.Cache().get(metaData(Types.DECIMAL));
+		assertEquals(Arrays.<Object>asList("name", new BigDecimal("10.50")), plan.read(resultSet));
+		verify(resultSet, never()).getObject(anyInt());
+	}
+
+	@Test
+	public void customDialectStringTypes() throws SQLException {
+		ResultSet resultSet = mock(ResultSet.class);
+		when(resultSet.getString(1)).thenReturn("name");
+		when(resultSet.getString(2)).thenReturn("10.50");
+
+		ConversionPlan plan = new ConversionPlan.Cache(Collections.singleton(Types.DECIMAL)).get(metaData(Types.DECIMAL));
+		assertEquals(Arrays.<Object>asList("name", "10.50"), plan.read(resultSet));
+		verify(resultSet, never()).getBigDecimal(anyInt());
+	}
+
+	@Test
+	public void longColumnsReadAsStreams() throws SQLException {
+		ResultSet resultSet = mock(ResultSet.class);
+		Reader reader = new StringReader("long");
+		when(resultSet.getString(1)).thenReturn("name");
+		when(resultSet.getCharacterStream(2)).thenReturn(reader);
+
+		ConversionPlan plan = new ConversionPlan.Cache().get(metaData(Types.LONGVARCHAR));
+		assertSame(reader, plan.read(resultSet).get(1));
+		verify(resultSet, never()).getClob(anyInt());
+	}
+}
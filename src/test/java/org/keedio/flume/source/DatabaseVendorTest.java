@@ -0,0 +1,28 @@
+package org.keedio.flume.source;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DatabaseVendorTest {
+
+	@Test
+	public void detect() {
+		assertEquals(DatabaseVendor.MYSQL, DatabaseVendor.detect(null, "jdbc:mysql://host:3306/database"));
+		assertEquals(DatabaseVendor.SQLSERVER, DatabaseVendor.detect(null, "jdbc:jtds:sqlserver://host/database"));
+		assertEquals(DatabaseVendor.ORACLE, DatabaseVendor.detect(null, "jdbc:oracle:thin:@host:1521:sid"));
+		assertEquals(DatabaseVendor.SQLSERVER,
+				DatabaseVendor.detect("org.keedio.flume.source.SQLServerCustomDialect", "jdbc:mysql://host/database"));
+		assertEquals(DatabaseVendor.POSTGRESQL, DatabaseVendor.detect("org.hibernate.dialect.PostgreSQL9Dialect", null));
+		assertEquals(DatabaseVendor.OTHER, DatabaseVendor.detect(null, "jdbc:sybase:Tds:host:5000"));
+	}
+
+	@Test
+	public void shardPredicates() {
+		assertEquals("MOD(ABS(id), 4) = 1", DatabaseVendor.MYSQL.shardPredicate("id", false, 4, 1));
+		assertEquals("ABS(id) % 4 = 1", DatabaseVendor.SQLSERVER.shardPredicate("id", false, 4, 1));
+		assertEquals("MOD(CRC32(code), 4) = 3", DatabaseVendor.MYSQL.shardPredicate("code", true, 4, 3));
+		assertEquals("ORA_HASH(code, 3) = 0", DatabaseVendor.ORACLE.shardPredicate("code", true, 4, 0));
+		assertNull(DatabaseVendor.DB2.shardPredicate("code", true, 4, 0));
+	}
+}
@@ -0,0 +1,37 @@
+package org.keedio.flume.source;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.keedio.flume.source.EndpointRouter.RoutingPolicy;
+
+import static org.junit.Assert.*;
+
+public class EndpointRouterTest {
+
+	@Test
+	public void preferReplicaFallsBackToPrimary() {
+		EndpointRouter endpointRouter = new EndpointRouter("primary", Arrays.asList("replica1", "replica2"),
+				RoutingPolicy.fromString("prefer.replica"), 60000);
+		assertEquals(Arrays.asList("replica1", "replica2", "primary"), endpointRouter.getCandidates());
+	}
+
+	@Test
+	public void failedReplicaIsSkippedAndRotated() {
+		EndpointRouter endpointRouter = new EndpointRouter("primary", Arrays.asList("replica1", "replica2"),
+				RoutingPolicy.PREFER_REPLICA, 60000);
+		endpointRouter.markFailed("replica1");
+		assertEquals(Arrays.asList("replica2", "primary"), endpointRouter.getCandidates());
+		endpointRouter.markSucceeded("replica1");
+		assertEquals(Arrays.asList("replica2", "replica1", "primary"), endpointRouter.getCandidates());
+	}
+
+	@Test
+	public void primaryReturnedWhenEverythingFailed() {
+		EndpointRouter endpointRouter = new EndpointRouter("primary", Arrays.asList("replica1"),
+				RoutingPolicy.PRIMARY, 60000);
+		endpointRouter.markFailed("primary");
+		endpointRouter.markFailed("replica1");
+		assertEquals(Arrays.asList("primary"), endpointRouter.getCandidates());
+	}
+}
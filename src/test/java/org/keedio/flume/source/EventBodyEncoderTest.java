@@ -0,0 +1,117 @@
+package org.keedio.flume.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import javax.sql.rowset.serial.SerialBlob;
+import javax.sql.rowset.serial.SerialClob;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.keedio.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class EventBodyEncoderTest {
+
+	private SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	private SqlSourceCounter sqlSourceCounter = mock(SqlSourceCounter.class);
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.getDelimiterEntry()).thenReturn(",");
+		when(sqlSourceHelper.getDefaultCharsetResultSet()).thenReturn("UTF-8");
+		when(sqlSourceHelper.getLobOverflowPolicy()).thenReturn(EventBodyEncoder.LobOverflowPolicy.TRUNCATE);
+	}
+
+	private String encode(Object... row) throws Exception {
+		return new String(new EventBodyEncoder(sqlSourceHelper, sqlSourceCounter).encode(Arrays.asList(row)),
+				Charset.forName("UTF-8"));
+	}
+
+	@Test
+	public void encodeLikeCsvWriter() throws Exception {
+		when(sqlSourceHelper.encloseByQuotes()).thenReturn(true);
+		assertEquals("\"1\",\"say \"\"hi\"\"\",\"\"", encode(1, "say \"hi\"", null));
+
+		when(sqlSourceHelper.encloseByQuotes()).thenReturn(false);
+		assertEquals("1,\"a,b\",\"x\ny\",plain", encode(1, "a,b", "x\ny", "plain"));
+	}
+
+	@Test
+	public void encodeLobs() throws Exception {
+		when(sqlSourceHelper.encloseByQuotes()).thenReturn(false);
+		assertEquals("\"it \"\"is\"\" a clob\",CAFE",
+				encode(new SerialClob("it \"is\" a clob".toCharArray()), new SerialBlob(new byte[] {(byte) 0xCA, (byte) 0xFE})));
+	}
+
+	@Test
+	public void truncateLongLobs() throws Exception {
+		when(sqlSourceHelper.encloseByQuotes()).thenReturn(false);
+		when(sqlSourceHelper.getLobMaxSize()).thenReturn(4L);
+		assertEquals("\"abcd\",\"ab\"", encode(new SerialClob("abcdef".toCharArray()), new SerialClob("ab".toCharArray())));
+		verify(sqlSourceCounter, times(1)).incrementLobTruncatedCount();
+	}
+
+	@Test
+	public void encodeLobStreams() throws Exception {
+		when(sqlSourceHelper.encloseByQuotes()).thenReturn(false);
+		when(sqlSourceHelper.getLobMaxSize()).thenReturn(4L);
+		assertEquals("\"ab\"\"c\",\"long\",0102", encode(new StringReader("ab\"c"), new StringReader("longer"),
+				new ByteArrayInputStream(new byte[] {1, 2})));
+		verify(sqlSourceCounter, times(1)).incrementLobTruncatedCount();
+	}
+
+	@Test
+	public void estimateSize() throws Exception {
+		assertEquals(3 + 5 + 24 + 0, EventBodyEncoder.estimateSize(Arrays.<Object>asList("abc", 1, null)));
+	}
+
+	@Test
+	public void encodeLobsBeforeTheRow() throws Exception {
+		when(sqlSourceHelper.encloseByQuotes()).thenReturn(false);
+		when(sqlSourceHelper.getLobMaxSize()).thenReturn(4L);
+		EventBodyEncoder encoder = new EventBodyEncoder(sqlSourceHelper, sqlSourceCounter);
+
+		SerialClob clob = new SerialClob("abcdef".toCharArray());
+		EventBodyEncoder.EncodedLob encodedClob = encoder.encodeLob(clob);
+		EventBodyEncoder.EncodedLob encodedBlob = encoder.encodeLob(new SerialBlob(new byte[] {1, 2, 3, 4, 5}));
+		assertEquals(6, encodedClob.length());
+		assertEquals(8, encodedBlob.length());
+		assertEquals(2 + 6 + 8, EventBodyEncoder.estimateSize(Arrays.<Object>asList(encodedClob, encodedBlob)));
+		try {
+			clob.length();
+			fail("Clob not freed");
+		} catch (Exception e) {
+			/* freed */
+		}
+
+		assertEquals("1,\"abcd\",01020304", new String(encoder.encode(Arrays.<Object>asList(1, encodedClob, encodedBlob)),
+				Charset.forName("UTF-8")));
+	}
+
+	@Test
+	public void referenceLongLobs() throws Exception {
+		File directory = new File("/tmp/flume/lob");
+		when(sqlSourceHelper.encloseByQuotes()).thenReturn(false);
+		when(sqlSourceHelper.getLobMaxSize()).thenReturn(1L);
+		when(sqlSourceHelper.getLobOverflowPolicy()).thenReturn(EventBodyEncoder.LobOverflowPolicy.REFERENCE);
+		when(sqlSourceHelper.getLobReferenceDirectory()).thenReturn(directory);
+
+		String body = encode(new SerialBlob(new byte[] {1, 2, 3}));
+		assertTrue(body.startsWith(EventBodyEncoder.LOB_REFERENCE_PREFIX));
+		File reference = new File(body.substring(EventBodyEncoder.LOB_REFERENCE_PREFIX.length()));
+		assertEquals(3, reference.length());
+		assertTrue(reference.delete());
+
+		/* The bytes buffered to find the overflow of a stream are in the file too */
+		body = encode(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		reference = new File(body.substring(EventBodyEncoder.LOB_REFERENCE_PREFIX.length()));
+		assertEquals(3, reference.length());
+		assertTrue(reference.delete());
+	}
+}
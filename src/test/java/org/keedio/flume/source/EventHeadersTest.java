@@ -0,0 +1,39 @@
+package org.keedio.flume.source;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventHeadersTest {
+
+	@Test
+	public void behaveAsMap() {
+		EventHeaders headers = new EventHeaders(2);
+		assertNull(headers.put("timestamp", "1"));
+		assertNull(headers.put("key", "a"));
+		assertEquals("a", headers.put("key", "b"));
+
+		/* Headers added downstream grow the map */
+		headers.put("topic", "t");
+
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("timestamp", "1");
+		expected.put("key", "b");
+		expected.put("topic", "t");
+		assertEquals(expected, headers);
+		assertEquals(expected.hashCode(), headers.hashCode());
+		assertEquals("b", headers.get("key"));
+		assertNull(headers.get("missing"));
+
+		assertEquals("1", headers.remove("timestamp"));
+		Iterator<Map.Entry<String, String>> entries = headers.entrySet().iterator();
+		entries.next();
+		entries.remove();
+		assertEquals(1, headers.size());
+		assertEquals("t", headers.get("topic"));
+	}
+}
@@ -0,0 +1,83 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventSpillBufferTest {
+
+	private File file = new File("/tmp/flume/spillBufferTest.spill");
+	private EventSpillBuffer buffer;
+
+	@Before
+	public void setup() throws Exception {
+		file.getParentFile().mkdirs();
+		buffer = new EventSpillBuffer(file, 256);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		buffer.close();
+		file.delete();
+	}
+
+	private List<Event> events(int from, int to) {
+		List<Event> events = new ArrayList<Event>();
+		for (int i = from; i < to; i++){
+			events.add(EventBuilder.withBody(("row" + i).getBytes(), Collections.singletonMap("timestamp", "" + i)));
+		}
+		return events;
+	}
+
+	@Test
+	public void drainInOrder() {
+		assertTrue(buffer.append(events(0, 2)));
+		assertTrue(buffer.append(events(2, 3)));
+		assertEquals(3, buffer.size());
+
+		List<Event> events = buffer.peek(2);
+		assertEquals("row0", new String(events.get(0).getBody()));
+		assertEquals("1", events.get(1).getHeaders().get("timestamp"));
+		assertEquals(3, buffer.size());
+
+		buffer.remove(2);
+		assertEquals("row2", new String(buffer.peek(10).get(0).getBody()));
+		buffer.remove(1);
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.getUsage(), 0);
+	}
+
+	@Test
+	public void compactAndOverflow() {
+		/* Each event takes 30 bytes, 31 from row10 */
+		assertTrue(buffer.append(events(0, 8)));
+		buffer.remove(4);
+		assertTrue(buffer.append(events(8, 12)));
+		assertEquals("row4", new String(buffer.peek(1).get(0).getBody()));
+
+		assertFalse(buffer.append(events(12, 13)));
+		assertEquals(8, buffer.size());
+	}
+
+	@Test
+	public void unusableOnceClosed() throws Exception {
+		assertTrue(buffer.append(events(0, 1)));
+		buffer.close();
+		assertFalse(buffer.append(events(1, 2)));
+		assertTrue(buffer.peek(10).isEmpty());
+		assertTrue(file.delete());
+
+		/* Mapped again by a new buffer */
+		buffer = new EventSpillBuffer(file, 256);
+		assertTrue(buffer.append(events(0, 1)));
+	}
+}
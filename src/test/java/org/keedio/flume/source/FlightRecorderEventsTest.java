@@ -0,0 +1,61 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+import org.keedio.flume.source.FlightRecorderEvents.TracedEvent;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+public class FlightRecorderEventsTest {
+
+	@Test
+	public void noopWhenNotRecorded() {
+		TracedEvent event = FlightRecorderEvents.begin(FlightRecorderEvents.CHECKPOINT);
+		assertFalse(event.isRecorded());
+		event.set("unknown", 1).commit();
+	}
+
+	/* The JFR API is used by reflection, the tests are built for Java 7 too */
+	@Test
+	public void recordEvents() throws Exception {
+		assumeTrue(FlightRecorderEvents.isAvailable());
+
+		Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+		Object recording = recordingClass.getConstructor().newInstance();
+		recordingClass.getMethod("enable", String.class).invoke(recording, FlightRecorderEvents.QUERY.getName());
+		recordingClass.getMethod("start").invoke(recording);
+
+		TracedEvent event = FlightRecorderEvents.begin(FlightRecorderEvents.QUERY);
+		assertTrue(event.isRecorded());
+		event.set("source", "test").set("rows", 42).set("bytes", 1024L).set("failed", false).commit();
+
+		File file = File.createTempFile("sql-source", ".jfr");
+		file.deleteOnExit();
+		recordingClass.getMethod("stop").invoke(recording);
+		recordingClass.getMethod("dump", Path.class).invoke(recording, file.toPath());
+		recordingClass.getMethod("close").invoke(recording);
+
+		List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+				.getMethod("readAllEvents", Path.class).invoke(null, file.toPath());
+		Object recorded = null;
+		for (Object candidate : events){
+			Object type = candidate.getClass().getMethod("getEventType").invoke(candidate);
+			if (FlightRecorderEvents.QUERY.getName().equals(type.getClass().getMethod("getName").invoke(type))){
+				recorded = candidate;
+			}
+		}
+		assertNotNull(recorded);
+		assertEquals("test", value(recorded, "source"));
+		assertEquals(42, value(recorded, "rows"));
+		assertEquals(1024L, value(recorded, "bytes"));
+	}
+
+	private Object value(Object recordedEvent, String field) throws Exception {
+		return Class.forName("jdk.jfr.consumer.RecordedObject").getMethod("getValue", String.class)
+				.invoke(recordedEvent, field);
+	}
+}
@@ -0,0 +1,117 @@
+package org.keedio.flume.source;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LeaseCoordinatorTest {
+
+	private static final String URL = "jdbc:h2:mem:leases;DB_CLOSE_DELAY=-1";
+	private static final long LEASE_TIMEOUT = 150;
+
+	private LeaseCoordinator[] coordinators = new LeaseCoordinator[0];
+
+	private LeaseCoordinator coordinator(String agent, String workUnit) {
+		LeaseCoordinator coordinator = new LeaseCoordinator(URL, "sa", "", "TEST_LEASE", agent, workUnit, LEASE_TIMEOUT);
+		LeaseCoordinator[] grown = new LeaseCoordinator[coordinators.length + 1];
+		System.arraycopy(coordinators, 0, grown, 0, coordinators.length);
+		grown[coordinators.length] = coordinator;
+		coordinators = grown;
+		return coordinator;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (LeaseCoordinator coordinator : coordinators){
+			coordinator.release();
+			coordinator.close();
+		}
+		java.sql.DriverManager.getConnection(URL, "sa", "").createStatement().execute("DROP ALL OBJECTS");
+	}
+
+	/* Let the renewal interval pass */
+	private void waitRenewal() throws InterruptedException {
+		Thread.sleep(LEASE_TIMEOUT / 3 + 10);
+	}
+
+	@Test
+	public void checkpointMovesWithTheLease() throws Exception {
+		LeaseCoordinator first = coordinator("agent1", "orders");
+		LeaseCoordinator second = coordinator("agent2", "orders");
+
+		assertTrue(first.holdLease());
+		assertNull(first.getCheckpoint());
+		assertFalse(second.holdLease());
+
+		first.saveCheckpoint("42");
+		first.release();
+		waitRenewal();
+		assertTrue(second.holdLease());
+		assertEquals("42", second.getCheckpoint());
+
+		/* The first agent dies, its lease expires */
+		second.saveCheckpoint("43");
+		Thread.sleep(LEASE_TIMEOUT + 10);
+		assertTrue(first.holdLease());
+		assertEquals("43", first.getCheckpoint());
+		second.saveCheckpoint("44");
+		waitRenewal();
+		assertFalse(second.holdLease());
+	}
+
+	@Test
+	public void heartbeatRenewsLeaseBetweenPolls() throws Exception {
+		LeaseCoordinator first = coordinator("agent1", "orders");
+		LeaseCoordinator second = coordinator("agent2", "orders");
+		assertTrue(first.holdLease());
+		first.start();
+
+		/* A poll longer than the lease timeout */
+		Thread.sleep(LEASE_TIMEOUT * 2);
+		assertTrue(first.isHeld());
+		assertFalse(second.holdLease());
+
+		first.close();
+		assertFalse(first.isHeld());
+		waitRenewal();
+		assertTrue(second.holdLease());
+	}
+
+	@Test
+	public void checkpointNotChangedWhenLeaseLost() throws Exception {
+		LeaseCoordinator first = coordinator("agent1", "orders");
+		LeaseCoordinator second = coordinator("agent2", "orders");
+		assertTrue(first.holdLease());
+		first.saveCheckpoint("42");
+
+		/* The lease expires without heartbeats and other agent takes it */
+		Thread.sleep(LEASE_TIMEOUT + 10);
+		assertFalse(first.isHeld());
+		assertTrue(second.holdLease());
+		first.saveCheckpoint("43");
+		assertEquals("42", first.getCheckpoint());
+		assertEquals("42", second.getCheckpoint());
+	}
+
+	@Test
+	public void workUnitsRebalanceWhenAgentsJoin() throws Exception {
+		LeaseCoordinator orders = coordinator("agent1", "orders");
+		LeaseCoordinator customers = coordinator("agent1", "customers");
+		assertTrue(orders.holdLease());
+		assertTrue(customers.holdLease());
+
+		LeaseCoordinator joinedOrders = coordinator("agent2", "orders");
+		LeaseCoordinator joinedCustomers = coordinator("agent2", "customers");
+		assertFalse(joinedOrders.holdLease());
+		assertFalse(joinedCustomers.holdLease());
+
+		waitRenewal();
+		assertFalse(orders.holdLease());
+		assertTrue(customers.holdLease());
+
+		waitRenewal();
+		assertTrue(joinedOrders.holdLease());
+		assertFalse(joinedCustomers.holdLease());
+	}
+}
@@ -0,0 +1,33 @@
+package org.keedio.flume.source;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.keedio.flume.metrics.SqlSourceCounter;
+
+import static org.mockito.Mockito.*;
+
+public class LoadGovernorTest {
+
+	private SqlSourceCounter sqlSourceCounter = mock(SqlSourceCounter.class);
+
+	@Test(timeout = 5000)
+	public void concurrentQueriesLimitedByEndpoint() throws Exception {
+		LoadGovernor primarySource = new LoadGovernor(helper("jdbc:h2:mem:governor-primary", 1), sqlSourceCounter);
+		LoadGovernor replicaSource = new LoadGovernor(helper("jdbc:h2:mem:governor-primary", 1), sqlSourceCounter);
+
+		/* A query routed to the replica doesn't hold the only permit of the primary */
+		replicaSource.beforeQuery("jdbc:h2:mem:governor-replica");
+		primarySource.beforeQuery("jdbc:h2:mem:governor-primary");
+		primarySource.afterQuery("jdbc:h2:mem:governor-primary", 0);
+		replicaSource.afterQuery("jdbc:h2:mem:governor-replica", 0);
+	}
+
+	private SQLSourceHelper helper(String url, int maxConcurrentQueries) {
+		SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+		when(sqlSourceHelper.getConnectionURL()).thenReturn(url);
+		when(sqlSourceHelper.getReplicaURLs()).thenReturn(Arrays.asList("jdbc:h2:mem:governor-replica"));
+		when(sqlSourceHelper.getMaxConcurrentQueries()).thenReturn(maxConcurrentQueries);
+		return sqlSourceHelper;
+	}
+}
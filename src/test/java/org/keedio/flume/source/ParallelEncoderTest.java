@@ -0,0 +1,69 @@
+package org.keedio.flume.source;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.rowset.serial.SerialClob;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keedio.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ParallelEncoderTest {
+
+	private SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+	private SqlSourceCounter sqlSourceCounter = mock(SqlSourceCounter.class);
+	private ParallelEncoder parallelEncoder;
+
+	@Before
+	public void setup() {
+		when(sqlSourceHelper.getSourceName()).thenReturn("test");
+		when(sqlSourceHelper.getDelimiterEntry()).thenReturn(",");
+		when(sqlSourceHelper.getDefaultCharsetResultSet()).thenReturn("UTF-8");
+		when(sqlSourceHelper.getLobOverflowPolicy()).thenReturn(EventBodyEncoder.LobOverflowPolicy.TRUNCATE);
+		parallelEncoder = new ParallelEncoder(sqlSourceHelper, sqlSourceCounter, 4, 10);
+	}
+
+	@After
+	public void tearDown() {
+		parallelEncoder.close();
+	}
+
+	@Test
+	public void encodeInRowOrder() throws Exception {
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int i = 0; i < 105; i++){
+			rows.add(Arrays.<Object>asList(i, "row " + i, null));
+		}
+		assertTrue(parallelEncoder.accepts(rows));
+
+		final EventBodyEncoder serialEncoder = new EventBodyEncoder(sqlSourceHelper, sqlSourceCounter);
+		final List<List<Object>> handled = new ArrayList<List<Object>>();
+		parallelEncoder.encode(rows, new ParallelEncoder.BodyHandler() {
+			@Override
+			public void handle(List<Object> row, byte[] body) throws IOException {
+				assertArrayEquals(serialEncoder.encode(row), body);
+				handled.add(row);
+			}
+		});
+		assertEquals(rows, handled);
+	}
+
+	@Test
+	public void encodeSmallOrLobResultsSerially() throws Exception {
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int i = 0; i < 10; i++){
+			rows.add(Arrays.<Object>asList(i));
+		}
+		assertFalse(parallelEncoder.accepts(rows));
+
+		rows.add(Arrays.<Object>asList(new SerialClob("clob".toCharArray())));
+		assertFalse(parallelEncoder.accepts(rows));
+	}
+}
@@ -0,0 +1,111 @@
+package org.keedio.flume.source;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.conf.ConfigurationException;
+import org.hibernate.HibernateException;
+import org.junit.Test;
+import org.keedio.flume.metrics.SqlSourceCounter;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class QueryPlanTest {
+
+	private List<Map<String, Object>> lines(String... lines) {
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		for (String line : lines){
+			rows.add(Collections.<String, Object>singletonMap("query plan", line));
+		}
+		return rows;
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void explainErrorFailsStrictCheck() {
+		SQLSourceHelper sqlSourceHelper = mock(SQLSourceHelper.class);
+		HibernateHelper hibernateHelper = mock(HibernateHelper.class);
+		when(sqlSourceHelper.getPlanCheckMode()).thenReturn(QueryPlan.CheckMode.FAIL);
+		when(hibernateHelper.explainQuery()).thenThrow(new HibernateException("no such table"));
+		new QueryPlanChecker(sqlSourceHelper, hibernateHelper, mock(SqlSourceCounter.class)).checkAtStartup();
+	}
+
+	@Test
+	public void parseMySQL() {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		row.put("type", "ALL");
+		row.put("rows", 120000L);
+		row.put("extra", "Using where; Using filesort");
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		rows.add(row);
+
+		QueryPlan plan = QueryPlan.parse(DatabaseVendor.MYSQL, rows);
+		assertTrue(plan.isFullScan());
+		assertTrue(plan.isSort());
+		assertEquals(120000, plan.getCost(), 0);
+
+		row.put("type", "range");
+		row.put("extra", "Using index condition");
+		assertEquals("", QueryPlan.parse(DatabaseVendor.MYSQL, rows).getFindings());
+	}
+
+	@Test
+	public void parsePostgreSQL() {
+		QueryPlan plan = QueryPlan.parse(DatabaseVendor.POSTGRESQL, lines(
+				"Sort  (cost=1725.14..1750.14 rows=10000 width=44)",
+				"  Sort Key: id",
+				"  ->  Seq Scan on orders  (cost=0.00..180.00 rows=10000 width=44)",
+				"        Filter: (id > 5)"));
+		assertEquals("full scan, sort without index", plan.getFindings());
+		assertEquals(1750.14, plan.getCost(), 0.001);
+
+		plan = QueryPlan.parse(DatabaseVendor.POSTGRESQL, lines(
+				"Index Scan using orders_pkey on orders  (cost=0.29..8.31 rows=1 width=44)",
+				"  Index Cond: (id > 5)"));
+		assertEquals("", plan.getFindings());
+	}
+
+	@Test
+	public void parseOracle() {
+		QueryPlan plan = QueryPlan.parse(DatabaseVendor.ORACLE, lines(
+				"Plan hash value: 1234",
+				"-----------------------------------------------------------------------------",
+				"| Id  | Operation          | Name   | Rows  | Bytes | Cost (%CPU)| Time     |",
+				"-----------------------------------------------------------------------------",
+				"|   0 | SELECT STATEMENT   |        |  1000 | 44000 |   310   (1)| 00:00:01 |",
+				"|   1 |  SORT ORDER BY     |        |  1000 | 44000 |   310   (1)| 00:00:01 |",
+				"|*  2 |   TABLE ACCESS FULL| ORDERS |  1000 | 44000 |   309   (1)| 00:00:01 |",
+				"-----------------------------------------------------------------------------"));
+		assertTrue(plan.isFullScan());
+		assertTrue(plan.isSort());
+		assertEquals(310, plan.getCost(), 0);
+	}
+
+	@Test
+	public void parseH2() throws Exception {
+		Connection connection = DriverManager.getConnection("jdbc:h2:mem:plan", "sa", "");
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute("CREATE TABLE orders (id INT PRIMARY KEY, customer VARCHAR(32))");
+			assertEquals("full scan, sort without index",
+					explain(statement, "SELECT * FROM orders WHERE customer > 'a' ORDER BY customer").getFindings());
+			assertEquals("", explain(statement, "SELECT * FROM orders WHERE id > 5 ORDER BY id").getFindings());
+		} finally {
+			connection.close();
+		}
+	}
+
+	private QueryPlan explain(Statement statement, String sql) throws Exception {
+		ResultSet resultSet = statement.executeQuery(DatabaseVendor.H2.explain(sql)[0]);
+		resultSet.next();
+		return QueryPlan.parse(DatabaseVendor.H2,
+				Collections.<Map<String, Object>>singletonList(Collections.<String, Object>singletonMap("plan", resultSet.getString(1))));
+	}
+}
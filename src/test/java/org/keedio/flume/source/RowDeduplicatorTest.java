@@ -0,0 +1,76 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RowDeduplicatorTest {
+
+	private File file;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("sqlSource", ".dedup");
+		file.delete();
+	}
+
+	@Test
+	public void replayedRowsAreSuppressed() {
+		RowDeduplicator rowDeduplicator = new RowDeduplicator(new int[] {0}, 2, 1000, 0.001, file);
+		assertEquals(3, rowDeduplicator.filter(rows(1, 2, 3)).size());
+		rowDeduplicator.commit();
+
+		List<List<Object>> replayed = rowDeduplicator.filter(rows(2, 3, 4));
+		assertEquals(1, replayed.size());
+		assertEquals(4, replayed.get(0).get(0));
+	}
+
+	@Test
+	public void rowsRepeatedInTheBatchAreSuppressed() {
+		RowDeduplicator rowDeduplicator = new RowDeduplicator(new int[] {0}, 10, 1000, 0.001, file);
+		List<List<Object>> unique = rowDeduplicator.filter(rows(1, 2, 1, 3, 2));
+		assertEquals(rows(1, 2, 3), unique);
+		rowDeduplicator.commit();
+		assertTrue(rowDeduplicator.filter(rows(1, 2, 3)).isEmpty());
+	}
+
+	@Test
+	public void rowsNotCommittedAreNotSuppressed() {
+		RowDeduplicator rowDeduplicator = new RowDeduplicator(new int[] {0}, 10, 1000, 0.001, file);
+		rowDeduplicator.filter(rows(1, 2));
+		assertEquals(2, rowDeduplicator.filter(rows(1, 2)).size());
+	}
+
+	@Test
+	public void stateIsPersisted() {
+		RowDeduplicator rowDeduplicator = new RowDeduplicator(new int[0], 2, 1000, 0.001, file);
+		rowDeduplicator.filter(rows(1, 2, 3, 4));
+		rowDeduplicator.commit();
+		rowDeduplicator.save();
+
+		RowDeduplicator loaded = new RowDeduplicator(new int[0], 2, 1000, 0.001, file);
+		loaded.load();
+		assertEquals(1, loaded.filter(rows(1, 4, 5)).size());
+	}
+
+	private List<List<Object>> rows(int... ids) {
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (int id : ids) {
+			rows.add(Arrays.<Object>asList(id, "name" + id));
+		}
+		return rows;
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+}
@@ -0,0 +1,91 @@
+package org.keedio.flume.source;
+
+import java.math.BigDecimal;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.flume.conf.ConfigurationException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class RowFilterTest {
+
+	private List<List<Object>> rows() {
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		rows.add(Arrays.<Object>asList(1, "ACTIVE", new BigDecimal("150.5"), null));
+		rows.add(Arrays.<Object>asList(2, "DELETED", new BigDecimal("20"), "note"));
+		rows.add(Arrays.<Object>asList(3, "ACTIVE", new BigDecimal("99"), "it's"));
+		return rows;
+	}
+
+	@Test
+	public void filterWithLogicalOperators() {
+		RowFilter rowFilter = new RowFilter("$3 > 100 OR ($2 = 'ACTIVE' AND $4 IS NOT NULL)", new int[0]);
+		List<List<Object>> result = rowFilter.apply(rows());
+		assertEquals(2, result.size());
+		assertEquals(1, result.get(0).get(0));
+		assertEquals(3, result.get(1).get(0));
+	}
+
+	@Test
+	public void literalOnLeftSideAndNot() {
+		RowFilter rowFilter = new RowFilter("100 > $3 AND NOT $2 <> 'ACTIVE'", new int[0]);
+		List<List<Object>> result = rowFilter.apply(rows());
+		assertEquals(1, result.size());
+		assertEquals(3, result.get(0).get(0));
+	}
+
+	@Test
+	public void likeAndQuotedLiterals() {
+		assertEquals(1, new RowFilter("$2 LIKE 'DEL%'", new int[0]).apply(rows()).size());
+		assertEquals(1, new RowFilter("$4 = 'it''s'", new int[0]).apply(rows()).size());
+	}
+
+	@Test
+	public void projection() {
+		List<List<Object>> result = new RowFilter(null, new int[] {1, 0}).apply(rows());
+		assertEquals(Arrays.<Object>asList("ACTIVE", 1), result.get(0));
+	}
+
+	private ConversionPlan plan(int... types) throws SQLException {
+		ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+		when(metaData.getColumnCount()).thenReturn(types.length);
+		for (int i = 0; i < types.length; i++){
+			when(metaData.getColumnType(i + 1)).thenReturn(types[i]);
+			when(metaData.getColumnLabel(i + 1)).thenReturn("C" + (i + 1));
+		}
+		return new ConversionPlan.Cache().get(metaData);
+	}
+
+	@Test
+	public void textColumnsComparedAsText() throws SQLException {
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		rows.add(Arrays.<Object>asList("9", "9"));
+		rows.add(Arrays.<Object>asList("10", "10"));
+
+		RowFilter rowFilter = new RowFilter("$1 > 5", new int[0]);
+		rowFilter.bind(plan(Types.VARCHAR, Types.DECIMAL));
+		assertEquals(1, rowFilter.apply(rows).size());
+
+		/* Numeric columns read as strings, i.e. with a dialect mapping them to strings, are parsed */
+		rowFilter = new RowFilter("$2 > 5", new int[0]);
+		rowFilter.bind(plan(Types.VARCHAR, Types.DECIMAL));
+		assertEquals(2, rowFilter.apply(rows).size());
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void columnsCheckedAgainstResult() throws SQLException {
+		new RowFilter("$1 > 5", new int[] {0, 3}).bind(plan(Types.INTEGER, Types.VARCHAR));
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void invalidExpression() {
+		new RowFilter("$1 >> 3", new int[0]);
+	}
+}
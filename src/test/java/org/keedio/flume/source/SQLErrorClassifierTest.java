@@ -0,0 +1,43 @@
+package org.keedio.flume.source;
+
+import java.net.SocketException;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import org.hibernate.exception.GenericJDBCException;
+import org.junit.Test;
+import org.keedio.flume.source.SQLErrorClassifier.ErrorType;
+
+import static org.junit.Assert.*;
+
+public class SQLErrorClassifierTest {
+
+	@Test
+	public void timeoutIsTransient() {
+		assertEquals(ErrorType.TRANSIENT, SQLErrorClassifier.classify(
+				new GenericJDBCException("query", new SQLTimeoutException("timeout"))));
+	}
+
+	@Test
+	public void deadlockSQLStateIsTransient() {
+		assertEquals(ErrorType.TRANSIENT, SQLErrorClassifier.classify(new SQLException("deadlock", "40001")));
+	}
+
+	@Test
+	public void connectionSQLStateIsConnection() {
+		assertEquals(ErrorType.CONNECTION, SQLErrorClassifier.classify(
+				new GenericJDBCException("query", new SQLException("link failure", "08S01"))));
+	}
+
+	@Test
+	public void socketErrorIsConnection() {
+		assertEquals(ErrorType.CONNECTION, SQLErrorClassifier.classify(
+				new RuntimeException(new SQLException("io", null, new SocketException("reset")))));
+	}
+
+	@Test
+	public void syntaxErrorIsSQL() {
+		assertEquals(ErrorType.SQL, SQLErrorClassifier.classify(
+				new GenericJDBCException("query", new SQLException("syntax error", "42000"))));
+	}
+}
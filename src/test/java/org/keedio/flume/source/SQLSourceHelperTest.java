@@ -4,7 +4,10 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Date;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.flume.Context;
@@ -13,6 +16,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -218,6 +223,119 @@ public class SQLSourceHelperTest {
 		assertEquals("10", sqlSourceHelper2.getCurrentIndex());
 	}
 
+	@Test
+	public void probeDetectsGreaterNumericValue() {
+		when(context.getString("probe.query")).thenReturn("SELECT MAX(id) FROM table WHERE id > $@$");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		sqlSourceHelper.setCurrentIndex("10");
+		assertEquals("SELECT MAX(id) FROM table WHERE id > 10", sqlSourceHelper.buildProbeQuery());
+		assertTrue(sqlSourceHelper.hasNewData("11"));
+		assertFalse(sqlSourceHelper.hasNewData("10"));
+		assertFalse(sqlSourceHelper.hasNewData(null));
+	}
+
+	@Test
+	public void probeDetectsChangedValue() {
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		sqlSourceHelper.setCurrentIndex("2015-01-01 00:00:00");
+		assertTrue(sqlSourceHelper.hasNewData("2015-01-02 00:00:00"));
+		sqlSourceHelper.setLastProbeValue("2015-01-02 00:00:00");
+		assertFalse(sqlSourceHelper.hasNewData("2015-01-02 00:00:00"));
+	}
+
+	@Test
+	public void snapshotChunksAreResumed() {
+		when(context.getString("custom.query")).thenReturn("SELECT id, name FROM table WHERE id > $@$");
+		when(context.getBoolean("snapshot.enabled", false)).thenReturn(true);
+		when(context.getString("snapshot.key")).thenReturn("id");
+		when(context.getLong("snapshot.chunk.size", 100000L)).thenReturn(10L);
+
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		assertTrue(sqlSourceHelper.isSnapshotRequired());
+		sqlSourceHelper.startSnapshot(1, 25);
+		assertEquals(3, sqlSourceHelper.getSnapshotChunkCount());
+		assertEquals("SELECT * FROM table WHERE id >= 21 AND id <= 25", sqlSourceHelper.buildSnapshotChunkQuery(2));
+		sqlSourceHelper.completeSnapshotChunk(1);
+
+		SQLSourceHelper resumedHelper = new SQLSourceHelper(context,"Source Name");
+		assertTrue(resumedHelper.isSnapshotRequired());
+		assertEquals(Arrays.asList(0, 2), resumedHelper.getPendingSnapshotChunks());
+		resumedHelper.finishSnapshot();
+		assertFalse(resumedHelper.isSnapshotRequired());
+		assertEquals("25", resumedHelper.getCurrentIndex());
+	}
+
+	@Test
+	public void snapshotKeyRangeIsValidated() {
+		when(context.getString("custom.query")).thenReturn("SELECT id, name FROM table WHERE id > $@$");
+		when(context.getBoolean("snapshot.enabled", false)).thenReturn(true);
+		when(context.getString("snapshot.key")).thenReturn("id");
+		when(context.getLong("snapshot.chunk.size", 100000L)).thenReturn(10L);
+
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		for (long[] range : new long[][] {{0, Long.MAX_VALUE}, {Long.MIN_VALUE, Long.MAX_VALUE}, {10, 1}}){
+			try {
+				sqlSourceHelper.startSnapshot(range[0], range[1]);
+				fail("Snapshot of [" + range[0] + ", " + range[1] + "] started");
+			} catch (ConfigurationException e) {
+				assertFalse(sqlSourceHelper.isSnapshotInProgress());
+			}
+		}
+	}
+
+	@Test
+	public void statusFileKeyedBySourceIdentity() {
+		when(context.getString("source.identity")).thenReturn("orders");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		sqlSourceHelper.setCurrentIndex("10");
+		sqlSourceHelper.updateStatusFile();
+
+		when(context.getString("hibernate.connection.url")).thenReturn("jdbc:mysql://replica:3306/database");
+		SQLSourceHelper movedHelper = new SQLSourceHelper(context,"Source Name");
+		assertEquals("10", movedHelper.getCurrentIndex());
+	}
+
+	@Test
+	public void timeWindowQueryUsesParameters() {
+		when(context.getString("custom.query")).thenReturn(
+				"SELECT * FROM events WHERE ts >= $@window.start$ AND ts < $@window.end$ ORDER BY ts");
+		when(context.getLong("time.window.size", 0L)).thenReturn(300000L);
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		assertNotNull(sqlSourceHelper.getTimeWindow());
+		assertEquals("SELECT * FROM events WHERE ts >= ? AND ts < ? ORDER BY ts", sqlSourceHelper.buildQuery());
+		assertArrayEquals(new boolean[] {true, false}, sqlSourceHelper.getWindowParameters());
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void timeWindowRequiresPlaceholders() {
+		when(context.getString("custom.query")).thenReturn("SELECT * FROM events WHERE ts > $@$");
+		when(context.getLong("time.window.size", 0L)).thenReturn(300000L);
+		new SQLSourceHelper(context,"Source Name");
+	}
+
+	@Test
+	public void shardPredicateAddedToQueries() {
+		when(context.getInteger("shard.count", 1)).thenReturn(4);
+		when(context.getInteger("shard.index", 0)).thenReturn(2);
+		when(context.getString("shard.key")).thenReturn("id");
+		when(context.getString("shard.function", "mod")).thenReturn("mod");
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		assertEquals("SELECT * FROM table WHERE MOD(ABS(id), 4) = 2", sqlSourceHelper.buildQuery());
+		assertEquals("Source Name#2", sqlSourceHelper.getWorkUnit());
+
+		when(context.getString("custom.query")).thenReturn("SELECT * FROM table WHERE id > $@$ AND $@shard$");
+		sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+		assertEquals("SELECT * FROM table WHERE id > 0 AND MOD(ABS(id), 4) = 2", sqlSourceHelper.buildQuery());
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void shardedCustomQueryRequiresPlaceholder() {
+		when(context.getInteger("shard.count", 1)).thenReturn(4);
+		when(context.getString("shard.key")).thenReturn("id");
+		when(context.getString("custom.query")).thenReturn("SELECT * FROM table WHERE id > $@$");
+		new SQLSourceHelper(context,"Source Name");
+	}
+
 	@Test
 	public void getUserName() {
 		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
@@ -229,6 +347,34 @@ public class SQLSourceHelperTest {
 		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
 		assertEquals("password", sqlSourceHelper.getConnectionPassword());
 	}
+
+	@Test
+	public void applyTunableProperties() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("hibernate.connection.url", "jdbc:mysql://host:3306/database");
+		parameters.put("table", "table");
+		parameters.put("max.rows", "10000");
+		when(context.getParameters()).thenReturn(ImmutableMap.copyOf(parameters));
+		SQLSourceHelper sqlSourceHelper = new SQLSourceHelper(context,"Source Name");
+
+		parameters.put("max.rows", "500");
+		parameters.put("enclose.by.quotes", "false");
+		Context tunedContext = new Context(parameters);
+		assertTrue(sqlSourceHelper.isTunableChange(tunedContext));
+
+		sqlSourceHelper.applyTunables(tunedContext);
+		assertEquals(500, sqlSourceHelper.getMaxRows());
+		assertFalse(sqlSourceHelper.encloseByQuotes());
+		assertEquals("SELECT * FROM table", sqlSourceHelper.getQuery());
+
+		/* The column positions used by filters, keys and headers depend on the selected columns */
+		parameters.put("columns.to.select", "id, name");
+		assertFalse(sqlSourceHelper.isTunableChange(new Context(parameters)));
+		parameters.remove("columns.to.select");
+
+		parameters.put("hibernate.connection.url", "jdbc:mysql://other:3306/database");
+		assertFalse(sqlSourceHelper.isTunableChange(new Context(parameters)));
+	}
 	
 
 	
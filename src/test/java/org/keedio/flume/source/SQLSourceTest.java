@@ -0,0 +1,314 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.ConfigurationException;
+import org.apache.flume.conf.Configurables;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SQLSourceTest {
+
+	private static final String URL = "jdbc:h2:mem:sqlsource;DB_CLOSE_DELAY=-1";
+
+	private Connection connection;
+	private File statusDirectory;
+	private MemoryChannel channel;
+	private Map<String, String> parameters = new HashMap<String, String>();
+
+	@Before
+	public void setup() throws Exception {
+		connection = DriverManager.getConnection(URL, "sa", "");
+		statusDirectory = Files.createTempDirectory("sql-source").toFile();
+		Statement statement = connection.createStatement();
+		statement.execute("CREATE TABLE events (id INT PRIMARY KEY, payload VARCHAR(16), status VARCHAR(8), amount INT)");
+
+		channel = channel(100);
+
+		parameters.put("hibernate.connection.url", URL);
+		parameters.put("hibernate.connection.user", "sa");
+		parameters.put("hibernate.connection.password", "");
+		parameters.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		parameters.put("custom.query", "SELECT id, payload, status, amount FROM events WHERE id > $@$ ORDER BY id");
+		parameters.put("status.file.path", statusDirectory.getAbsolutePath());
+		parameters.put("status.file.name", "source.status");
+		parameters.put("run.query.delay", "1");
+	}
+
+	@After
+	public void teardown() throws Exception {
+		channel.stop();
+		connection.createStatement().execute("DROP TABLE events");
+		connection.close();
+		FileUtils.deleteDirectory(statusDirectory);
+	}
+
+	private MemoryChannel channel(int capacity) {
+		Context channelContext = new Context();
+		channelContext.put("capacity", String.valueOf(capacity));
+		channelContext.put("transactionCapacity", String.valueOf(capacity));
+		MemoryChannel channel = new MemoryChannel();
+		Configurables.configure(channel, channelContext);
+		channel.start();
+		return channel;
+	}
+
+	private SQLSource startSource() {
+		ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(Collections.<Channel>singletonList(channel));
+		SQLSource source = new SQLSource();
+		source.setName("source");
+		source.configure(new Context(parameters));
+		source.setChannelProcessor(new ChannelProcessor(selector));
+		source.start();
+		return source;
+	}
+
+	private void insert(String values) throws Exception {
+		connection.createStatement().execute("INSERT INTO events VALUES " + values);
+	}
+
+	private Event take() {
+		Transaction transaction = channel.getTransaction();
+		transaction.begin();
+		try {
+			return channel.take();
+		} finally {
+			transaction.commit();
+			transaction.close();
+		}
+	}
+
+	private String body(Event event) {
+		assertNotNull(event);
+		return new String(event.getBody(), Charset.forName("UTF-8"));
+	}
+
+	@Test
+	public void headersFromColumnsNotProjected() throws Exception {
+		insert("(1, 'a', 'NEW', 10), (2, 'b', 'DONE', 20)");
+		parameters.put("projection.columns", "2,4");
+		parameters.put("header.key.column", "1");
+		parameters.put("header.operation.column", "status");
+		parameters.put("enclose.by.quotes", "false");
+
+		SQLSource source = startSource();
+		source.process();
+
+		Event first = take();
+		assertEquals("a,10", body(first));
+		assertEquals("1", first.getHeaders().get(SQLSource.KEY_HEADER));
+		assertEquals("NEW", first.getHeaders().get(SQLSource.OPERATION_HEADER));
+		Event second = take();
+		assertEquals("b,20", body(second));
+		assertEquals("2", second.getHeaders().get(SQLSource.KEY_HEADER));
+		assertEquals("DONE", second.getHeaders().get(SQLSource.OPERATION_HEADER));
+		source.stop();
+	}
+
+	@Test
+	public void keysAlreadySentSuppressed() throws Exception {
+		insert("(1, 'a', 'NEW', 10), (2, 'b', 'NEW', 20), (3, 'a', 'DONE', 10)");
+		parameters.put("dedup.enabled", "true");
+		parameters.put("dedup.key.columns", "2,4");
+		parameters.put("enclose.by.quotes", "false");
+
+		/* Row 3 repeats the key of row 1 in the same result */
+		SQLSource source = startSource();
+		source.process();
+		assertEquals("1,a,NEW,10", body(take()));
+		assertEquals("2,b,NEW,20", body(take()));
+		assertNull(take());
+
+		/* Row 4 repeats the key of row 2, sent by the previous poll */
+		insert("(4, 'b', 'NEW', 20), (5, 'c', 'NEW', 30)");
+		source.process();
+		assertEquals("5,c,NEW,30", body(take()));
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test
+	public void rowsFilteredOnColumnsNotProjected() throws Exception {
+		insert("(1, 'a', 'NEW', 10), (2, 'b', 'DONE', 20), (3, 'c', 'NEW', 30)");
+		parameters.put("filter.expression", "$3 = 'NEW' AND $4 >= 20");
+		parameters.put("projection.columns", "2");
+		parameters.put("enclose.by.quotes", "false");
+
+		SQLSource source = startSource();
+		source.process();
+		assertEquals("c", body(take()));
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test
+	public void spilledBatchDeliveredAfterDedupAndFilter() throws Exception {
+		channel.stop();
+		channel = channel(2);
+		insert("(1, 'a', 'NEW', 10), (2, 'b', 'NEW', 20), (3, 'c', 'DONE', 30), (4, 'd', 'NEW', 40), (5, 'b', 'NEW', 20)");
+		parameters.put("batch.size", "2");
+		parameters.put("spill.capacity", "65536");
+		parameters.put("dedup.enabled", "true");
+		parameters.put("dedup.key.columns", "2,4");
+		parameters.put("filter.expression", "$4 >= 20");
+		parameters.put("projection.columns", "2,4");
+		parameters.put("header.key.column", "1");
+		parameters.put("header.operation.column", "status");
+		parameters.put("enclose.by.quotes", "false");
+
+		/* Row 1 is filtered, row 5 repeats the key of row 2, row 4 doesn't fit in the channel and is spilled */
+		SQLSource source = startSource();
+		source.process();
+		Event event = take();
+		assertEquals("b,20", body(event));
+		assertEquals("2", event.getHeaders().get(SQLSource.KEY_HEADER));
+		event = take();
+		assertEquals("c,30", body(event));
+		assertEquals("DONE", event.getHeaders().get(SQLSource.OPERATION_HEADER));
+		assertNull(take());
+
+		/* The spilled row goes first, keeping its headers, and keys already sent are still suppressed */
+		insert("(6, 'b', 'NEW', 20), (7, 'e', 'NEW', 50)");
+		source.process();
+		event = take();
+		assertEquals("d,40", body(event));
+		assertEquals("4", event.getHeaders().get(SQLSource.KEY_HEADER));
+		assertEquals("NEW", event.getHeaders().get(SQLSource.OPERATION_HEADER));
+		event = take();
+		assertEquals("e,50", body(event));
+		assertEquals("7", event.getHeaders().get(SQLSource.KEY_HEADER));
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test
+	public void openTimeWindowNotSentAgainAfterRestart() throws Exception {
+		connection.createStatement().execute("ALTER TABLE events ADD COLUMN ts TIMESTAMP");
+		long now = System.currentTimeMillis();
+		insert("(1, 'a', 'NEW', 10, NOW()), (2, 'b', 'NEW', 20, NOW())");
+		parameters.put("custom.query", "SELECT id, payload, status, amount FROM events "
+				+ "WHERE ts >= $@window.start$ AND ts < $@window.end$ ORDER BY id");
+		parameters.put("time.window.size", "3600000");
+		parameters.put("time.window.key.columns", "1");
+		parameters.put("start.from", String.valueOf(now - 60000));
+		parameters.put("filter.expression", "$4 >= 20");
+		parameters.put("projection.columns", "2");
+		parameters.put("enclose.by.quotes", "false");
+
+		SQLSource source = startSource();
+		source.process();
+		assertEquals("b", body(take()));
+		assertNull(take());
+
+		/* The open window is queried again, only the new row is sent */
+		insert("(3, 'c', 'DONE', 30, NOW())");
+		source.process();
+		assertEquals("c", body(take()));
+		assertNull(take());
+		source.stop();
+
+		/* The keys sent from the open window survive a restart */
+		source = startSource();
+		source.process();
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test
+	public void rowsQueriedAgainWhenFilterDoesNotFitTheResult() throws Exception {
+		insert("(1, 'a', 'NEW', 10)");
+		parameters.put("custom.query", "SELECT * FROM events WHERE id > $@$ ORDER BY id");
+		parameters.put("filter.expression", "$4 > 0");
+		parameters.put("enclose.by.quotes", "false");
+
+		SQLSource source = startSource();
+		source.process();
+		assertEquals("1,a,NEW,10", body(take()));
+
+		connection.createStatement().execute("ALTER TABLE events DROP COLUMN amount");
+		insert("(2, 'b', 'NEW')");
+		try {
+			source.process();
+			fail("Filter column not in the result");
+		} catch (ConfigurationException e) {
+			/* the index is restored */
+		}
+
+		connection.createStatement().execute("ALTER TABLE events ADD COLUMN amount INT DEFAULT 20");
+		source.process();
+		assertEquals("2,b,NEW,20", body(take()));
+		source.stop();
+	}
+
+	@Test
+	public void snapshotRowsFilteredAndProjected() throws Exception {
+		insert("(1, 'a', 'NEW', 10), (2, 'b', 'DONE', 20), (3, 'c', 'NEW', 30), (4, 'd', 'NEW', 40), (5, 'e', 'NEW', 50)");
+		parameters.put("table", "events");
+		parameters.put("snapshot.enabled", "true");
+		parameters.put("snapshot.key", "id");
+		parameters.put("snapshot.chunk.size", "2");
+		parameters.put("snapshot.parallelism", "1");
+		parameters.put("filter.expression", "$3 = 'NEW' AND $4 >= 20");
+		parameters.put("projection.columns", "2,4");
+		parameters.put("header.key.column", "1");
+		parameters.put("enclose.by.quotes", "false");
+
+		/* Chunks [1,2], [3,4] and [5,5], exported in order by a single thread */
+		SQLSource source = startSource();
+		source.process();
+		Event event = take();
+		assertEquals("c,30", body(event));
+		assertEquals("3", event.getHeaders().get(SQLSource.KEY_HEADER));
+		assertEquals("d,40", body(take()));
+		assertEquals("e,50", body(take()));
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test
+	public void componentsTurnedOffWhenConfiguredAgain() throws Exception {
+		insert("(1, 'a', 'NEW', 10), (2, 'b', 'DONE', 20)");
+		parameters.put("dedup.enabled", "true");
+		parameters.put("dedup.key.columns", "2");
+		parameters.put("filter.expression", "$3 = 'NEW'");
+		parameters.put("projection.columns", "2");
+		parameters.put("enclose.by.quotes", "false");
+
+		SQLSource source = startSource();
+		source.process();
+		assertEquals("a", body(take()));
+		assertNull(take());
+
+		/* The running source is rebuilt by the next poll, without the filter and the deduplication */
+		parameters.remove("dedup.enabled");
+		parameters.remove("dedup.key.columns");
+		parameters.remove("filter.expression");
+		parameters.remove("projection.columns");
+		source.configure(new Context(parameters));
+		insert("(3, 'a', 'DONE', 30)");
+		source.process();
+		assertEquals("3,a,DONE,30", body(take()));
+		assertNull(take());
+		source.stop();
+	}
+}
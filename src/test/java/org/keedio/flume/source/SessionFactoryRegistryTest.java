@@ -0,0 +1,50 @@
+package org.keedio.flume.source;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionFactoryRegistryTest {
+
+	private Configuration configuration() {
+		Configuration config = new Configuration();
+		config.setProperty("hibernate.connection.url", "jdbc:h2:mem:registry");
+		config.setProperty("hibernate.connection.username", "sa");
+		config.setProperty("hibernate.connection.password", "");
+		config.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		return config;
+	}
+
+	@Test
+	public void shareFactoryUntilLastRelease() {
+		SessionFactory factory = SessionFactoryRegistry.acquire("source", configuration());
+		assertSame(factory, SessionFactoryRegistry.acquire("source", configuration()));
+
+		SessionFactoryRegistry.release(factory);
+		assertFalse(factory.isClosed());
+		SessionFactoryRegistry.release(factory);
+		assertTrue(factory.isClosed());
+
+		SessionFactory rebuilt = SessionFactoryRegistry.acquire("source", configuration());
+		assertNotSame(factory, rebuilt);
+		SessionFactoryRegistry.release(rebuilt);
+	}
+
+	@Test
+	public void invalidateDeadFactory() {
+		SessionFactory factory = SessionFactoryRegistry.acquire("dead", configuration());
+		SessionFactoryRegistry.acquire("dead", configuration());
+
+		SessionFactoryRegistry.invalidate(factory);
+		assertTrue(factory.isClosed());
+
+		SessionFactory rebuilt = SessionFactoryRegistry.acquire("dead", configuration());
+		assertNotSame(factory, rebuilt);
+		SessionFactoryRegistry.release(factory);
+		assertFalse(rebuilt.isClosed());
+		SessionFactoryRegistry.release(rebuilt);
+		assertTrue(rebuilt.isClosed());
+	}
+}
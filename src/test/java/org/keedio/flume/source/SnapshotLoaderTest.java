@@ -0,0 +1,206 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.PollableSource.Status;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SnapshotLoaderTest {
+
+	/* Chunk queries run concurrently, H2 serializes the statements of a database otherwise */
+	private static final String URL = "jdbc:h2:mem:snapshot;DB_CLOSE_DELAY=-1;MULTI_THREADED=1";
+
+	private Connection connection;
+	private File statusDirectory;
+	private MemoryChannel channel;
+	private Map<String, String> parameters = new HashMap<String, String>();
+
+	private static CountDownLatch chunkBlocked;
+	private static volatile boolean chunkInterrupted;
+
+	/**
+	 * Row check of the chunk queries: a row with amount 0 fails once another chunk is blocked on a row
+	 * with amount -1, which waits until its thread is interrupted
+	 */
+	public static boolean checkRow(int amount) throws InterruptedException {
+		if (amount == 0){
+			chunkBlocked.await(10, TimeUnit.SECONDS);
+			throw new IllegalStateException("Row failed");
+		}
+		if (amount == -1){
+			chunkBlocked.countDown();
+			try {
+				Thread.sleep(60000);
+			} catch (InterruptedException e) {
+				chunkInterrupted = true;
+				throw e;
+			}
+		}
+		return true;
+	}
+
+	@Before
+	public void setup() throws Exception {
+		connection = DriverManager.getConnection(URL, "sa", "");
+		statusDirectory = Files.createTempDirectory("sql-source").toFile();
+		connection.createStatement().execute("CREATE TABLE events (id INT PRIMARY KEY, payload VARCHAR(16), amount INT)");
+
+		Context channelContext = new Context();
+		channelContext.put("capacity", "100");
+		channelContext.put("transactionCapacity", "100");
+		channel = new MemoryChannel();
+		Configurables.configure(channel, channelContext);
+		channel.start();
+
+		parameters.put("hibernate.connection.url", URL);
+		parameters.put("hibernate.connection.user", "sa");
+		parameters.put("hibernate.connection.password", "");
+		parameters.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		parameters.put("custom.query", "SELECT id, payload, amount FROM events WHERE id > $@$ ORDER BY id");
+		parameters.put("status.file.path", statusDirectory.getAbsolutePath());
+		parameters.put("status.file.name", "source.status");
+		parameters.put("run.query.delay", "1");
+		parameters.put("enclose.by.quotes", "false");
+		parameters.put("table", "events");
+		parameters.put("snapshot.enabled", "true");
+		parameters.put("snapshot.key", "id");
+		parameters.put("snapshot.chunk.size", "2");
+		parameters.put("snapshot.parallelism", "1");
+	}
+
+	@After
+	public void teardown() throws Exception {
+		channel.stop();
+		connection.createStatement().execute("DROP TABLE events");
+		connection.close();
+		FileUtils.deleteDirectory(statusDirectory);
+	}
+
+	private SQLSource startSource() {
+		ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(Collections.<Channel>singletonList(channel));
+		SQLSource source = new SQLSource();
+		source.setName("source");
+		source.configure(new Context(parameters));
+		source.setChannelProcessor(new ChannelProcessor(selector));
+		source.start();
+		return source;
+	}
+
+	private void insert(String values) throws Exception {
+		connection.createStatement().execute("INSERT INTO events VALUES " + values);
+	}
+
+	private String take() {
+		Transaction transaction = channel.getTransaction();
+		transaction.begin();
+		try {
+			Event event = channel.take();
+			return event == null ? null : new String(event.getBody(), Charset.forName("UTF-8"));
+		} finally {
+			transaction.commit();
+			transaction.close();
+		}
+	}
+
+	@Test
+	public void chunksExportedThenIncrementalPolling() throws Exception {
+		insert("(1, 'a', 10), (2, 'b', 20), (3, 'c', 30), (4, 'd', 40), (5, 'e', 50)");
+
+		/* Chunks [1,2], [3,4] and [5,5] */
+		SQLSource source = startSource();
+		assertEquals(Status.READY, source.process());
+		assertEquals("1,a,10", take());
+		assertEquals("2,b,20", take());
+		assertEquals("3,c,30", take());
+		assertEquals("4,d,40", take());
+		assertEquals("5,e,50", take());
+		assertNull(take());
+
+		/* The incremental polling starts from the snapshot high watermark */
+		insert("(6, 'f', 60)");
+		source.process();
+		assertEquals("6,f,60", take());
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test
+	public void failedChunkStopsSnapshotAndIsResumed() throws Exception {
+		insert("(1, 'a', 10), (2, 'b', 20), (3, 'c', 0), (4, 'd', 40), (5, 'e', 50)");
+		parameters.put("snapshot.query", "SELECT id, payload, amount FROM events WHERE $@snapshot$ AND 10 / amount >= 0");
+
+		/* Row 3 fails chunk [3,4], chunk [5,5] is not exported */
+		SQLSource source = startSource();
+		assertEquals(Status.BACKOFF, source.process());
+		assertEquals("1,a,10", take());
+		assertEquals("2,b,20", take());
+		assertNull(take());
+		source.stop();
+
+		/* The completed chunk is not exported again after a restart */
+		connection.createStatement().execute("UPDATE events SET amount = 30 WHERE id = 3");
+		source = startSource();
+		assertEquals(Status.READY, source.process());
+		assertEquals("3,c,30", take());
+		assertEquals("4,d,40", take());
+		assertEquals("5,e,50", take());
+		assertNull(take());
+
+		source.process();
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test
+	public void keyNotIntegerFailsSnapshot() throws Exception {
+		insert("(1, 'a', 10), (2, 'b', 20)");
+		parameters.put("snapshot.key", "payload");
+
+		SQLSource source = startSource();
+		assertEquals(Status.BACKOFF, source.process());
+		assertEquals(Status.BACKOFF, source.process());
+		assertNull(take());
+		source.stop();
+	}
+
+	@Test(timeout = 30000)
+	public void runningChunksCancelledWhenOneFails() throws Exception {
+		insert("(1, 'a', 0), (2, 'b', 20), (3, 'c', -1), (4, 'd', 40)");
+		connection.createStatement().execute("CREATE ALIAS CHECK_ROW FOR \"" + getClass().getName() + ".checkRow\"");
+		parameters.put("snapshot.query", "SELECT id, payload, amount FROM events WHERE $@snapshot$ AND CHECK_ROW(amount)");
+		parameters.put("snapshot.parallelism", "2");
+		chunkBlocked = new CountDownLatch(1);
+		chunkInterrupted = false;
+
+		/* Chunk [1,2] fails while chunk [3,4] is running */
+		SQLSource source = startSource();
+		assertEquals(Status.BACKOFF, source.process());
+		assertTrue(chunkInterrupted);
+		assertNull(take());
+		source.stop();
+		connection.createStatement().execute("DROP ALIAS CHECK_ROW");
+	}
+}
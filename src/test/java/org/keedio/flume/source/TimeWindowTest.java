@@ -0,0 +1,87 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeWindowTest {
+
+	private File file = new File("/tmp/flume/timewindow.window");
+
+	@After
+	public void teardown() {
+		file.delete();
+	}
+
+	private List<List<Object>> rows(Object... ids) {
+		List<List<Object>> rows = new ArrayList<List<Object>>();
+		for (Object id : ids){
+			rows.add(Arrays.<Object>asList(id, "value" + id));
+		}
+		return rows;
+	}
+
+	@Test
+	public void settledWindowsAdvance() {
+		TimeWindow timeWindow = new TimeWindow(1000, 500, new int[0], 100, file);
+		timeWindow.plan(0, 1500);
+		assertTrue(timeWindow.isSettled());
+		assertEquals(0, timeWindow.getStart());
+		assertEquals(1000, timeWindow.getEnd());
+		assertEquals(2, timeWindow.filterSent(rows(1, 2)).size());
+		assertEquals(1000, timeWindow.advance());
+
+		timeWindow.plan(1000, 1500);
+		assertFalse(timeWindow.isSettled());
+	}
+
+	@Test
+	public void openWindowSendsLateRowsOnce() {
+		TimeWindow timeWindow = new TimeWindow(1000, 500, new int[] {0}, 100, file);
+		timeWindow.plan(0, 800);
+		assertEquals(2, timeWindow.filterSent(rows(1, 3)).size());
+
+		/* Row 2 committed late */
+		timeWindow.plan(0, 1200);
+		List<List<Object>> unsent = timeWindow.filterSent(rows(1, 2, 3));
+		assertEquals(1, unsent.size());
+		assertEquals(2, unsent.get(0).get(0));
+
+		timeWindow.plan(0, 1600);
+		assertTrue(timeWindow.isSettled());
+		assertEquals(rows(4), timeWindow.filterSent(rows(1, 2, 3, 4)));
+	}
+
+	@Test
+	public void resetSendsOpenWindowAgain() {
+		TimeWindow timeWindow = new TimeWindow(1000, 500, new int[0], 100, file);
+		timeWindow.plan(0, 800);
+		timeWindow.filterSent(rows(1));
+		timeWindow.reset();
+		assertEquals(1, timeWindow.filterSent(rows(1)).size());
+	}
+
+	@Test
+	public void sentKeysSavedAndCapped() {
+		file.getParentFile().mkdirs();
+		TimeWindow timeWindow = new TimeWindow(1000, 500, new int[] {0}, 2, file);
+		timeWindow.plan(0, 800);
+		assertEquals(3, timeWindow.filterSent(rows(1, 2, 3)).size());
+		timeWindow.save();
+
+		TimeWindow restarted = new TimeWindow(1000, 500, new int[] {0}, 2, file);
+		restarted.load();
+		restarted.plan(0, 900);
+		/* Row 3 was beyond the max keys */
+		assertEquals(rows(3), restarted.filterSent(rows(1, 2, 3)));
+
+		restarted.plan(1000, 900);
+		assertEquals(3, restarted.filterSent(rows(1, 2, 3)).size());
+	}
+}
@@ -0,0 +1,22 @@
+package org.keedio.flume.source;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+	@Test
+	public void burstWithinCapacityDoesNotWait() {
+		TokenBucket tokenBucket = new TokenBucket(100, 100);
+		assertEquals(0, tokenBucket.reserve(60));
+		assertEquals(0, tokenBucket.reserve(40));
+	}
+
+	@Test
+	public void debtIsPaidWaiting() {
+		TokenBucket tokenBucket = new TokenBucket(100, 100);
+		long wait = tokenBucket.reserve(300);
+		assertTrue(wait > 1900 && wait <= 2000);
+	}
+}
@@ -0,0 +1,132 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Source;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.source.PollableSourceRunner;
+
+/**
+ * Thread and heap footprint of many idle sources polling an in-memory H2 database, run with
+ * <tt>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.keedio.flume.source.VirtualThreadSQLSourceBenchmark -Dexec.args="500 virtual 30"</tt>. <p>
+ * Modes: <tt>pollable</tt> runs each {@link SQLSource} with the Flume polling runner, <tt>virtual</tt> and
+ * <tt>platform</tt> run each {@link VirtualThreadSQLSource} with virtual threads enabled or disabled. The live
+ * threads include the validation thread of the connection pool of each source, which is never virtual. Before
+ * Java 21 the <tt>virtual</tt> mode falls back to platform threads, as the printed JVM version shows.
+ */
+public class VirtualThreadSQLSourceBenchmark {
+
+	private static final String URL = "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1";
+
+	public static void main(String[] args) throws Exception {
+
+		int sources = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		String mode = args.length > 1 ? args[1] : "virtual";
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+		Connection connection = DriverManager.getConnection(URL, "sa", "");
+		Statement statement = connection.createStatement();
+		statement.execute("CREATE TABLE events (id INT PRIMARY KEY, payload VARCHAR(64))");
+		for (int i = 1; i <= 10; i++){
+			statement.execute("INSERT INTO events VALUES (" + i + ", 'payload " + i + "')");
+		}
+
+		MemoryChannel channel = new MemoryChannel();
+		channel.setName("channel");
+		Configurables.configure(channel, new Context(Collections.singletonMap("capacity", String.valueOf(sources * 20))));
+		channel.start();
+		ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(Collections.<Channel>singletonList(channel));
+		ChannelProcessor channelProcessor = new ChannelProcessor(selector);
+
+		File statusDirectory = Files.createTempDirectory("sql-source-benchmark").toFile();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		int baseThreads = threads.getThreadCount();
+		System.gc();
+		long baseHeap = memory.getHeapMemoryUsage().getUsed();
+
+		long start = System.currentTimeMillis();
+		List<Object> running = new ArrayList<Object>();
+		for (int i = 0; i < sources; i++){
+			Context context = context(statusDirectory, i);
+			if (mode.equals("pollable")){
+				SQLSource source = new SQLSource();
+				source.setName("source" + i);
+				source.configure(context);
+				source.setChannelProcessor(channelProcessor);
+				PollableSourceRunner runner = new PollableSourceRunner();
+				runner.setSource(source);
+				runner.start();
+				running.add(runner);
+			}
+			else {
+				context.put("virtual.threads", String.valueOf(mode.equals("virtual")));
+				VirtualThreadSQLSource source = new VirtualThreadSQLSource();
+				source.setName("source" + i);
+				source.configure(context);
+				source.setChannelProcessor(channelProcessor);
+				source.start();
+				running.add(source);
+			}
+		}
+		long startTime = System.currentTimeMillis() - start;
+
+		Thread.sleep(seconds * 1000L);
+		System.gc();
+		System.out.println("Java: " + System.getProperty("java.version") + ", mode: " + mode + ", sources: " + sources
+				+ ", started in " + startTime + " ms");
+		System.out.println("Live threads: " + (threads.getThreadCount() - baseThreads) + " (peak "
+				+ threads.getPeakThreadCount() + ")");
+		System.out.println("Heap used: " + (memory.getHeapMemoryUsage().getUsed() - baseHeap) / (1024 * 1024) + " MB");
+		if (!running.isEmpty() && running.get(0) instanceof VirtualThreadSQLSource){
+			System.out.println("Virtual threads: " + ((VirtualThreadSQLSource) running.get(0)).isVirtual());
+		}
+
+		for (Object source : running){
+			if (source instanceof PollableSourceRunner){
+				((PollableSourceRunner) source).stop();
+			}
+			else {
+				((Source) source).stop();
+			}
+		}
+		channel.stop();
+		connection.close();
+	}
+
+	private static Context context(File statusDirectory, int index) {
+
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("hibernate.connection.url", URL);
+		parameters.put("hibernate.connection.user", "sa");
+		parameters.put("hibernate.connection.password", "");
+		parameters.put("hibernate.connection.driver_class", "org.h2.Driver");
+		parameters.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		parameters.put("hibernate.connection.pool_size", "1");
+		parameters.put("custom.query", "SELECT id, payload FROM events WHERE id > $@$ ORDER BY id");
+		parameters.put("status.file.path", statusDirectory.getAbsolutePath());
+		parameters.put("status.file.name", "source" + index + ".status");
+		parameters.put("run.query.delay", "5000");
+		parameters.put("governor.max.agent.concurrent.queries", "16");
+		return new Context(parameters);
+	}
+}
@@ -0,0 +1,91 @@
+package org.keedio.flume.source;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.ChannelProcessor;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.channel.ReplicatingChannelSelector;
+import org.apache.flume.conf.Configurables;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadSQLSourceTest {
+
+	private static final String URL = "jdbc:h2:mem:virtual;DB_CLOSE_DELAY=-1";
+
+	@Test
+	public void pollFromOwnThread() throws Exception {
+		Connection connection = DriverManager.getConnection(URL, "sa", "");
+		File statusDirectory = Files.createTempDirectory("sql-source").toFile();
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute("CREATE TABLE events (id INT PRIMARY KEY, payload VARCHAR(16))");
+			statement.execute("INSERT INTO events VALUES (1, 'a'), (2, 'b')");
+
+			MemoryChannel channel = new MemoryChannel();
+			Configurables.configure(channel, new Context());
+			channel.start();
+			ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+			selector.setChannels(Collections.<Channel>singletonList(channel));
+
+			Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put("hibernate.connection.url", URL);
+			parameters.put("hibernate.connection.user", "sa");
+			parameters.put("hibernate.connection.password", "");
+			parameters.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+			parameters.put("custom.query", "SELECT id, payload FROM events WHERE id > $@$ ORDER BY id");
+			parameters.put("status.file.path", statusDirectory.getAbsolutePath());
+			parameters.put("status.file.name", "virtual.status");
+			parameters.put("run.query.delay", "100");
+
+			VirtualThreadSQLSource source = new VirtualThreadSQLSource();
+			source.setName("virtual");
+			source.configure(new Context(parameters));
+			source.setChannelProcessor(new ChannelProcessor(selector));
+			source.start();
+
+			Transaction transaction = channel.getTransaction();
+			transaction.begin();
+			assertEquals("\"1\",\"a\"", body(take(channel)));
+			assertEquals("\"2\",\"b\"", body(take(channel)));
+			transaction.commit();
+			transaction.close();
+
+			source.stop();
+			channel.stop();
+		} finally {
+			connection.close();
+			FileUtils.deleteDirectory(statusDirectory);
+		}
+	}
+
+	private Event take(Channel channel) throws InterruptedException {
+		for (int i = 0; i < 100; i++){
+			Event event = channel.take();
+			if (event != null){
+				return event;
+			}
+			Thread.sleep(50);
+		}
+		return null;
+	}
+
+	private String body(Event event) {
+		assertNotNull(event);
+		return new String(event.getBody(), Charset.forName("UTF-8"));
+	}
+}